@@ -0,0 +1,525 @@
+package edu.nyu.cs.pqs.bench;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import edu.nyu.cs.pqs.AddressBook;
+import edu.nyu.cs.pqs.Contact;
+
+/**
+ * AddressBookBenchmark measures the operations of {@link AddressBook} at several address book
+ * sizes and writes the results as JSON, so runs of different releases can be compared. Every
+ * workload is warmed up before it is measured, and reports the mean time per operation with its
+ * standard deviation over the measured iterations, operations and contacts per second, and the
+ * bytes allocated per operation by the measuring thread.
+ *
+ * <p>
+ * Options, all optional:
+ *
+ * <pre>
+ * --sizes 1000,10000      address book sizes, default 1000,10000,100000,1000000,10000000
+ * --warmup 3              warmup iterations per workload
+ * --iterations 5          measured iterations per workload
+ * --time 1000             length of an iteration in milliseconds
+ * --filter search         only run workloads whose name contains the filter
+ * --output results.json   where to write the results, default bench-results.json
+ * </pre>
+ *
+ * Large sizes need a large heap, about 1 GB per million contacts.
+ *
+ * @author Rachita
+ *
+ */
+public class AddressBookBenchmark {
+  private static final long SEED = 2015;
+  private static final int CONTACTS_PER_BATCH = 10000;
+
+  private final Map<Integer, AddressBook> books = new HashMap<Integer, AddressBook>();
+  private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+  // consumed results, so the JIT can not drop the measured work
+  private long sink;
+
+  private int[] sizes = { 1000, 10000, 100000, 1000000, 10000000 };
+  private int warmupIterations = 3;
+  private int iterations = 5;
+  private long iterationMillis = 1000;
+  private String filter = "";
+  private String output = "bench-results.json";
+
+  /**
+   * Result is the measurement of one workload at one size.
+   */
+  private static final class Result {
+    String name;
+    String parameter;
+    int bookSize;
+    int iterations;
+    double nanosPerOperation;
+    double nanosPerOperationError;
+    double operationsPerSecond;
+    double contactsPerSecond;
+    double bytesPerOperation;
+  }
+
+  /**
+   * runs the benchmarks
+   *
+   * @param args
+   *          options described in the class comment
+   * @throws Exception
+   *           if a workload fails
+   */
+  public static void main(String[] args) throws Exception {
+    // the loaders log every file they read
+    Logger.getLogger("edu.nyu.cs.pqs").setLevel(Level.WARNING);
+    AddressBookBenchmark benchmark = new AddressBookBenchmark();
+    benchmark.parse(args);
+    benchmark.run();
+  }
+
+  private void parse(String[] args) {
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      String value = args[i + 1];
+      if (args[i].equals("--sizes")) {
+        String[] parts = value.split(",");
+        sizes = new int[parts.length];
+        for (int j = 0; j < parts.length; j++) {
+          sizes[j] = Integer.parseInt(parts[j].trim());
+        }
+      } else if (args[i].equals("--warmup")) {
+        warmupIterations = Integer.parseInt(value);
+      } else if (args[i].equals("--iterations")) {
+        iterations = Integer.parseInt(value);
+      } else if (args[i].equals("--time")) {
+        iterationMillis = Long.parseLong(value);
+      } else if (args[i].equals("--filter")) {
+        filter = value;
+      } else if (args[i].equals("--output")) {
+        output = value;
+      } else {
+        throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+    }
+  }
+
+  private void run() throws Exception {
+    List<Result> results = new ArrayList<Result>();
+    for (int size : sizes) {
+      for (Workload workload : workloads()) {
+        if (!workload.getName().contains(filter)) {
+          continue;
+        }
+        Result result = measure(workload, size);
+        results.add(result);
+        System.out.println(String.format(Locale.ROOT,
+            "%-24s %-12s %10d %14.1f ns/op +- %-10.1f %12.0f contacts/s %12.0f B/op",
+            result.name, result.parameter, result.bookSize, result.nanosPerOperation,
+            result.nanosPerOperationError, result.contactsPerSecond, result.bytesPerOperation));
+      }
+      books.remove(size);
+    }
+    writeJson(results);
+    System.out.println("results written to " + new File(output).getAbsolutePath()
+        + " (sink " + sink + ")");
+  }
+
+  /*
+   * Every workload leaves the shared book of its size the way it found it, so the book is only
+   * generated once per size.
+   */
+  private AddressBook book(int size) {
+    AddressBook book = books.get(size);
+    if (book == null) {
+      book = AddressBook.createEmptyAddressBook();
+      ContactGenerator generator = new ContactGenerator(SEED);
+      for (int i = 0; i < size; i++) {
+        book.addContact(generator.next());
+      }
+      books.put(size, book);
+    }
+    return book;
+  }
+
+  private List<Workload> workloads() {
+    List<Workload> workloads = new ArrayList<Workload>();
+    workloads.add(new AddContact());
+    workloads.add(new RemoveContact());
+    workloads.add(new Import(true));
+    workloads.add(new Import(false));
+    workloads.add(new Search("all", "a"));
+    workloads.add(new Search("5%", "smith"));
+    workloads.add(new Search("1%", ContactGenerator.RARE_LAST_NAME));
+    workloads.add(new Search("single", "2120000007"));
+    workloads.add(new Search("none", "no such contact"));
+    workloads.add(new RecomputedKeySearch("all", "a"));
+    workloads.add(new RecomputedKeySearch("1%", ContactGenerator.RARE_LAST_NAME));
+    workloads.add(new SaveToFile());
+    workloads.add(new LoadFromFile());
+    return workloads;
+  }
+
+  private Result measure(Workload workload, int size) throws Exception {
+    workload.setUp(size);
+    for (int i = 0; i < warmupIterations; i++) {
+      runIteration(workload, size);
+    }
+    double[] nanosPerOperation = new double[iterations];
+    long operations = 0;
+    long nanos = 0;
+    long bytes = 0;
+    for (int i = 0; i < iterations; i++) {
+      long[] iteration = runIteration(workload, size);
+      operations += iteration[0];
+      nanos += iteration[1];
+      bytes = bytes < 0 || iteration[2] < 0 ? -1 : bytes + iteration[2];
+      nanosPerOperation[i] = (double) iteration[1] / iteration[0];
+    }
+    workload.tearDown();
+
+    Result result = new Result();
+    result.name = workload.getName();
+    result.parameter = workload.getParameter();
+    result.bookSize = size;
+    result.iterations = iterations;
+    result.nanosPerOperation = (double) nanos / operations;
+    double squares = 0;
+    for (double value : nanosPerOperation) {
+      squares += (value - result.nanosPerOperation) * (value - result.nanosPerOperation);
+    }
+    result.nanosPerOperationError = Math.sqrt(squares / Math.max(1, iterations - 1));
+    result.operationsPerSecond = operations * 1e9 / nanos;
+    result.contactsPerSecond = result.operationsPerSecond * workload.contactsPerInvocation();
+    result.bytesPerOperation = bytes < 0 ? -1 : (double) bytes / operations;
+    return result;
+  }
+
+  /*
+   * Returns {operations, nanos, allocated bytes}. Setting up again when the workload is exhausted
+   * happens between timed batches and is not counted.
+   */
+  private long[] runIteration(Workload workload, int size) throws Exception {
+    long operations = 0;
+    long nanos = 0;
+    long bytes = 0;
+    long deadline = System.nanoTime() + iterationMillis * 1000000;
+    while (operations == 0 || System.nanoTime() < deadline) {
+      if (workload.isExhausted()) {
+        workload.setUp(size);
+      }
+      long startBytes = allocatedBytes();
+      long start = System.nanoTime();
+      long end = start;
+      while (!workload.isExhausted() && end < deadline) {
+        workload.invoke();
+        operations++;
+        end = System.nanoTime();
+      }
+      long endBytes = allocatedBytes();
+      nanos += end - start;
+      bytes = startBytes < 0 || bytes < 0 ? -1 : bytes + endBytes - startBytes;
+    }
+    return new long[] { operations, nanos, bytes };
+  }
+
+  // bytes allocated by this thread, or -1 if the JVM can not tell
+  private long allocatedBytes() {
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(Thread
+          .currentThread().getId());
+    }
+    return -1;
+  }
+
+  private void writeJson(List<Result> results) throws IOException {
+    PrintWriter writer = new PrintWriter(output, "UTF-8");
+    try {
+      writer.println("[");
+      for (int i = 0; i < results.size(); i++) {
+        Result result = results.get(i);
+        writer.print(String.format(Locale.ROOT, "  {\"benchmark\": \"%s\", \"parameter\": \"%s\", "
+            + "\"bookSize\": %d, \"iterations\": %d, \"nanosPerOperation\": %.3f, "
+            + "\"nanosPerOperationError\": %.3f, \"operationsPerSecond\": %.3f, "
+            + "\"contactsPerSecond\": %.3f, \"bytesPerOperation\": %.1f}", result.name,
+            result.parameter, result.bookSize, result.iterations, result.nanosPerOperation,
+            result.nanosPerOperationError, result.operationsPerSecond, result.contactsPerSecond,
+            result.bytesPerOperation));
+        writer.println(i + 1 < results.size() ? "," : "");
+      }
+      writer.println("]");
+    } finally {
+      writer.close();
+    }
+  }
+
+  /**
+   * adds new contacts to the book, and removes them again once a batch is used up
+   */
+  private final class AddContact extends Workload {
+    private final ContactGenerator generator = new ContactGenerator(SEED + 1);
+    private AddressBook book;
+    private List<Contact> batch;
+    private int next;
+
+    AddContact() {
+      super("addContact", "-");
+    }
+
+    @Override
+    public void setUp(int bookSize) {
+      book = book(bookSize);
+      if (batch != null) {
+        book.removeAll(batch.subList(0, next));
+      }
+      batch = generator.next(CONTACTS_PER_BATCH);
+      next = 0;
+    }
+
+    @Override
+    public void invoke() {
+      book.addContact(batch.get(next++));
+    }
+
+    @Override
+    public boolean isExhausted() {
+      return next == batch.size();
+    }
+
+    @Override
+    public void tearDown() {
+      book.removeAll(batch.subList(0, next));
+    }
+  }
+
+  /**
+   * removes contacts of the book, and adds them back once a batch is used up
+   */
+  private final class RemoveContact extends Workload {
+    private AddressBook book;
+    private List<Contact> batch;
+    private int next;
+
+    RemoveContact() {
+      super("removeContact", "-");
+    }
+
+    @Override
+    public void setUp(int bookSize) {
+      book = book(bookSize);
+      if (batch != null) {
+        restore();
+      }
+      batch = new ArrayList<Contact>();
+      ContactGenerator generator = new ContactGenerator(SEED);
+      int step = Math.max(1, bookSize / CONTACTS_PER_BATCH);
+      for (int i = 0; i < bookSize; i++) {
+        Contact contact = generator.next();
+        if (i % step == 0 && batch.size() < CONTACTS_PER_BATCH) {
+          batch.add(contact);
+        }
+      }
+      next = 0;
+    }
+
+    @Override
+    public void invoke() {
+      book.removeContact(batch.get(next++));
+    }
+
+    @Override
+    public boolean isExhausted() {
+      return next == batch.size();
+    }
+
+    @Override
+    public void tearDown() {
+      restore();
+    }
+
+    private void restore() {
+      for (Contact contact : batch.subList(0, next)) {
+        book.addContact(contact);
+      }
+      next = 0;
+    }
+  }
+
+  /**
+   * imports as many contacts as the book size into a new, empty address book, either with one
+   * addAll call or one addContact call per contact
+   */
+  private final class Import extends Workload {
+    private final boolean bulk;
+    private List<Contact> contacts;
+    private int bookSize;
+
+    Import(boolean bulk) {
+      super("import", bulk ? "addAll" : "addContact");
+      this.bulk = bulk;
+    }
+
+    @Override
+    public void setUp(int bookSize) {
+      this.bookSize = bookSize;
+      contacts = new ContactGenerator(SEED + 2).next(bookSize);
+    }
+
+    @Override
+    public void invoke() {
+      AddressBook imported = AddressBook.createEmptyAddressBook();
+      if (bulk) {
+        imported.addAll(contacts);
+      } else {
+        for (Contact contact : contacts) {
+          imported.addContact(contact);
+        }
+      }
+      sink += imported.findByPhone("2120000000").size();
+    }
+
+    @Override
+    public long contactsPerInvocation() {
+      return bookSize;
+    }
+
+    @Override
+    public void tearDown() {
+      contacts = null;
+    }
+  }
+
+  /**
+   * searches the book for a query matching a known share of the contacts
+   */
+  private final class Search extends Workload {
+    private final String query;
+    private AddressBook book;
+
+    Search(String selectivity, String query) {
+      super("search", selectivity);
+      this.query = query;
+    }
+
+    @Override
+    public void setUp(int bookSize) {
+      book = book(bookSize);
+    }
+
+    @Override
+    public void invoke() {
+      sink += book.search(query).size();
+    }
+  }
+
+  /**
+   * the baseline of search: scans a snapshot of the book, lower casing the toString of every
+   * contact for every query, as search did before contacts kept a precomputed search key
+   */
+  private final class RecomputedKeySearch extends Workload {
+    private final String query;
+    private AddressBook book;
+
+    RecomputedKeySearch(String selectivity, String query) {
+      super("searchRecomputingKey", selectivity);
+      this.query = query;
+    }
+
+    @Override
+    public void setUp(int bookSize) {
+      book = book(bookSize);
+    }
+
+    @Override
+    public void invoke() {
+      String normalizedQuery = query.toLowerCase();
+      List<Contact> found = new ArrayList<Contact>();
+      for (Contact contact : book.snapshot()) {
+        if (contact.toString().toLowerCase().contains(normalizedQuery)) {
+          found.add(contact);
+        }
+      }
+      sink += found.size();
+    }
+  }
+
+  /**
+   * saves the whole book to a temporary file
+   */
+  private final class SaveToFile extends Workload {
+    private AddressBook book;
+    private File file;
+    private int bookSize;
+
+    SaveToFile() {
+      super("saveAddressBookToFile", "text");
+    }
+
+    @Override
+    public void setUp(int bookSize) throws IOException {
+      this.bookSize = bookSize;
+      book = book(bookSize);
+      file = File.createTempFile("bench", ".txt");
+    }
+
+    @Override
+    public void invoke() throws IOException {
+      book.saveAddressBookToFile(file.getPath());
+    }
+
+    @Override
+    public long contactsPerInvocation() {
+      return bookSize;
+    }
+
+    @Override
+    public void tearDown() {
+      file.delete();
+    }
+  }
+
+  /**
+   * loads a saved copy of the book into a new, empty address book
+   */
+  private final class LoadFromFile extends Workload {
+    private File file;
+    private int bookSize;
+
+    LoadFromFile() {
+      super("loadContactsFromFile", "text");
+    }
+
+    @Override
+    public void setUp(int bookSize) throws IOException {
+      this.bookSize = bookSize;
+      file = File.createTempFile("bench", ".txt");
+      book(bookSize).saveAddressBookToFile(file.getPath());
+    }
+
+    @Override
+    public void invoke() throws IOException {
+      AddressBook loaded = AddressBook.createEmptyAddressBook();
+      loaded.loadContactsFromFile(file.getPath());
+      sink += loaded.findByPhone("2120000000").size();
+    }
+
+    @Override
+    public long contactsPerInvocation() {
+      return bookSize;
+    }
+
+    @Override
+    public void tearDown() {
+      file.delete();
+    }
+  }
+}
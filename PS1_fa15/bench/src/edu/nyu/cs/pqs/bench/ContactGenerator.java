@@ -0,0 +1,83 @@
+package edu.nyu.cs.pqs.bench;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import edu.nyu.cs.pqs.Contact;
+
+/**
+ * ContactGenerator builds synthetic contacts for the benchmarks. The same seed always produces the
+ * same contacts. Values are drawn from small pools, so like real address books many contacts share
+ * a first name, a last name, a street or a postal code, while phone numbers and email addresses
+ * are unique.
+ *
+ * @author Rachita
+ *
+ */
+public class ContactGenerator {
+  /** last name which is given to roughly one contact in a hundred */
+  public static final String RARE_LAST_NAME = "Quimby";
+
+  private static final String[] FIRST_NAMES = { "James", "Mary", "John", "Patricia", "Robert",
+      "Jennifer", "Michael", "Linda", "William", "Elizabeth", "David", "Barbara", "Richard",
+      "Susan", "Joseph", "Jessica", "Thomas", "Sarah", "Charles", "Karen", "Rachita", "Suruchi" };
+  private static final String[] LAST_NAMES = { "Smith", "Johnson", "Williams", "Brown", "Jones",
+      "Garcia", "Miller", "Davis", "Rodriguez", "Martinez", "Hernandez", "Lopez", "Gonzalez",
+      "Wilson", "Anderson", "Thomas", "Taylor", "Moore", "Jackson", "Martin", "Lee", "Thompson" };
+  private static final String[] STREETS = { "Washington Sq", "Broadway", "Mercer St",
+      "Bleecker St", "Houston St", "Lafayette St", "Park Ave", "Lexington Ave", "Madison Ave" };
+  private static final String[] DOMAINS = { "nyu.edu", "gmail.com", "yahoo.com", "outlook.com",
+      "example.org" };
+  private static final String[] NOTES = { "friend", "work", "family", "gym", "school", "doctor" };
+
+  private final Random random;
+  private long sequence;
+
+  /**
+   * @param seed
+   *          seed of the generator
+   */
+  public ContactGenerator(long seed) {
+    random = new Random(seed);
+  }
+
+  /**
+   * @return the next synthetic contact
+   */
+  public Contact next() {
+    long id = sequence++;
+    String firstName = pick(FIRST_NAMES);
+    String lastName = random.nextInt(100) == 0 ? RARE_LAST_NAME : pick(LAST_NAMES);
+    Contact.Builder builder = new Contact.Builder(firstName + " " + lastName + " " + id,
+        String.format("%010d", 2120000000L + id));
+    if (random.nextInt(10) < 8) {
+      builder.emailAddress(firstName.toLowerCase() + "." + id + "@" + pick(DOMAINS));
+    }
+    if (random.nextInt(10) < 6) {
+      builder.postalAddress((1 + random.nextInt(500)) + " " + pick(STREETS) + ", New York, NY "
+          + (10001 + random.nextInt(300)));
+    }
+    if (random.nextInt(10) < 3) {
+      builder.note(pick(NOTES));
+    }
+    return builder.build();
+  }
+
+  /**
+   * @param count
+   *          number of contacts to generate
+   * @return the next count synthetic contacts
+   */
+  public List<Contact> next(int count) {
+    List<Contact> contacts = new ArrayList<Contact>(count);
+    for (int i = 0; i < count; i++) {
+      contacts.add(next());
+    }
+    return contacts;
+  }
+
+  private String pick(String[] values) {
+    return values[random.nextInt(values.length)];
+  }
+}
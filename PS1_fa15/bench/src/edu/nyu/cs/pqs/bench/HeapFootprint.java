@@ -0,0 +1,106 @@
+package edu.nyu.cs.pqs.bench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+import edu.nyu.cs.pqs.AddressBook;
+import edu.nyu.cs.pqs.Contact;
+import edu.nyu.cs.pqs.OffHeapContactStore;
+
+/**
+ * HeapFootprint measures the heap retained by the same synthetic contacts held in a plain list, in
+ * an {@link AddressBook} and in an {@link OffHeapContactStore}, with the bytes the store keeps
+ * outside of the heap. The retained heap is the heap in use after collecting garbage with the
+ * contacts held, less the heap in use before they were created.
+ *
+ * <p>
+ * Options, all optional:
+ *
+ * <pre>
+ * --sizes 100000,1000000  numbers of contacts, default 100000,1000000
+ * </pre>
+ *
+ * @author Rachita
+ *
+ */
+public class HeapFootprint {
+  private static final long SEED = 2015;
+
+  private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+
+  /**
+   * prints the footprint of each holder at each size
+   *
+   * @param args
+   *          options described in the class comment
+   */
+  public static void main(String[] args) {
+    int[] sizes = { 100000, 1000000 };
+    for (int i = 0; i + 1 < args.length; i += 2) {
+      if (!args[i].equals("--sizes")) {
+        throw new IllegalArgumentException("unknown option " + args[i]);
+      }
+      String[] parts = args[i + 1].split(",");
+      sizes = new int[parts.length];
+      for (int j = 0; j < parts.length; j++) {
+        sizes[j] = Integer.parseInt(parts[j].trim());
+      }
+    }
+    HeapFootprint footprint = new HeapFootprint();
+    for (int size : sizes) {
+      footprint.measure(size);
+    }
+  }
+
+  private void measure(int size) {
+    long baseline = usedHeap();
+    List<Contact> list = new ContactGenerator(SEED).next(size);
+    // each holder is used after the heap is measured, so it can not be collected before
+    long heap = usedHeap() - baseline;
+    print("list", list.size(), heap, 0);
+    list = null;
+
+    baseline = usedHeap();
+    AddressBook book = AddressBook.createEmptyAddressBook();
+    ContactGenerator generator = new ContactGenerator(SEED);
+    for (int i = 0; i < size; i++) {
+      book.addContact(generator.next());
+    }
+    heap = usedHeap() - baseline;
+    print("addressBook", book.snapshot().size(), heap, 0);
+    book = null;
+
+    baseline = usedHeap();
+    OffHeapContactStore store = new OffHeapContactStore();
+    generator = new ContactGenerator(SEED);
+    for (int i = 0; i < size; i++) {
+      store.add(generator.next());
+    }
+    heap = usedHeap() - baseline;
+    print("offHeapStore", store.size(), heap, store.offHeapBytes());
+    store.close();
+  }
+
+  private static void print(String holder, int size, long heapBytes, long offHeapBytes) {
+    System.out.println(String.format(Locale.ROOT,
+        "%-14s %10d contacts %10.1f MB heap %7.1f B/contact %10.1f MB off heap", holder, size,
+        heapBytes / 1e6, (double) heapBytes / size, offHeapBytes / 1e6));
+  }
+
+  // heap in use once garbage settles, collecting until it stops shrinking
+  private long usedHeap() {
+    long used = Long.MAX_VALUE;
+    for (int i = 0; i < 10; i++) {
+      memory.gc();
+      long now = memory.getHeapMemoryUsage().getUsed();
+      if (now >= used) {
+        break;
+      }
+      used = now;
+    }
+    return used;
+  }
+}
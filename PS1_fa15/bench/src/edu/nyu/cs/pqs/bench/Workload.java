@@ -0,0 +1,81 @@
+package edu.nyu.cs.pqs.bench;
+
+/**
+ * Workload is one operation measured by {@link AddressBookBenchmark} at a given address book size.
+ * The runner calls {@link #setUp(int)} outside of the measurement, then calls {@link #invoke()}
+ * repeatedly, calling {@link #setUp(int)} again whenever {@link #isExhausted()} says the state
+ * prepared for the invocations has been used up.
+ *
+ * @author Rachita
+ *
+ */
+public abstract class Workload {
+  private final String name;
+  private final String parameter;
+
+  /**
+   * @param name
+   *          name of the measured operation
+   * @param parameter
+   *          describes the variant of the operation, for example the selectivity of a search
+   */
+  protected Workload(String name, String parameter) {
+    this.name = name;
+    this.parameter = parameter;
+  }
+
+  /**
+   * @return name of the measured operation
+   */
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return the variant of the operation
+   */
+  public String getParameter() {
+    return parameter;
+  }
+
+  /**
+   * prepares the state for a batch of invocations. Not measured.
+   *
+   * @param bookSize
+   *          number of contacts in the address book
+   * @throws Exception
+   *           if the state can not be prepared
+   */
+  public abstract void setUp(int bookSize) throws Exception;
+
+  /**
+   * runs the measured operation once
+   *
+   * @throws Exception
+   *           if the operation fails
+   */
+  public abstract void invoke() throws Exception;
+
+  /**
+   * @return true if {@link #setUp(int)} has to be called before the next invocation
+   */
+  public boolean isExhausted() {
+    return false;
+  }
+
+  /**
+   * @return number of contacts processed by one invocation, used to report contacts per second
+   */
+  public long contactsPerInvocation() {
+    return 1;
+  }
+
+  /**
+   * releases whatever {@link #setUp(int)} prepared. Not measured.
+   *
+   * @throws Exception
+   *           if the state can not be released
+   */
+  public void tearDown() throws Exception {
+  }
+}
@@ -1,26 +1,38 @@
 package edu.nyu.cs.pqs;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.ArrayList;
-import java.util.Scanner;
-import java.util.Vector;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
 
 /**
  * AddressBook class is used to create an Address Book. The users of the library can create an empty
  * address book, add a contact entry, remove an entry, search for a contact, save address book to
  * file and read address book from file.
  * 
+ * <p>
+ * Searches are fast because every contact is kept in trigram, field and prefix indexes, and those
+ * are paid for in heap. A million typical contacts take about 1.8 GB of heap in an address book,
+ * against about 0.4 GB for the contacts alone, mostly for the trigram postings and the prefix trie
+ * (measured with the HeapFootprint benchmark in bench). Books too large for that can be read into
+ * an {@link OffHeapContactStore}, which keeps the contacts outside the heap without any index and
+ * searches by scanning them.
+ * 
  * @author Rachita
  *
  */
 public class AddressBook {
-  private Vector<Contact> contacts;
+  private final ContactStore contacts;
+  private volatile ContactJournal journal;
+  private volatile int searchSegmentSize = ContactSearchTask.DEFAULT_SEGMENT_SIZE;
+  // null while metrics are disabled, so the hot paths only pay for one volatile read
+  private volatile AddressBookMetrics metrics;
 
   private AddressBook() {
-    contacts = new Vector<Contact>();
+    contacts = new ContactStore();
   }
 
   /**
@@ -33,45 +45,382 @@ public class AddressBook {
   }
 
   /**
-   * add a {@link Contact} to address book
+   * open an address book kept in a journal directory. The address book is recovered from the
+   * latest snapshot in the directory and the changes logged after it. From then on every add and
+   * remove is appended to a log in the directory and is on disk by the time the call returns.
+   * Concurrent writers share disk syncs, and the log is folded into a new snapshot in the
+   * background once it grows large. If the log can not be written, adds and removes throw
+   * {@link java.io.UncheckedIOException}. Contacts with a field which can not be encoded as UTF-8,
+   * such as one holding a lone surrogate, are rejected with an {@link IllegalArgumentException}.
+   * 
+   * @param directoryPath
+   *          the journal directory. Created if it does not exist.
+   * @return the recovered address book
+   * @throws IOException
+   *           throws an IOexception if the directory can not be read or holds a corrupt snapshot
+   */
+  public static AddressBook openJournaledAddressBook(String directoryPath) throws IOException {
+    AddressBook addressBook = new AddressBook();
+    addressBook.journal = ContactJournal.open(Paths.get(directoryPath), addressBook.contacts,
+        ContactJournal.DEFAULT_COMPACTION_THRESHOLD);
+    return addressBook;
+  }
+
+  /**
+   * fold the journal of an address book opened with {@link #openJournaledAddressBook(String)} into
+   * a new snapshot right away, instead of waiting for the background compaction.
+   * 
+   * @throws IOException
+   *           throws an IOexception if the snapshot can not be written
+   * @throws IllegalStateException
+   *           if the address book has no open journal
+   */
+  public void compactJournal() throws IOException {
+    requireJournal().compact();
+  }
+
+  /**
+   * write all pending changes to the journal and stop journaling. Later changes are kept in memory
+   * only.
+   * 
+   * @throws IOException
+   *           throws an IOexception if pending changes could not be written
+   * @throws IllegalStateException
+   *           if the address book has no open journal
+   */
+  public void closeJournal() throws IOException {
+    ContactJournal closing = requireJournal();
+    // writers racing with close still wait for their changes until the log is closed
+    try {
+      closing.close();
+    } finally {
+      journal = null;
+    }
+  }
+
+  private ContactJournal requireJournal() {
+    ContactJournal current = journal;
+    if (current == null) {
+      throw new IllegalStateException("address book has no open journal");
+    }
+    return current;
+  }
+
+  // with a journal, changes are only acknowledged once they are on disk
+  private void awaitJournal() {
+    ContactJournal current = journal;
+    if (current != null) {
+      current.awaitDurable();
+    }
+  }
+
+  /**
+   * add a {@link Contact} to address book. Safe to call from several threads, and never blocks
+   * concurrent searches.
    * 
    * @param contact
    *          object of class Contact
    */
   public void addContact(Contact contact) {
+    AddressBookMetrics currentMetrics = metrics;
+    long start = currentMetrics == null ? 0 : System.nanoTime();
     contacts.add(contact);
+    awaitJournal();
+    if (currentMetrics != null) {
+      currentMetrics.record(AddressBookMetrics.Operation.ADD, start, 1, 0);
+    }
+  }
+
+  /**
+   * add many contacts to the address book at once, in order, as if each was added with
+   * {@link #addContact(Contact)}. Storage is grown once for all of them and the search indexes are
+   * built for the whole batch in one pass, which makes bulk imports much faster.
+   * 
+   * @param contactsToAdd
+   *          the contacts to add
+   * @return the number of contacts added
+   */
+  public int addAll(Collection<Contact> contactsToAdd) {
+    return addAll(contactsToAdd, false);
+  }
+
+  /**
+   * add many contacts to the address book at once, like {@link #addAll(Collection)}, optionally
+   * leaving out duplicates.
+   * 
+   * @param contactsToAdd
+   *          the contacts to add
+   * @param skipDuplicates
+   *          if true, contacts equal to one already in the address book or earlier in the
+   *          collection are not added
+   * @return the number of contacts added
+   */
+  public int addAll(Collection<Contact> contactsToAdd, boolean skipDuplicates) {
+    AddressBookMetrics currentMetrics = metrics;
+    long start = currentMetrics == null ? 0 : System.nanoTime();
+    int added = contacts.addAll(contactsToAdd, skipDuplicates);
+    if (added > 0) {
+      awaitJournal();
+    }
+    if (currentMetrics != null) {
+      currentMetrics.record(AddressBookMetrics.Operation.ADD, start, added, 0);
+    }
+    return added;
   }
 
   /**
-   * Remove a contact from address book given its reference
+   * Remove a contact from address book given its reference. Safe to call from several threads, and
+   * never blocks concurrent searches.
    * 
    * @param contact
    *          object of class Contact
    */
   public void removeContact(Contact contact) {
-    contacts.remove(contact);
+    AddressBookMetrics currentMetrics = metrics;
+    long start = currentMetrics == null ? 0 : System.nanoTime();
+    boolean removed = contacts.remove(contact);
+    if (removed) {
+      awaitJournal();
+    }
+    if (currentMetrics != null) {
+      currentMetrics.record(AddressBookMetrics.Operation.REMOVE, start, removed ? 1 : 0, 0);
+    }
+  }
+
+  /**
+   * Remove several contacts from address book at once. It has the same effect as calling
+   * {@link #removeContact(Contact)} for each of them, but concurrent searches see all of the
+   * removes or none of them.
+   * 
+   * @param contactsToRemove
+   *          the contacts to be removed
+   * @return true if at least one contact was removed
+   */
+  public boolean removeAll(Collection<Contact> contactsToRemove) {
+    AddressBookMetrics currentMetrics = metrics;
+    long start = currentMetrics == null ? 0 : System.nanoTime();
+    int removed = contacts.removeAll(contactsToRemove);
+    if (removed > 0) {
+      awaitJournal();
+    }
+    if (currentMetrics != null) {
+      currentMetrics.record(AddressBookMetrics.Operation.REMOVE, start, removed, 0);
+    }
+    return removed > 0;
+  }
+
+  /**
+   * take a read only snapshot of the address book as it is now, in constant time. Nothing is
+   * copied, and later adds and removes do not change the snapshot. Long exports and reports can
+   * run against a snapshot while writers keep changing the address book.
+   * 
+   * @return the snapshot
+   */
+  public AddressBookSnapshot snapshot() {
+    return new AddressBookSnapshot(contacts.view(), searchSegmentSize, metrics);
   }
 
   /**
-   * search in all the fields of all contacts in address book, given a string
+   * start counting the calls of adds, removes, searches, loads and saves, and measuring how long
+   * they take. Metrics are recorded with striped counters, so threads do not contend on them.
+   * While metrics are disabled, which is the default, they cost the hot paths one volatile read.
+   * Pass the returned metrics to a {@link MetricsReporter} to publish them.
+   * 
+   * @return the metrics of the address book. Enabling metrics again returns the same metrics.
+   */
+  public synchronized AddressBookMetrics enableMetrics() {
+    if (metrics == null) {
+      metrics = new AddressBookMetrics();
+    }
+    return metrics;
+  }
+
+  /**
+   * stop recording metrics. Metrics recorded so far are dropped, and enabling metrics again starts
+   * from zero.
+   */
+  public synchronized void disableMetrics() {
+    metrics = null;
+  }
+
+  /**
+   * @return the metrics of the address book, or null if metrics are disabled
+   */
+  public AddressBookMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * search in all the fields of all contacts in address book, given a string. The search is case
+   * insensitive. Queries of at least {@link ContactIndex#GRAM_LENGTH} characters are answered from
+   * the trigram index, shorter ones scan the whole address book. Each contact is matched against
+   * the lower case search key it computed when it was built, so nothing is allocated per contact.
+   * The search runs against a consistent snapshot of the address book and is not blocked by
+   * concurrent writers. Large searches are spread over several threads, see
+   * {@link #setSearchSegmentSize(int)}.
    * 
    * @param searchString
    *          the string to be searched in the address book
    * @return ArrayList of all the contact entries which contain the argument string
    */
   public ArrayList<Contact> search(String searchString) {
-    ArrayList<Contact> resultList = new ArrayList<Contact>();
+    return snapshot().search(searchString);
+  }
 
-    for (Contact contact : contacts) {
-      if (contact.toString().toLowerCase().contains(searchString.toLowerCase())) {
-        resultList.add(contact);
-      }
+  /**
+   * complete what a user has typed so far to the contacts whose name, a word of whose name, or
+   * whose email address before the @ starts with it, ignoring case. Contacts come in alphabetical
+   * order of the matching name or address. Only the contacts returned are looked at, so this is
+   * fast enough to call on every keystroke.
+   * 
+   * @param prefix
+   *          the text typed so far
+   * @param limit
+   *          maximum number of contacts to return
+   * @return the first completions, each contact at most once
+   * @throws IllegalArgumentException
+   *           if the limit is negative
+   */
+  public List<Contact> complete(String prefix, int limit) {
+    return snapshot().complete(prefix, limit);
+  }
+
+  /**
+   * @return the size and estimated memory use of the index behind {@link #complete(String, int)}
+   */
+  public PrefixIndexStats getPrefixIndexStats() {
+    return contacts.view().getIndex().prefixes().stats();
+  }
+
+  /**
+   * search for the contacts which best match a string, best match first. A field equal to the
+   * string ranks highest, then a field starting with it, a word starting with it and a field
+   * containing it. Strings of at least {@value ContactRanker#MIN_FUZZY_QUERY_LENGTH} characters
+   * also match words with a typo or two. Names count more than phone numbers and email addresses,
+   * which count more than postal addresses and notes. Only one page of results is kept in memory.
+   * 
+   * @param searchString
+   *          the string to be searched in the address book
+   * @param pageSize
+   *          maximum number of contacts to return
+   * @return the first page of results
+   * @throws IllegalArgumentException
+   *           if the page size is not positive
+   */
+  public SearchPage searchRanked(String searchString, int pageSize) {
+    return searchRanked(searchString, pageSize, null);
+  }
+
+  /**
+   * get a page of the results of {@link #searchRanked(String, int)}. The page after a cursor
+   * starts with the first result ranked below the last contact of the page which returned the
+   * cursor, so contacts added or removed in between do not shift the following pages.
+   * 
+   * @param searchString
+   *          the string to be searched in the address book
+   * @param pageSize
+   *          maximum number of contacts to return
+   * @param cursor
+   *          the cursor of the previous page, or null for the first page
+   * @return the page of results
+   * @throws IllegalArgumentException
+   *           if the page size is not positive or the cursor is not a cursor of a previous page
+   */
+  public SearchPage searchRanked(String searchString, int pageSize, String cursor) {
+    return snapshot().searchRanked(searchString, pageSize, cursor);
+  }
+
+  /**
+   * find groups of contacts which probably describe the same person, even if they are not equal,
+   * for example because of a typo in the name or a differently formatted phone number. Contacts
+   * are only compared with others sharing a phone number, an email address, a similar sounding
+   * name or a similar set of name fragments, so the time taken grows about
+   * linearly with the size of the address book, and the work is spread over all processors. Uses
+   * a similarity threshold of {@value ContactDeduplicator#DEFAULT_THRESHOLD}.
+   * 
+   * @return the clusters of duplicates, in the order of their first contact, each with a
+   *         suggested merge
+   */
+  public List<DuplicateCluster> findDuplicates() {
+    return findDuplicates(ContactDeduplicator.DEFAULT_THRESHOLD);
+  }
+
+  /**
+   * find groups of contacts which probably describe the same person, like
+   * {@link #findDuplicates()}. Nothing is changed: to apply a suggestion, remove the contacts of
+   * the cluster and add its suggested merge.
+   * 
+   * @param threshold
+   *          similarity between 0 and 1 two contacts need to be considered duplicates. Equal names
+   *          with equal phone numbers score 1, equal names with different phone numbers and no
+   *          email addresses score 0.5.
+   * @return the clusters of duplicates, in the order of their first contact, each with a
+   *         suggested merge
+   * @throws IllegalArgumentException
+   *           if the threshold is not between 0 and 1
+   */
+  public List<DuplicateCluster> findDuplicates(double threshold) {
+    return snapshot().findDuplicates(threshold);
+  }
+
+  /**
+   * set how many contacts a search checks on one thread. Searches which have to check more
+   * contacts are split into segments of this size, which are scanned in parallel on the common
+   * fork/join pool. Use {@link Integer#MAX_VALUE} to always search on the calling thread.
+   * 
+   * @param segmentSize
+   *          number of contacts per segment
+   * @throws IllegalArgumentException
+   *           if the segment size is not positive
+   */
+  public void setSearchSegmentSize(int segmentSize) {
+    if (segmentSize < 1) {
+      throw new IllegalArgumentException("segment size must be positive: " + segmentSize);
     }
-    return resultList;
+    searchSegmentSize = segmentSize;
+  }
+
+  /**
+   * find the contacts with the given name, ignoring case. Runs in constant time.
+   * 
+   * @param name
+   *          the complete name to look for
+   * @return read only view of the matching contacts, in the order they were added. The view is
+   *         taken at the time of the call and does not change afterwards.
+   */
+  public Collection<Contact> findByName(String name) {
+    return snapshot().findByName(name);
+  }
+
+  /**
+   * find the contacts with the given phone number. Only the digits of phone numbers are compared,
+   * so "212-555-0101" finds "(212) 555 0101". Runs in constant time.
+   * 
+   * @param phoneNumber
+   *          the complete phone number to look for
+   * @return read only view of the matching contacts, in the order they were added. The view is
+   *         taken at the time of the call and does not change afterwards.
+   */
+  public Collection<Contact> findByPhone(String phoneNumber) {
+    return snapshot().findByPhone(phoneNumber);
+  }
+
+  /**
+   * find the contacts with the given email address, ignoring case. Runs in constant time.
+   * 
+   * @param emailAddress
+   *          the complete email address to look for
+   * @return read only view of the matching contacts, in the order they were added. The view is
+   *         taken at the time of the call and does not change afterwards.
+   */
+  public Collection<Contact> findByEmail(String emailAddress) {
+    return snapshot().findByEmail(emailAddress);
   }
 
   /**
-   * save the contents of the Address book to the file using FileWriter.
+   * save the contents of the Address book to the file. Contacts are streamed to the file one at a
+   * time from a snapshot of the address book, so concurrent writers are not blocked and memory use
+   * does not grow with the size of the address book.
    * 
    * @param filePath
    *          the file path where the contents have to be stored. Creates a new file if the file
@@ -80,65 +429,106 @@ public class AddressBook {
    *           throws an IOexception if there is some error with the file
    */
   public void saveAddressBookToFile(String filePath) throws IOException {
-    File file = new File(filePath);
-    if (!file.exists()) {
-      file.createNewFile();
-    }
-    FileWriter fileWriter;
-    BufferedWriter bufferedWriter;
+    saveAddressBookToFile(filePath, false);
+  }
 
-    fileWriter = new FileWriter(file);
-    bufferedWriter = new BufferedWriter(fileWriter);
-    bufferedWriter.write(this.toString());
-    bufferedWriter.close();
+  /**
+   * save the contents of the Address book to the file, optionally replacing the file atomically.
+   * 
+   * @param filePath
+   *          the file path where the contents have to be stored. Creates a new file if the file
+   *          doesn't exist.
+   * @param atomic
+   *          if true the contents are first written to a temporary file next to filePath and forced
+   *          to disk, and the temporary file then replaces filePath with an atomic rename. A crash
+   *          in the middle of the save leaves the old file intact. On file systems which can not
+   *          rename atomically the temporary file is moved over filePath with a plain rename
+   *          instead, and a crash during the rename may leave filePath missing, with the new
+   *          contents in a .tmp file next to it.
+   * @throws IOException
+   *           throws an IOexception if there is some error with the file
+   */
+  public void saveAddressBookToFile(String filePath, boolean atomic) throws IOException {
+    snapshot().saveToFile(filePath, atomic);
   }
 
   /**
-   * reading the address book from a given file using Scanner. It adds the contacts read from the
-   * file to the AddressBook object calling this method
+   * save the contents of the Address book to the file in the compact binary format. Unlike the
+   * text format, fields may hold any character, including ';'. The file is written to a temporary
+   * file first and then renamed, so a crash in the middle of the save leaves the old file intact.
    * 
    * @param filePath
-   *          the file path from where the contents have to be read.
+   *          the file path where the contents have to be stored. Creates a new file if the file
+   *          doesn't exist.
+   * @param withIndex
+   *          if true an index with the position of every contact is stored at the end of the file
    * @throws IOException
    *           throws an IOexception if there is some error with the file
    */
+  public void saveAddressBookToBinaryFile(String filePath, boolean withIndex) throws IOException {
+    snapshot().saveToBinaryFile(filePath, withIndex);
+  }
+
+  /**
+   * save the contents of the Address book to the file in the block compressed format. Contacts
+   * are stored in the binary format in blocks of 64 KB, each compressed with Deflate, followed by
+   * an index of the blocks. {@link CompressedAddressBookFile} reads single contacts or ranges from
+   * such a file by decompressing only the blocks holding them, and
+   * {@link #loadContactsFromFile(String)} decompresses the blocks on all available processors. The
+   * file is replaced atomically.
+   * 
+   * @param filePath
+   *          the file path where the contents have to be stored. Creates a new file if the file
+   *          doesn't exist.
+   * @throws IOException
+   *           throws an IOexception if there is some error with the file
+   */
+  public void saveAddressBookToCompressedFile(String filePath) throws IOException {
+    snapshot().saveToCompressedFile(filePath);
+  }
+
+  /**
+   * reading the address book from a given file. It adds the contacts read from the file to the
+   * AddressBook object calling this method, in the order they appear in the file. The binary
+   * format written by {@link #saveAddressBookToBinaryFile(String, boolean)}, the compressed format
+   * written by {@link #saveAddressBookToCompressedFile(String)} and the text format written by
+   * {@link #saveAddressBookToFile(String)} are accepted. Large text files are memory
+   * mapped in chunks and parsed on all available processors, and empty trailing fields may be left
+   * out of a line.
+   * To look at a few contacts of a large file without loading all of them, open it with
+   * {@link LazyAddressBookFile} instead.
+   * 
+   * @param filePath
+   *          the file path from where the contents have to be read.
+   * @throws IOException
+   *           throws an IOexception if there is some error with the file, or if a binary file is
+   *           corrupt
+   */
   public void loadContactsFromFile(String filePath) throws IOException {
-    File file = new File(filePath);
-    Scanner readFile = new Scanner(file);
-    String contact = "";
-    String[] contactFields;
-
-    while (readFile.hasNextLine()) {
-      contact = readFile.nextLine();
-      if (contact.length() > 0) {
-
-        // split on the delimiter ;
-        contactFields = contact.split(";");
-
-        // building the contact object
-        Contact.Builder builder = new Contact.Builder(contactFields[0], contactFields[1]);
-
-        // setting postal address
-        if (contactFields[2].length() > 0) {
-          builder.postalAddress(contactFields[2]);
-        }
-
-        // setting email address
-        if (contactFields[3].length() > 0) {
-          builder.emailAddress(contactFields[3]);
-        }
-
-        // setting note
-        if (contactFields[4].length() > 0) {
-          builder.note(contactFields[4]);
-        }
-
-        // adding the contact to the address book
-        Contact contactFromFile = builder.build();
-        addContact(contactFromFile);
+    AddressBookMetrics currentMetrics = metrics;
+    long start = currentMetrics == null ? 0 : System.nanoTime();
+    ContactFileReader.ContactConsumer consumer = new ContactFileReader.ContactConsumer() {
+      @Override
+      public void accept(List<Contact> contactsFromFile) {
+        // added to the store directly, so the load is recorded once, as a LOAD and not an ADD
+        contacts.addAll(contactsFromFile, false);
       }
+    };
+    Path path = Paths.get(filePath);
+    long loaded;
+    if (ContactBinaryFile.isBinaryFile(path)) {
+      loaded = ContactBinaryFile.read(path, consumer);
+    } else if (ContactBlockFile.isBlockFile(path)) {
+      loaded = ContactBlockFile.read(path, Runtime.getRuntime().availableProcessors(), consumer);
+    } else {
+      loaded = ContactFileReader.withDefaults().read(filePath, consumer);
+    }
+    if (loaded > 0) {
+      awaitJournal();
+    }
+    if (currentMetrics != null) {
+      currentMetrics.record(AddressBookMetrics.Operation.LOAD, start, loaded, 0);
     }
-    readFile.close();
   }
 
   /**
@@ -148,7 +538,11 @@ public class AddressBook {
   public int hashCode() {
     final int prime = 31;
     int result = 1;
-    result = prime * result + ((contacts == null) ? 0 : contacts.hashCode());
+    int contactsHash = 1;
+    for (Contact contact : contacts.view()) {
+      contactsHash = prime * contactsHash + contact.hashCode();
+    }
+    result = prime * result + contactsHash;
     return result;
   }
 
@@ -167,14 +561,16 @@ public class AddressBook {
       return false;
     }
 
-    // check if the field is equal
+    // check if both address books hold equal contacts in the same order
     AddressBook other = (AddressBook) obj;
-    if (contacts == null) {
-      if (other.contacts != null)
+    Iterator<Contact> iterator = contacts.view().iterator();
+    Iterator<Contact> otherIterator = other.contacts.view().iterator();
+    while (iterator.hasNext() && otherIterator.hasNext()) {
+      if (!iterator.next().equals(otherIterator.next())) {
         return false;
-    } else if (!contacts.equals(other.contacts))
-      return false;
-    return true;
+      }
+    }
+    return !iterator.hasNext() && !otherIterator.hasNext();
   }
 
   /**
@@ -182,10 +578,10 @@ public class AddressBook {
    */
   @Override
   public String toString() {
-    String resultString = "";
-    for (Contact contact : contacts) {
-      resultString += contact.toString() + "\n";
+    StringBuilder resultString = new StringBuilder();
+    for (Contact contact : contacts.view()) {
+      resultString.append(contact.toString()).append('\n');
     }
-    return resultString;
+    return resultString.toString();
   }
 }
\ No newline at end of file
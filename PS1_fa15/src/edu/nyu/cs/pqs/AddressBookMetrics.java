@@ -0,0 +1,73 @@
+package edu.nyu.cs.pqs;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * AddressBookMetrics holds the {@link OperationStats} of every operation of an address book which
+ * has metrics enabled with {@link AddressBook#enableMetrics()}. Metrics are read at any time, or
+ * published by a {@link MetricsReporter}.
+ *
+ * @author Rachita
+ *
+ */
+public final class AddressBookMetrics {
+  /**
+   * Operation is an address book operation which is measured.
+   */
+  public enum Operation {
+    /** addContact and addAll. Counts the contacts added. */
+    ADD,
+    /** removeContact and removeAll. Counts the contacts removed. */
+    REMOVE,
+    /** search. Counts the contacts found and the contacts checked. */
+    SEARCH,
+    /** loadContactsFromFile. Counts the contacts loaded. */
+    LOAD,
+    /** saving to a text or binary file. Counts the contacts saved. */
+    SAVE
+  }
+
+  private final Map<Operation, OperationStats> stats;
+
+  AddressBookMetrics() {
+    stats = new EnumMap<Operation, OperationStats>(Operation.class);
+    for (Operation operation : Operation.values()) {
+      stats.put(operation, new OperationStats(operation));
+    }
+  }
+
+  /**
+   * @param operation
+   *          the operation
+   * @return the statistics of the operation
+   */
+  public OperationStats get(Operation operation) {
+    return stats.get(operation);
+  }
+
+  /**
+   * @return the statistics of all operations
+   */
+  public Collection<OperationStats> getAll() {
+    return Collections.unmodifiableCollection(stats.values());
+  }
+
+  void record(Operation operation, long startNanos, long contactCount, long scannedCount) {
+    stats.get(operation).record(System.nanoTime() - startNanos, contactCount, scannedCount);
+  }
+
+  /**
+   * puts the statistics of each operation on a new line
+   */
+  @Override
+  public String toString() {
+    StringBuilder resultString = new StringBuilder();
+    for (OperationStats operationStats : stats.values()) {
+      resultString.append(operationStats).append('\n');
+    }
+    return resultString.toString();
+  }
+}
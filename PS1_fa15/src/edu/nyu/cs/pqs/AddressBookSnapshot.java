@@ -0,0 +1,266 @@
+package edu.nyu.cs.pqs;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * AddressBookSnapshot is a read only view of an {@link AddressBook} at one point in time, returned
+ * by {@link AddressBook#snapshot()}. Taking a snapshot copies nothing: it shares the contacts and
+ * indexes of the address book, and ignores everything added or removed after it was taken. Readers
+ * can iterate, search and save a snapshot for as long as they like without blocking writers, and
+ * any number of threads can use the same snapshot.
+ *
+ * <p>
+ * A snapshot keeps the storage of the address book at the time it was taken reachable, so long
+ * lived snapshots of a book with many removals hold on to more memory than the book itself.
+ *
+ * @author Rachita
+ *
+ */
+public final class AddressBookSnapshot implements Iterable<Contact> {
+  private final ContactStore.View view;
+  private final int searchSegmentSize;
+  // metrics of the address book the snapshot was taken of, or null if they are disabled
+  private final AddressBookMetrics metrics;
+
+  AddressBookSnapshot(ContactStore.View view, int searchSegmentSize, AddressBookMetrics metrics) {
+    this.view = view;
+    this.searchSegmentSize = searchSegmentSize;
+    this.metrics = metrics;
+  }
+
+  /**
+   * @return the number of contacts in the snapshot
+   */
+  public int size() {
+    return view.contactCount();
+  }
+
+  /**
+   * @return true if the snapshot has no contacts
+   */
+  public boolean isEmpty() {
+    return view.contactCount() == 0;
+  }
+
+  /**
+   * iterates over the contacts of the snapshot in the order they were added. The iterator is read
+   * only.
+   */
+  @Override
+  public Iterator<Contact> iterator() {
+    return view.iterator();
+  }
+
+  /**
+   * search in all the fields of all contacts of the snapshot, like
+   * {@link AddressBook#search(String)}
+   *
+   * @param searchString
+   *          the string to be searched
+   * @return all the contacts which contain the string
+   */
+  public ArrayList<Contact> search(String searchString) {
+    long start = metrics == null ? 0 : System.nanoTime();
+    String query = ContactIndex.normalize(searchString);
+    ContactIndex.Posting candidates = view.getIndex().candidates(query);
+    ArrayList<Contact> found;
+    int scanned;
+    if (candidates == null) {
+      scanned = view.slotCount();
+      found = ContactSearchTask.search(view.slots(), scanned, view.getVersion(), query,
+          searchSegmentSize);
+    } else {
+      // size must be read before the slots of the posting
+      scanned = candidates.size();
+      found = ContactSearchTask.search(candidates.slots(), scanned, view.getVersion(), query,
+          searchSegmentSize);
+    }
+    if (metrics != null) {
+      metrics.record(AddressBookMetrics.Operation.SEARCH, start, found.size(), scanned);
+    }
+    return found;
+  }
+
+  /**
+   * search for the contacts of the snapshot which best match a string, like
+   * {@link AddressBook#searchRanked(String, int, String)}
+   *
+   * @param searchString
+   *          the string to be searched
+   * @param pageSize
+   *          maximum number of contacts to return
+   * @param cursor
+   *          the cursor of the previous page, or null for the first page
+   * @return the page of results
+   * @throws IllegalArgumentException
+   *           if the page size is not positive or the cursor is not a cursor of a previous page
+   */
+  public SearchPage searchRanked(String searchString, int pageSize, String cursor) {
+    if (pageSize < 1) {
+      throw new IllegalArgumentException("page size must be positive: " + pageSize);
+    }
+    return new ContactRanker(ContactIndex.normalize(searchString)).rank(view, pageSize, cursor);
+  }
+
+  /**
+   * complete a prefix to the contacts of the snapshot, like
+   * {@link AddressBook#complete(String, int)}
+   *
+   * @param prefix
+   *          the text typed so far
+   * @param limit
+   *          maximum number of contacts to return
+   * @return the first completions, each contact at most once
+   * @throws IllegalArgumentException
+   *           if the limit is negative
+   */
+  public List<Contact> complete(String prefix, int limit) {
+    if (limit < 0) {
+      throw new IllegalArgumentException("limit must not be negative: " + limit);
+    }
+    List<Contact> completions = new ArrayList<Contact>(Math.min(limit, 64));
+    if (limit > 0) {
+      view.getIndex().prefixes().complete(ContactIndex.normalize(prefix), view.getVersion(), limit,
+          completions);
+    }
+    return completions;
+  }
+
+  /**
+   * find the contacts of the snapshot with the given name, like
+   * {@link AddressBook#findByName(String)}
+   *
+   * @param name
+   *          the complete name to look for
+   * @return read only view of the matching contacts, in the order they were added
+   */
+  public Collection<Contact> findByName(String name) {
+    return findBy(ContactIndex.Field.NAME, name);
+  }
+
+  /**
+   * find the contacts of the snapshot with the given phone number, like
+   * {@link AddressBook#findByPhone(String)}
+   *
+   * @param phoneNumber
+   *          the complete phone number to look for
+   * @return read only view of the matching contacts, in the order they were added
+   */
+  public Collection<Contact> findByPhone(String phoneNumber) {
+    return findBy(ContactIndex.Field.PHONE_NUMBER, phoneNumber);
+  }
+
+  /**
+   * find the contacts of the snapshot with the given email address, like
+   * {@link AddressBook#findByEmail(String)}
+   *
+   * @param emailAddress
+   *          the complete email address to look for
+   * @return read only view of the matching contacts, in the order they were added
+   */
+  public Collection<Contact> findByEmail(String emailAddress) {
+    return findBy(ContactIndex.Field.EMAIL_ADDRESS, emailAddress);
+  }
+
+  private Collection<Contact> findBy(ContactIndex.Field field, String value) {
+    if (value == null) {
+      return Collections.emptyList();
+    }
+    return view.getIndex().lookup(field, value).contactsVisibleIn(view.getVersion());
+  }
+
+  /**
+   * find groups of contacts of the snapshot which probably describe the same person, like
+   * {@link AddressBook#findDuplicates(double)}
+   *
+   * @param threshold
+   *          similarity between 0 and 1 two contacts need to be considered duplicates
+   * @return the clusters of duplicates, in the order of their first contact
+   * @throws IllegalArgumentException
+   *           if the threshold is not between 0 and 1
+   */
+  public List<DuplicateCluster> findDuplicates(double threshold) {
+    if (!(threshold >= 0 && threshold <= 1)) {
+      throw new IllegalArgumentException("threshold must be between 0 and 1: " + threshold);
+    }
+    Contact[] contacts = new Contact[view.contactCount()];
+    int position = 0;
+    for (Contact contact : view) {
+      contacts[position++] = contact;
+    }
+    return new ContactDeduplicator(contacts, threshold).findClusters();
+  }
+
+  /**
+   * save the contacts of the snapshot to a file in the text format of
+   * {@link AddressBook#saveAddressBookToFile(String, boolean)}
+   *
+   * @param filePath
+   *          the file path where the contents have to be stored
+   * @param atomic
+   *          if true the file is replaced atomically
+   * @throws IOException
+   *           throws an IOexception if there is some error with the file
+   */
+  public void saveToFile(String filePath, boolean atomic) throws IOException {
+    long start = metrics == null ? 0 : System.nanoTime();
+    new ContactFileWriter().write(filePath, view, atomic);
+    if (metrics != null) {
+      metrics.record(AddressBookMetrics.Operation.SAVE, start, size(), 0);
+    }
+  }
+
+  /**
+   * save the contacts of the snapshot to a file in the binary format of
+   * {@link AddressBook#saveAddressBookToBinaryFile(String, boolean)}
+   *
+   * @param filePath
+   *          the file path where the contents have to be stored
+   * @param withIndex
+   *          if true an index with the position of every contact is stored at the end of the file
+   * @throws IOException
+   *           throws an IOexception if there is some error with the file
+   */
+  public void saveToBinaryFile(String filePath, boolean withIndex) throws IOException {
+    long start = metrics == null ? 0 : System.nanoTime();
+    ContactBinaryFile.write(Paths.get(filePath), view, withIndex);
+    if (metrics != null) {
+      metrics.record(AddressBookMetrics.Operation.SAVE, start, size(), 0);
+    }
+  }
+
+  /**
+   * save the contacts of the snapshot to a file in the block compressed format of
+   * {@link AddressBook#saveAddressBookToCompressedFile(String)}
+   *
+   * @param filePath
+   *          the file path where the contents have to be stored
+   * @throws IOException
+   *           throws an IOexception if there is some error with the file
+   */
+  public void saveToCompressedFile(String filePath) throws IOException {
+    long start = metrics == null ? 0 : System.nanoTime();
+    ContactBlockFile.write(Paths.get(filePath), view);
+    if (metrics != null) {
+      metrics.record(AddressBookMetrics.Operation.SAVE, start, size(), 0);
+    }
+  }
+
+  /**
+   * puts information related to each contact on a new line, like {@link AddressBook#toString()}
+   */
+  @Override
+  public String toString() {
+    StringBuilder resultString = new StringBuilder();
+    for (Contact contact : view) {
+      resultString.append(contact.toString()).append('\n');
+    }
+    return resultString.toString();
+  }
+}
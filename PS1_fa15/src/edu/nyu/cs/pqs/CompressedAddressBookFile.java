@@ -0,0 +1,126 @@
+package edu.nyu.cs.pqs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * CompressedAddressBookFile reads single contacts or ranges of contacts from a file written by
+ * {@link AddressBook#saveAddressBookToCompressedFile(String)}, without loading the whole file.
+ * Only the blocks holding the requested contacts are read and decompressed, and the last block
+ * read is kept, so reading neighbouring contacts one by one decompresses each block once.
+ *
+ * @author Rachita
+ *
+ */
+public final class CompressedAddressBookFile implements Closeable {
+  private final FileChannel channel;
+  private final ContactBlockFile.BlockIndex index;
+  private int cachedBlock = -1;
+  private List<Contact> cachedContacts;
+
+  private CompressedAddressBookFile(FileChannel channel, ContactBlockFile.BlockIndex index) {
+    this.channel = channel;
+    this.index = index;
+  }
+
+  /**
+   * open a compressed address book file. Only its header and block index are read.
+   *
+   * @param filePath
+   *          the file to open
+   * @return the open file
+   * @throws IOException
+   *           throws an IOexception if the file can not be read or is not a compressed address
+   *           book
+   */
+  public static CompressedAddressBookFile open(String filePath) throws IOException {
+    FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+    try {
+      return new CompressedAddressBookFile(channel, ContactBlockFile.readIndex(channel));
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  /**
+   * @return the number of contacts in the file
+   */
+  public long size() {
+    return index.recordCount;
+  }
+
+  /**
+   * read one contact
+   *
+   * @param position
+   *          position of the contact in the file, starting at 0
+   * @return the contact
+   * @throws IOException
+   *           throws an IOexception if the block holding the contact can not be read or is corrupt
+   * @throws IndexOutOfBoundsException
+   *           if there is no contact at the position
+   */
+  public synchronized Contact get(long position) throws IOException {
+    checkRange(position, 1);
+    int block = index.blockOf(position);
+    return contactsOf(block).get((int) (position - index.firstRecords[block]));
+  }
+
+  /**
+   * read contacts which follow each other in the file
+   *
+   * @param from
+   *          position of the first contact, starting at 0
+   * @param count
+   *          number of contacts to read
+   * @return the contacts in file order
+   * @throws IOException
+   *           throws an IOexception if a block holding the contacts can not be read or is corrupt
+   * @throws IndexOutOfBoundsException
+   *           if the range is not inside the file
+   */
+  public synchronized List<Contact> getRange(long from, int count) throws IOException {
+    checkRange(from, count);
+    List<Contact> contacts = new ArrayList<Contact>(count);
+    long position = from;
+    while (position < from + count) {
+      int block = index.blockOf(position);
+      List<Contact> blockContacts = contactsOf(block);
+      int start = (int) (position - index.firstRecords[block]);
+      int end = (int) Math.min(blockContacts.size(), from + count - index.firstRecords[block]);
+      contacts.addAll(blockContacts.subList(start, end));
+      position += end - start;
+    }
+    return contacts;
+  }
+
+  private void checkRange(long from, int count) {
+    if (from < 0 || count < 0 || from + count > index.recordCount) {
+      throw new IndexOutOfBoundsException("contacts " + from + " to " + (from + count)
+          + " are not in a file of " + index.recordCount);
+    }
+  }
+
+  private List<Contact> contactsOf(int block) throws IOException {
+    if (block != cachedBlock) {
+      cachedContacts = ContactBlockFile.readBlock(channel, index, block);
+      cachedBlock = block;
+    }
+    return cachedContacts;
+  }
+
+  /**
+   * close the file
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    channel.close();
+    cachedContacts = null;
+  }
+}
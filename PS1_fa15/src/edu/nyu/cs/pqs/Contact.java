@@ -14,6 +14,9 @@ public class Contact {
   private String phoneNumber;
   private String emailAddress;
   private String note;
+  // contacts are immutable, so the hash code and search key are computed once
+  private final int hashCode;
+  private final String searchKey;
 
   /**
    * Builder class used to build an object of Contact class using builder pattern.
@@ -95,6 +98,8 @@ public class Contact {
     emailAddress = builder.emailAddress;
     postalAddress = builder.postalAddress;
     note = builder.note;
+    hashCode = computeHashCode();
+    searchKey = ContactIndex.normalize(toString());
   }
 
   /**
@@ -132,11 +137,23 @@ public class Contact {
     return note;
   }
 
+  /**
+   * @return the text searched by {@link AddressBook#search(String)}: all the fields in the format
+   *         of {@link #toString()}, normalized with {@link ContactIndex#normalize(String)}
+   */
+  String getSearchKey() {
+    return searchKey;
+  }
+
   /**
    * Hashcode method for this class
    */
   @Override
   public int hashCode() {
+    return hashCode;
+  }
+
+  private int computeHashCode() {
     final int prime = 31;
     int result = 1;
     result = prime * result + ((emailAddress == null) ? 0 : emailAddress.hashCode());
@@ -162,9 +179,13 @@ public class Contact {
       return false;
     }
 
-    // check if all the non empty fields are equal
+    // contacts with different hash codes can not be equal
     Contact otherContact = (Contact) obj;
+    if (hashCode != otherContact.hashCode) {
+      return false;
+    }
 
+    // check if all the non empty fields are equal
     if (emailAddress == null) {
       if (otherContact.emailAddress != null) {
         return false;
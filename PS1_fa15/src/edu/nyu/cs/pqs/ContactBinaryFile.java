@@ -0,0 +1,528 @@
+package edu.nyu.cs.pqs;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * ContactBinaryFile reads and writes the versioned binary address book format. A file starts with
+ * a fixed size header:
+ *
+ * <pre>
+ * magic        4 bytes   0x89 'P' 'Q' 'B', never the start of a UTF-8 text file
+ * version      2 bytes
+ * flags        2 bytes   bit 0 set if the file has an index block
+ * recordCount  8 bytes
+ * dataEnd      8 bytes   offset just past the last record
+ * indexOffset  8 bytes   offset of the index block, 0 if there is none
+ * checksum     8 bytes   CRC32 of all the record bytes
+ * </pre>
+ *
+ * It is followed by the records, each holding the five fields of a {@link Contact} in the order
+ * name, phone number, postal address, email address and note. A field is a varint holding its
+ * UTF-8 length plus one, followed by the UTF-8 bytes. A length of zero stands for a null field, so
+ * any character, including ';', can be stored. The optional index block holds the 8 byte offset of
+ * every record, which allows reading a single contact without reading the ones before it.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactBinaryFile {
+  /** first four bytes of every binary address book */
+  static final int MAGIC = 0x89505142;
+  /** version of the format written by this class */
+  static final short FORMAT_VERSION = 1;
+  /** size of the header in bytes */
+  static final int HEADER_SIZE = 40;
+
+  private static final short FLAG_INDEX = 1;
+  private static final int BUFFER_SIZE = 64 << 10;
+  private static final int CONTACTS_PER_BATCH = 4096;
+
+  /**
+   * Header is the decoded header of a binary address book.
+   */
+  static final class Header {
+    final short version;
+    final long recordCount;
+    final long dataEnd;
+    final long indexOffset;
+    final long checksum;
+
+    private Header(short version, long recordCount, long dataEnd, long indexOffset,
+        long checksum) {
+      this.version = version;
+      this.recordCount = recordCount;
+      this.dataEnd = dataEnd;
+      this.indexOffset = indexOffset;
+      this.checksum = checksum;
+    }
+
+    boolean hasIndex() {
+      return indexOffset != 0;
+    }
+  }
+
+  private ContactBinaryFile() {
+  }
+
+  /**
+   * checks the magic number at the start of a file
+   *
+   * @param path
+   *          the file to check
+   * @return true if the file is a binary address book
+   * @throws IOException
+   *           if the file can not be read
+   */
+  static boolean isBinaryFile(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer magic = ByteBuffer.allocate(4);
+      while (magic.hasRemaining() && channel.read(magic) >= 0) {
+        // keep reading until four bytes are there or the file ends
+      }
+      return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * reads and validates the header of a binary address book
+   *
+   * @param channel
+   *          the open file
+   * @return the header
+   * @throws IOException
+   *           if the file is not a binary address book of a supported version
+   */
+  static Header readHeader(FileChannel channel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE);
+    readFully(channel, buffer, 0);
+    buffer.flip();
+    if (buffer.getInt() != MAGIC) {
+      throw new IOException("not a binary address book");
+    }
+    short version = buffer.getShort();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("unsupported binary address book version " + version);
+    }
+    short flags = buffer.getShort();
+    long recordCount = buffer.getLong();
+    long dataEnd = buffer.getLong();
+    long indexOffset = buffer.getLong();
+    long checksum = buffer.getLong();
+    if ((flags & FLAG_INDEX) == 0) {
+      indexOffset = 0;
+    }
+    if (dataEnd < HEADER_SIZE || dataEnd > channel.size() || indexOffset < 0
+        || (indexOffset != 0 && indexOffset + recordCount * 8 > channel.size())) {
+      throw new IOException("corrupt binary address book header");
+    }
+    return new Header(version, recordCount, dataEnd, indexOffset, checksum);
+  }
+
+  /**
+   * writes contacts in the binary format. They are written to a temporary file which then replaces
+   * the target, like {@link ContactFileWriter#write(Path, boolean, ContactFileWriter.FileContents)}
+   * does, so the target never holds a partially written address book.
+   *
+   * @param path
+   *          the file to write, replaced if it exists
+   * @param contacts
+   *          the contacts to write
+   * @param withIndex
+   *          if true an index block with the offset of every record is added
+   * @throws IOException
+   *           if the file can not be written
+   */
+  static void write(Path path, final Iterable<Contact> contacts, final boolean withIndex)
+      throws IOException {
+    ContactFileWriter.write(path, true, new ContactFileWriter.FileContents() {
+      @Override
+      public void writeTo(Path temporary) throws IOException {
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+          new RecordWriter(channel).write(contacts, withIndex);
+        } finally {
+          channel.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * reads every contact of a binary address book. The checksum is checked before any contact is
+   * passed on, so a corrupt file does not leave part of its contacts behind.
+   *
+   * @param path
+   *          the file to read
+   * @param consumer
+   *          receives the contacts in batches, in file order
+   * @return the number of contacts read
+   * @throws IOException
+   *           if the file can not be read or is corrupt
+   */
+  static long read(Path path, ContactFileReader.ContactConsumer consumer) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      Header header = readHeader(channel);
+      verifyChecksum(channel, header);
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      buffer.flip();
+      long filePosition = HEADER_SIZE;
+      long contactCount = 0;
+      List<Contact> batch = new ArrayList<Contact>();
+      while (contactCount < header.recordCount) {
+        buffer.mark();
+        Contact contact;
+        try {
+          contact = decode(buffer);
+        } catch (BufferUnderflowException e) {
+          buffer.reset();
+          if (filePosition >= header.dataEnd) {
+            throw new IOException("binary address book ends in the middle of a record");
+          }
+          if (buffer.position() == 0 && buffer.limit() == buffer.capacity()) {
+            buffer = ByteBuffer.allocate(buffer.capacity() * 2).put(buffer);
+          } else {
+            buffer.compact();
+          }
+          int toRead = (int) Math.min(buffer.remaining(), header.dataEnd - filePosition);
+          buffer.limit(buffer.position() + toRead);
+          filePosition += readFully(channel, buffer, filePosition);
+          buffer.flip();
+          continue;
+        } catch (IllegalStateException e) {
+          throw new IOException("corrupt record in binary address book", e);
+        }
+        batch.add(contact);
+        contactCount++;
+        if (batch.size() == CONTACTS_PER_BATCH) {
+          consumer.accept(batch);
+          batch = new ArrayList<Contact>();
+        }
+      }
+      if (buffer.hasRemaining() || filePosition != header.dataEnd) {
+        throw new IOException("binary address book has data after the last record");
+      }
+      if (!batch.isEmpty()) {
+        consumer.accept(batch);
+      }
+      return contactCount;
+    } finally {
+      channel.close();
+    }
+  }
+
+  // compares the CRC32 of the record bytes with the one of the header
+  private static void verifyChecksum(FileChannel channel, Header header) throws IOException {
+    CRC32 checksum = new CRC32();
+    ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    long filePosition = HEADER_SIZE;
+    while (filePosition < header.dataEnd) {
+      buffer.clear();
+      buffer.limit((int) Math.min(buffer.capacity(), header.dataEnd - filePosition));
+      filePosition += readFully(channel, buffer, filePosition);
+      checksum.update(buffer.array(), 0, buffer.limit());
+    }
+    if (checksum.getValue() != header.checksum) {
+      throw new IOException("binary address book checksum mismatch");
+    }
+  }
+
+  /**
+   * reads one record at a given offset
+   *
+   * @param channel
+   *          the open file
+   * @param offset
+   *          offset of the first byte of the record
+   * @return the contact
+   * @throws IOException
+   *           if the record can not be read
+   */
+  static Contact readContactAt(FileChannel channel, long offset) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(512);
+    while (true) {
+      buffer.clear();
+      int read = channel.read(buffer, offset);
+      if (read < 0) {
+        throw new IOException("no record at offset " + offset);
+      }
+      buffer.flip();
+      try {
+        return decode(buffer);
+      } catch (BufferUnderflowException e) {
+        if (read < buffer.capacity()) {
+          throw new IOException("truncated record at offset " + offset);
+        }
+        buffer = ByteBuffer.allocate(buffer.capacity() * 4);
+      } catch (IllegalStateException e) {
+        throw new IOException("corrupt record at offset " + offset, e);
+      }
+    }
+  }
+
+  /**
+   * encodes one contact as a record, for callers which need records outside of a binary file
+   *
+   * @param contact
+   *          the contact to encode
+   * @return the record bytes
+   * @throws CharacterCodingException
+   *           if a field is not valid UTF-16, such as one holding a lone surrogate
+   */
+  static byte[] encode(Contact contact) throws CharacterCodingException {
+    CharsetEncoder encoder = ContactFileReader.CHARSET.newEncoder();
+    ByteBuffer[] fields = { bytesOf(encoder, contact.getName()),
+        bytesOf(encoder, contact.getPhoneNumber()), bytesOf(encoder, contact.getPostalAddress()),
+        bytesOf(encoder, contact.getEmailAddress()), bytesOf(encoder, contact.getNote()) };
+    int size = 0;
+    for (ByteBuffer field : fields) {
+      size += field == null ? 1 : varintSize(field.remaining() + 1) + field.remaining();
+    }
+    ByteBuffer record = ByteBuffer.allocate(size);
+    for (ByteBuffer field : fields) {
+      if (field == null) {
+        record.put((byte) 0);
+      } else {
+        writeVarint(record, field.remaining() + 1);
+        record.put(field);
+      }
+    }
+    return record.array();
+  }
+
+  // a strict encoder, unlike String.getBytes which silently writes '?' for a lone surrogate
+  private static ByteBuffer bytesOf(CharsetEncoder encoder, String field)
+      throws CharacterCodingException {
+    return field == null ? null : encoder.encode(CharBuffer.wrap(field));
+  }
+
+  private static int varintSize(int value) {
+    int size = 1;
+    while ((value & ~0x7f) != 0) {
+      value >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static void writeVarint(ByteBuffer buffer, int value) {
+    while ((value & ~0x7f) != 0) {
+      buffer.put((byte) ((value & 0x7f) | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  /**
+   * decodes one record starting at the position of the buffer, which must be a heap buffer
+   *
+   * @param buffer
+   *          the buffer holding the record
+   * @return the contact
+   * @throws BufferUnderflowException
+   *           if the buffer does not hold the complete record
+   * @throws IllegalStateException
+   *           if the record is malformed
+   */
+  static Contact decode(ByteBuffer buffer) {
+    String name = decodeField(buffer);
+    String phoneNumber = decodeField(buffer);
+    String postalAddress = decodeField(buffer);
+    String emailAddress = decodeField(buffer);
+    String note = decodeField(buffer);
+    return new Contact.Builder(name, phoneNumber).postalAddress(postalAddress)
+        .emailAddress(emailAddress).note(note).build();
+  }
+
+  private static String decodeField(ByteBuffer buffer) {
+    int lengthPlusOne = readVarint(buffer);
+    if (lengthPlusOne == 0) {
+      return null;
+    }
+    int length = lengthPlusOne - 1;
+    if (length < 0) {
+      throw new IllegalStateException("malformed field length in binary address book");
+    }
+    if (buffer.remaining() < length) {
+      throw new BufferUnderflowException();
+    }
+    String field = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length,
+        ContactFileReader.CHARSET);
+    buffer.position(buffer.position() + length);
+    return field;
+  }
+
+  private static int readVarint(ByteBuffer buffer) {
+    int value = 0;
+    for (int shift = 0; shift < 32; shift += 7) {
+      byte b = buffer.get();
+      value |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IllegalStateException("malformed varint in binary address book");
+  }
+
+  // reads until the buffer is full, failing if the file ends first
+  private static int readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    int total = 0;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + total);
+      if (read < 0) {
+        throw new IOException("unexpected end of binary address book");
+      }
+      total += read;
+    }
+    return total;
+  }
+
+  /**
+   * RecordWriter encodes records into a reusable buffer. The header is written last, once the
+   * record count and checksum are known.
+   */
+  private static final class RecordWriter {
+    private final FileChannel channel;
+    private final CharsetEncoder encoder;
+    private final ByteBuffer buffer;
+    private final CRC32 checksum;
+    private ByteBuffer field;
+    private long filePosition;
+    // record bytes go into the checksum, index bytes do not
+    private boolean inRecords;
+
+    private RecordWriter(FileChannel channel) {
+      this.channel = channel;
+      encoder = ContactFileReader.CHARSET.newEncoder();
+      buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      checksum = new CRC32();
+      field = ByteBuffer.allocate(256);
+      filePosition = HEADER_SIZE;
+      inRecords = true;
+    }
+
+    private void write(Iterable<Contact> contacts, boolean withIndex) throws IOException {
+      long[] offsets = new long[withIndex ? 1024 : 0];
+      long recordCount = 0;
+      for (Contact contact : contacts) {
+        if (withIndex) {
+          if (recordCount == offsets.length) {
+            offsets = Arrays.copyOf(offsets, offsets.length * 2);
+          }
+          offsets[(int) recordCount] = filePosition + buffer.position();
+        }
+        writeField(contact.getName());
+        writeField(contact.getPhoneNumber());
+        writeField(contact.getPostalAddress());
+        writeField(contact.getEmailAddress());
+        writeField(contact.getNote());
+        recordCount++;
+      }
+      drain();
+      long dataEnd = filePosition;
+      inRecords = false;
+
+      long indexOffset = 0;
+      if (withIndex) {
+        indexOffset = dataEnd;
+        for (int i = 0; i < recordCount; i++) {
+          ensureRemaining(8);
+          buffer.putLong(offsets[i]);
+        }
+        drain();
+      }
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putShort(FORMAT_VERSION).putShort(withIndex ? FLAG_INDEX : 0)
+          .putLong(recordCount).putLong(dataEnd).putLong(indexOffset).putLong(checksum.getValue());
+      header.flip();
+      while (header.hasRemaining()) {
+        channel.write(header, HEADER_SIZE - header.remaining());
+      }
+      channel.force(false);
+    }
+
+    private void writeField(String value) throws IOException {
+      if (value == null) {
+        ensureRemaining(1);
+        buffer.put((byte) 0);
+        return;
+      }
+      encodeToField(value);
+      int length = field.remaining();
+      ensureRemaining(5 + length);
+      writeVarint(buffer, length + 1);
+      if (length > buffer.remaining()) {
+        // fields larger than the buffer bypass it
+        drain();
+        checksum.update(field.array(), 0, field.limit());
+        while (field.hasRemaining()) {
+          filePosition += channel.write(field, filePosition);
+        }
+        return;
+      }
+      buffer.put(field);
+    }
+
+    /*
+     * Encodes a string into the reusable field buffer, which is left ready for reading. Strings
+     * which are not valid UTF-16, such as ones holding a lone surrogate, are rejected like
+     * ContactFileWriter does rather than written truncated.
+     */
+    private void encodeToField(String value) throws CharacterCodingException {
+      CharBuffer chars = CharBuffer.wrap(value);
+      while (true) {
+        field.clear();
+        encoder.reset();
+        CoderResult result = encoder.encode(chars, field, true);
+        if (result.isError()) {
+          result.throwException();
+        }
+        if (!result.isOverflow()) {
+          result = encoder.flush(field);
+        }
+        if (!result.isOverflow()) {
+          field.flip();
+          return;
+        }
+        field = ByteBuffer.allocate(field.capacity() * 2);
+        chars.rewind();
+      }
+    }
+
+    private void ensureRemaining(int bytes) throws IOException {
+      if (buffer.remaining() < Math.min(bytes, buffer.capacity())) {
+        drain();
+      }
+    }
+
+    private void drain() throws IOException {
+      buffer.flip();
+      if (inRecords) {
+        checksum.update(buffer.array(), 0, buffer.limit());
+      }
+      while (buffer.hasRemaining()) {
+        filePosition += channel.write(buffer, filePosition);
+      }
+      buffer.clear();
+    }
+  }
+}
@@ -0,0 +1,452 @@
+package edu.nyu.cs.pqs;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * ContactBlockFile reads and writes the block compressed address book format. Records, encoded as
+ * in {@link ContactBinaryFile}, are grouped into blocks of about {@link #BLOCK_SIZE} bytes, and
+ * every block is compressed with Deflate on its own. A file starts with a fixed size header:
+ *
+ * <pre>
+ * magic        4 bytes   0x89 'P' 'Q' 'Z', never the start of a UTF-8 text file
+ * version      2 bytes
+ * flags        2 bytes   unused, 0
+ * recordCount  8 bytes
+ * blockCount   4 bytes
+ * blockSize    4 bytes   uncompressed size blocks were filled up to
+ * indexOffset  8 bytes   offset of the block index
+ * </pre>
+ *
+ * It is followed by the compressed blocks and then by the block index, which has one entry per
+ * block:
+ *
+ * <pre>
+ * offset             8 bytes   offset of the compressed block
+ * compressedSize     4 bytes
+ * uncompressedSize   4 bytes
+ * firstRecord        8 bytes   number of records in the blocks before this one
+ * recordCount        4 bytes
+ * checksum           4 bytes   CRC32 of the uncompressed block
+ * </pre>
+ *
+ * A record is never split between two blocks, so any record is read by decompressing only the
+ * block holding it, and the blocks of a file can be decompressed in parallel. Every block holds at
+ * least one record, and only a block holding a single record larger than the block size is larger
+ * than it.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactBlockFile {
+  /** first four bytes of every block compressed address book */
+  static final int MAGIC = 0x8950515a;
+  /** version of the format written by this class */
+  static final short FORMAT_VERSION = 1;
+  /** size of the header in bytes */
+  static final int HEADER_SIZE = 32;
+  /** uncompressed size blocks are filled up to */
+  static final int BLOCK_SIZE = 64 << 10;
+
+  private static final int INDEX_ENTRY_SIZE = 32;
+  // the five field lengths of a record take a byte each at least
+  private static final int MIN_RECORD_SIZE = 5;
+  // Deflate never expands data more than about 1032 times
+  private static final int MAX_DEFLATE_RATIO = 1032;
+  private static final int CONTACTS_PER_BATCH = 4096;
+
+  /**
+   * BlockIndex is the decoded block index of a file, one array element per block.
+   */
+  static final class BlockIndex {
+    final long recordCount;
+    final long[] offsets;
+    final int[] compressedSizes;
+    final int[] uncompressedSizes;
+    final long[] firstRecords;
+    final int[] recordCounts;
+    final int[] checksums;
+
+    private BlockIndex(long recordCount, int blockCount) {
+      this.recordCount = recordCount;
+      offsets = new long[blockCount];
+      compressedSizes = new int[blockCount];
+      uncompressedSizes = new int[blockCount];
+      firstRecords = new long[blockCount];
+      recordCounts = new int[blockCount];
+      checksums = new int[blockCount];
+    }
+
+    int blockCount() {
+      return offsets.length;
+    }
+
+    // the block holding a record, by binary search over the first records. readIndex rejects
+    // empty blocks, so no two blocks share a first record.
+    int blockOf(long record) {
+      int block = Arrays.binarySearch(firstRecords, record);
+      return block < 0 ? -block - 2 : block;
+    }
+  }
+
+  private ContactBlockFile() {
+  }
+
+  /**
+   * checks the magic number at the start of a file
+   *
+   * @param path
+   *          the file to check
+   * @return true if the file is a block compressed address book
+   * @throws IOException
+   *           if the file can not be read
+   */
+  static boolean isBlockFile(Path path) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      ByteBuffer magic = ByteBuffer.allocate(4);
+      while (magic.hasRemaining() && channel.read(magic) >= 0) {
+        // keep reading until four bytes are there or the file ends
+      }
+      return !magic.hasRemaining() && magic.getInt(0) == MAGIC;
+    } finally {
+      channel.close();
+    }
+  }
+
+  /**
+   * writes contacts in the block compressed format. Like {@link ContactBinaryFile}, they are
+   * written to a temporary file which then replaces the target.
+   *
+   * @param path
+   *          the file to write, replaced if it exists
+   * @param contacts
+   *          the contacts to write
+   * @throws IOException
+   *           if the file can not be written
+   */
+  static void write(Path path, final Iterable<Contact> contacts) throws IOException {
+    ContactFileWriter.write(path, true, new ContactFileWriter.FileContents() {
+      @Override
+      public void writeTo(Path temporary) throws IOException {
+        FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+            StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+        try {
+          new BlockWriter(channel).write(contacts);
+        } finally {
+          channel.close();
+        }
+      }
+    });
+  }
+
+  /**
+   * reads the header and the block index of a file
+   *
+   * @param channel
+   *          the open file
+   * @return the block index
+   * @throws IOException
+   *           if the file is not a block compressed address book of a supported version
+   */
+  static BlockIndex readIndex(FileChannel channel) throws IOException {
+    ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+    readFully(channel, header, 0);
+    header.flip();
+    if (header.getInt() != MAGIC) {
+      throw new IOException("not a compressed address book");
+    }
+    short version = header.getShort();
+    if (version != FORMAT_VERSION) {
+      throw new IOException("unsupported compressed address book version " + version);
+    }
+    header.getShort();
+    long recordCount = header.getLong();
+    int blockCount = header.getInt();
+    int blockSize = header.getInt();
+    long indexOffset = header.getLong();
+    if (recordCount < 0 || blockCount < 0 || blockCount > Integer.MAX_VALUE / INDEX_ENTRY_SIZE
+        || blockSize <= 0 || blockSize > BLOCK_SIZE || indexOffset < HEADER_SIZE
+        || indexOffset + (long) blockCount * INDEX_ENTRY_SIZE != channel.size()) {
+      throw new IOException("corrupt compressed address book header");
+    }
+
+    BlockIndex index = new BlockIndex(recordCount, blockCount);
+    ByteBuffer entries = ByteBuffer.allocate(blockCount * INDEX_ENTRY_SIZE);
+    readFully(channel, entries, indexOffset);
+    entries.flip();
+    long nextRecord = 0;
+    long nextOffset = HEADER_SIZE;
+    for (int i = 0; i < blockCount; i++) {
+      index.offsets[i] = entries.getLong();
+      index.compressedSizes[i] = entries.getInt();
+      index.uncompressedSizes[i] = entries.getInt();
+      index.firstRecords[i] = entries.getLong();
+      index.recordCounts[i] = entries.getInt();
+      index.checksums[i] = entries.getInt();
+      // the sizes are checked before readBlock allocates buffers for them
+      if (index.offsets[i] != nextOffset || index.firstRecords[i] != nextRecord
+          || index.compressedSizes[i] < 0 || index.recordCounts[i] < 1
+          || index.uncompressedSizes[i] < (long) index.recordCounts[i] * MIN_RECORD_SIZE
+          || (index.uncompressedSizes[i] > blockSize && index.recordCounts[i] > 1)
+          || index.uncompressedSizes[i] > (long) index.compressedSizes[i] * MAX_DEFLATE_RATIO) {
+        throw new IOException("corrupt compressed address book index at block " + i);
+      }
+      nextOffset += index.compressedSizes[i];
+      nextRecord += index.recordCounts[i];
+    }
+    if (nextOffset != indexOffset || nextRecord != recordCount) {
+      throw new IOException("compressed address book index does not cover the file");
+    }
+    return index;
+  }
+
+  /**
+   * decompresses one block and decodes its records
+   *
+   * @param channel
+   *          the open file
+   * @param index
+   *          the block index of the file
+   * @param block
+   *          the block to read
+   * @return the contacts of the block, in file order
+   * @throws IOException
+   *           if the block can not be read or is corrupt
+   */
+  static List<Contact> readBlock(FileChannel channel, BlockIndex index, int block)
+      throws IOException {
+    ByteBuffer compressed = ByteBuffer.allocate(index.compressedSizes[block]);
+    readFully(channel, compressed, index.offsets[block]);
+    byte[] records = new byte[index.uncompressedSizes[block]];
+    Inflater inflater = new Inflater();
+    try {
+      inflater.setInput(compressed.array());
+      int inflated = 0;
+      while (inflated < records.length && !inflater.finished()) {
+        int read = inflater.inflate(records, inflated, records.length - inflated);
+        if (read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          break;
+        }
+        inflated += read;
+      }
+      if (inflated != records.length) {
+        throw new IOException("compressed address book block " + block + " is truncated");
+      }
+    } catch (DataFormatException e) {
+      throw new IOException("compressed address book block " + block + " is corrupt", e);
+    } finally {
+      inflater.end();
+    }
+    CRC32 checksum = new CRC32();
+    checksum.update(records, 0, records.length);
+    if ((int) checksum.getValue() != index.checksums[block]) {
+      throw new IOException("compressed address book block " + block + " checksum mismatch");
+    }
+
+    ByteBuffer buffer = ByteBuffer.wrap(records);
+    List<Contact> contacts = new ArrayList<Contact>(index.recordCounts[block]);
+    try {
+      for (int i = 0; i < index.recordCounts[block]; i++) {
+        contacts.add(ContactBinaryFile.decode(buffer));
+      }
+    } catch (BufferUnderflowException e) {
+      throw new IOException("compressed address book block " + block + " ends in a record", e);
+    } catch (IllegalStateException e) {
+      throw new IOException("compressed address book block " + block + " has a corrupt record", e);
+    }
+    if (buffer.hasRemaining()) {
+      throw new IOException("compressed address book block " + block + " has extra data");
+    }
+    return contacts;
+  }
+
+  /**
+   * reads every contact of a file, decompressing blocks on several threads
+   *
+   * @param path
+   *          the file to read
+   * @param parallelism
+   *          number of threads decompressing blocks, at least 1
+   * @param consumer
+   *          receives the contacts in batches, in file order, always on the calling thread
+   * @return the number of contacts read
+   * @throws IOException
+   *           if the file can not be read or is corrupt
+   */
+  static long read(Path path, int parallelism, ContactFileReader.ContactConsumer consumer)
+      throws IOException {
+    final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      final BlockIndex index = readIndex(channel);
+      List<Contact> batch = new ArrayList<Contact>();
+      if (parallelism < 2 || index.blockCount() < 2) {
+        for (int block = 0; block < index.blockCount(); block++) {
+          batch = addToBatch(batch, readBlock(channel, index, block), consumer);
+        }
+      } else {
+        // at most twice as many blocks in flight as there are threads, like ContactFileReader
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        Deque<Future<List<Contact>>> inFlight = new ArrayDeque<Future<List<Contact>>>();
+        try {
+          int nextBlock = 0;
+          while (nextBlock < index.blockCount() || !inFlight.isEmpty()) {
+            while (nextBlock < index.blockCount() && inFlight.size() < parallelism * 2) {
+              final int block = nextBlock++;
+              inFlight.addLast(executor.submit(new Callable<List<Contact>>() {
+                @Override
+                public List<Contact> call() throws IOException {
+                  return readBlock(channel, index, block);
+                }
+              }));
+            }
+            batch = addToBatch(batch, ContactFileReader.await(inFlight.removeFirst()), consumer);
+          }
+        } finally {
+          executor.shutdownNow();
+        }
+      }
+      if (!batch.isEmpty()) {
+        consumer.accept(batch);
+      }
+      return index.recordCount;
+    } finally {
+      channel.close();
+    }
+  }
+
+  // blocks hold a few hundred contacts, so they are passed on in larger batches
+  private static List<Contact> addToBatch(List<Contact> batch, List<Contact> block,
+      ContactFileReader.ContactConsumer consumer) {
+    batch.addAll(block);
+    if (batch.size() < CONTACTS_PER_BATCH) {
+      return batch;
+    }
+    consumer.accept(batch);
+    return new ArrayList<Contact>();
+  }
+
+  // reads until the buffer is full, failing if the file ends first
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    long total = 0;
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + total);
+      if (read < 0) {
+        throw new IOException("unexpected end of compressed address book");
+      }
+      total += read;
+    }
+  }
+
+  /**
+   * BlockWriter fills a block with records, compresses it once it is full and keeps the index
+   * entries in memory until the end of the file. The header is written last.
+   */
+  private static final class BlockWriter {
+    private final FileChannel channel;
+    private final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION);
+    private final CRC32 checksum = new CRC32();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int blockLength;
+    private int blockRecords;
+    private byte[] compressed = new byte[BLOCK_SIZE];
+    private ByteBuffer index = ByteBuffer.allocate(64 * INDEX_ENTRY_SIZE);
+    private long filePosition = HEADER_SIZE;
+    private long recordCount;
+    private int blockCount;
+
+    private BlockWriter(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    private void write(Iterable<Contact> contacts) throws IOException {
+      try {
+        for (Contact contact : contacts) {
+          byte[] record = ContactBinaryFile.encode(contact);
+          if (blockLength > 0 && blockLength + record.length > BLOCK_SIZE) {
+            flushBlock();
+          }
+          if (record.length > block.length) {
+            // a record larger than a block gets a block of its own
+            block = new byte[record.length];
+          }
+          System.arraycopy(record, 0, block, blockLength, record.length);
+          blockLength += record.length;
+          blockRecords++;
+        }
+        if (blockRecords > 0) {
+          flushBlock();
+        }
+      } finally {
+        deflater.end();
+      }
+
+      long indexOffset = filePosition;
+      index.flip();
+      writeFully(index, indexOffset);
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+      header.putInt(MAGIC).putShort(FORMAT_VERSION).putShort((short) 0).putLong(recordCount)
+          .putInt(blockCount).putInt(BLOCK_SIZE).putLong(indexOffset);
+      header.flip();
+      writeFully(header, 0);
+      channel.force(false);
+    }
+
+    private void flushBlock() throws IOException {
+      checksum.reset();
+      checksum.update(block, 0, blockLength);
+      deflater.reset();
+      deflater.setInput(block, 0, blockLength);
+      deflater.finish();
+      int compressedLength = 0;
+      while (!deflater.finished()) {
+        if (compressedLength == compressed.length) {
+          compressed = Arrays.copyOf(compressed, compressed.length * 2);
+        }
+        compressedLength += deflater.deflate(compressed, compressedLength,
+            compressed.length - compressedLength);
+      }
+      writeFully(ByteBuffer.wrap(compressed, 0, compressedLength), filePosition);
+
+      if (index.remaining() < INDEX_ENTRY_SIZE) {
+        index.flip();
+        index = ByteBuffer.allocate(index.capacity() * 2).put(index);
+      }
+      index.putLong(filePosition).putInt(compressedLength).putInt(blockLength)
+          .putLong(recordCount).putInt(blockRecords).putInt((int) checksum.getValue());
+      filePosition += compressedLength;
+      recordCount += blockRecords;
+      blockCount++;
+      blockLength = 0;
+      blockRecords = 0;
+      if (block.length > BLOCK_SIZE) {
+        block = new byte[BLOCK_SIZE];
+      }
+    }
+
+    private void writeFully(ByteBuffer buffer, long position) throws IOException {
+      long written = 0;
+      while (buffer.hasRemaining()) {
+        written += channel.write(buffer, position + written);
+      }
+    }
+  }
+}
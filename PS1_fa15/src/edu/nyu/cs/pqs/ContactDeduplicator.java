@@ -0,0 +1,568 @@
+package edu.nyu.cs.pqs;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * ContactDeduplicator finds clusters of contacts which probably describe the same person, without
+ * comparing every pair of contacts. Every contact gets a few blocking keys:
+ *
+ * <ul>
+ * <li>the last ten digits of its phone number</li>
+ * <li>its email address, ignoring case</li>
+ * <li>the soundex codes of the first and last word of its name</li>
+ * <li>the domain of its email address together with those soundex codes</li>
+ * <li>{@value #BANDS} locality sensitive hashes, each over {@value #ROWS} values of a MinHash
+ * signature of the character trigrams of its name. The signature has {@value #SIGNATURE_LENGTH}
+ * values, the ones not used by the bands only sharpen the similarity estimate.</li>
+ * </ul>
+ *
+ * Contacts sharing a key form a block. Within a block, every contact is compared with the next
+ * {@value #WINDOW} contacts only, so the work grows linearly with the number of contacts even when
+ * a block is large. Two contacts match when their similarity reaches the threshold. It is the
+ * average of the estimated trigram similarity of the names and, when both contacts have them, of
+ * whether their phone numbers and their email addresses are equal. Matching contacts are joined
+ * into clusters with union-find. Keys and signatures are computed, and blocks compared, in
+ * parallel on the common fork/join pool.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactDeduplicator {
+  /** default similarity two contacts need to be considered duplicates */
+  static final double DEFAULT_THRESHOLD = 0.7;
+  /** number of values of a MinHash signature */
+  static final int SIGNATURE_LENGTH = 32;
+  /** number of locality sensitive hashes per contact */
+  static final int BANDS = 4;
+  /** number of signature values hashed together into one band */
+  static final int ROWS = 4;
+  /** number of following contacts of a block every contact is compared with */
+  static final int WINDOW = 32;
+
+  private static final int KEYS_PER_CONTACT = 4 + BANDS;
+  private static final int KIND_PHONE = 1;
+  private static final int KIND_EMAIL = 2;
+  private static final int KIND_NAME = 3;
+  private static final int KIND_DOMAIN = 4;
+  private static final int KIND_BAND = 5;
+  private static final long PHONE_DIGITS_MODULUS = 10000000000L;
+  private static final int MIN_PHONE_DIGITS = 7;
+  private static final long NO_ENTRY = -1;
+  private static final int MIN_RANGE = 4096;
+  private static final int FIRST_SEED = 0x7f4a7c15;
+  private static final int SECOND_SEED = 0x2545f491;
+  // soundex digit of every letter from a to z, 0 for letters which are not coded
+  private static final String SOUNDEX_CODES = "01230120022455012623010202";
+
+  private final Contact[] contacts;
+  private final double threshold;
+  private final int[] signatures;
+  // last ten digits of the phone number, or -1 if it has too few digits
+  private final long[] phones;
+  private final long[] entries;
+
+  /**
+   * @param contacts
+   *          the contacts to look for duplicates in
+   * @param threshold
+   *          similarity between 0 and 1 two contacts need to be considered duplicates
+   */
+  ContactDeduplicator(Contact[] contacts, double threshold) {
+    this.contacts = contacts;
+    this.threshold = threshold;
+    signatures = new int[contacts.length * SIGNATURE_LENGTH];
+    phones = new long[contacts.length];
+    entries = new long[contacts.length * KEYS_PER_CONTACT];
+  }
+
+  /**
+   * @return the clusters of duplicates, ordered by the position of their first contact
+   */
+  List<DuplicateCluster> findClusters() {
+    forEachRange(contacts.length, new RangeTask() {
+      @Override
+      public void run(int task, int from, int to) {
+        computeKeys(from, to);
+      }
+    });
+    int entryCount = 0;
+    for (long entry : entries) {
+      if (entry != NO_ENTRY) {
+        entries[entryCount++] = entry;
+      }
+    }
+    Arrays.parallelSort(entries, 0, entryCount);
+
+    final int blockEntries = entryCount;
+    final Matches[] matches = new Matches[taskCount(entryCount)];
+    forEachRange(entryCount, new RangeTask() {
+      @Override
+      public void run(int task, int from, int to) {
+        matches[task] = compareBlocks(from, to, blockEntries);
+      }
+    });
+    return buildClusters(matches);
+  }
+
+  private void computeKeys(int from, int to) {
+    char[] text = new char[64];
+    for (int i = from; i < to; i++) {
+      Contact contact = contacts[i];
+      int keyBase = i * KEYS_PER_CONTACT;
+      Arrays.fill(entries, keyBase, keyBase + KEYS_PER_CONTACT, NO_ENTRY);
+      int[] signature = new int[SIGNATURE_LENGTH];
+      Arrays.fill(signature, Integer.MAX_VALUE);
+
+      String name = contact.getName() == null ? "" : contact.getName();
+      if (text.length < name.length() + 2) {
+        text = new char[name.length() * 2 + 2];
+      }
+      int length = normalizeName(name, text);
+      boolean shingled = addShingles(text, length, signature);
+      int nameCode = nameCode(text, length);
+      if (nameCode != 0) {
+        entries[keyBase + 2] = entry(KIND_NAME, nameCode, i);
+      }
+
+      String email = contact.getEmailAddress();
+      if (email != null && email.length() > 0) {
+        int at = email.lastIndexOf('@');
+        entries[keyBase + 1] = entry(KIND_EMAIL, lowerCaseHash(email, 0, email.length()), i);
+        if (at >= 0 && nameCode != 0) {
+          int domainHash = lowerCaseHash(email, at + 1, email.length());
+          entries[keyBase + 3] = entry(KIND_DOMAIN, domainHash * 31 + nameCode, i);
+        }
+      }
+
+      phones[i] = phoneDigits(contact.getPhoneNumber());
+      if (phones[i] >= 0) {
+        entries[keyBase] = entry(KIND_PHONE, Long.hashCode(phones[i]), i);
+      }
+
+      System.arraycopy(signature, 0, signatures, i * SIGNATURE_LENGTH, SIGNATURE_LENGTH);
+      if (shingled) {
+        for (int band = 0; band < BANDS; band++) {
+          int hash = band;
+          for (int row = 0; row < ROWS; row++) {
+            hash = hash * 31 + signature[band * ROWS + row];
+          }
+          entries[keyBase + 4 + band] = entry(KIND_BAND + band, hash, i);
+        }
+      }
+    }
+  }
+
+  // lower case letters and digits of a name, words separated by single spaces, with a space at
+  // both ends
+  private static int normalizeName(String name, char[] text) {
+    int length = 0;
+    text[length++] = ' ';
+    for (int i = 0; i < name.length(); i++) {
+      char c = Character.toLowerCase(name.charAt(i));
+      if (Character.isLetterOrDigit(c)) {
+        text[length++] = c;
+      } else if (text[length - 1] != ' ') {
+        text[length++] = ' ';
+      }
+    }
+    if (text[length - 1] != ' ') {
+      text[length++] = ' ';
+    }
+    return length;
+  }
+
+  /*
+   * Folds the trigrams of the text into the MinHash signature. The k-th hash of a trigram is
+   * first + k * second, built from two independent hashes of it, which is as good as k
+   * independent hashes for MinHash and much cheaper.
+   */
+  private static boolean addShingles(char[] text, int length, int[] signature) {
+    if (length < 3) {
+      return false;
+    }
+    for (int i = 0; i + 3 <= length; i++) {
+      int shingle = (text[i] * 31 + text[i + 1]) * 31 + text[i + 2];
+      int first = mix(shingle ^ FIRST_SEED);
+      int second = mix(shingle ^ SECOND_SEED) | 1;
+      for (int k = 0; k < SIGNATURE_LENGTH; k++) {
+        int value = first + k * second;
+        if (value < signature[k]) {
+          signature[k] = value;
+        }
+      }
+    }
+    return true;
+  }
+
+  // the soundex codes of the first and the last word, in sorted order, or 0 if there is no word
+  private static int nameCode(char[] text, int length) {
+    int first = 0;
+    int last = 0;
+    int wordStart = -1;
+    for (int i = 0; i < length; i++) {
+      if (text[i] == ' ') {
+        if (wordStart >= 0) {
+          int code = soundex(text, wordStart, i);
+          if (first == 0) {
+            first = code;
+          }
+          last = code;
+          wordStart = -1;
+        }
+      } else if (wordStart < 0) {
+        wordStart = i;
+      }
+    }
+    if (first == 0) {
+      return 0;
+    }
+    return Math.min(first, last) * 31 + Math.max(first, last);
+  }
+
+  /**
+   * the American soundex code of a word, packed into an int: the first character followed by three
+   * digits of four bits each
+   *
+   * @param word
+   *          lower case letters and digits of the word
+   * @param from
+   *          first character of the word
+   * @param to
+   *          position just past the word
+   * @return the code, never 0
+   */
+  static int soundex(char[] word, int from, int to) {
+    int code = word[from] & 0xff;
+    int digits = 0;
+    char previous = soundexDigit(word[from]);
+    for (int i = from + 1; i < to && digits < 3; i++) {
+      char c = word[i];
+      char digit = soundexDigit(c);
+      if (digit != '0' && digit != previous) {
+        code = code << 4 | (digit - '0');
+        digits++;
+      }
+      // h and w do not separate letters with the same code, vowels do
+      if (c != 'h' && c != 'w') {
+        previous = digit;
+      }
+    }
+    return code << 4 * (3 - digits) | 0x1000000;
+  }
+
+  private static char soundexDigit(char c) {
+    return c >= 'a' && c <= 'z' ? SOUNDEX_CODES.charAt(c - 'a') : '0';
+  }
+
+  private static int lowerCaseHash(String text, int from, int to) {
+    int hash = 0;
+    for (int i = from; i < to; i++) {
+      hash = hash * 31 + Character.toLowerCase(text.charAt(i));
+    }
+    return hash;
+  }
+
+  private static long phoneDigits(String phoneNumber) {
+    if (phoneNumber == null) {
+      return -1;
+    }
+    long digits = 0;
+    int count = 0;
+    for (int i = 0; i < phoneNumber.length(); i++) {
+      char c = phoneNumber.charAt(i);
+      if (c >= '0' && c <= '9') {
+        digits = (digits * 10 + (c - '0')) % PHONE_DIGITS_MODULUS;
+        count++;
+      }
+    }
+    return count >= MIN_PHONE_DIGITS ? digits : -1;
+  }
+
+  // the key in the high half so entries sort by key, then by position
+  private static long entry(int kind, int value, int position) {
+    return (long) mix(value * 0x9e3779b1 + kind) << 32 | position;
+  }
+
+  // the finalizer of MurmurHash3
+  private static int mix(int hash) {
+    hash ^= hash >>> 16;
+    hash *= 0x85ebca6b;
+    hash ^= hash >>> 13;
+    hash *= 0xc2b2ae35;
+    return hash ^ hash >>> 16;
+  }
+
+  // compares the contacts of the blocks which start between two entries
+  private Matches compareBlocks(int from, int to, int entryCount) {
+    Matches matches = new Matches();
+    int start = from;
+    while (start > 0 && start < entryCount && key(start) == key(start - 1)) {
+      start++;
+    }
+    while (start < to) {
+      int end = start + 1;
+      while (end < entryCount && key(end) == key(start)) {
+        end++;
+      }
+      for (int p = start; p < end; p++) {
+        int first = (int) entries[p];
+        for (int q = p + 1; q < end && q <= p + WINDOW; q++) {
+          int second = (int) entries[q];
+          double similarity = similarity(first, second, threshold);
+          if (similarity >= threshold) {
+            matches.add(first, second, (float) similarity);
+          }
+        }
+      }
+      start = end;
+    }
+    return matches;
+  }
+
+  private int key(int entry) {
+    return (int) (entries[entry] >>> 32);
+  }
+
+  /**
+   * the similarity of two contacts between 0 and 1. Phone numbers and email addresses are compared
+   * first, and the signatures only as far as needed to know whether the similarity reaches the
+   * minimum.
+   *
+   * @param first
+   *          position of the first contact
+   * @param second
+   *          position of the second contact
+   * @param minimum
+   *          the similarity of interest. Below it, any value below it may be returned.
+   * @return the similarity
+   */
+  double similarity(int first, int second, double minimum) {
+    double total = 0;
+    double weight = 1;
+    if (phones[first] >= 0 && phones[second] >= 0) {
+      weight++;
+      if (phones[first] == phones[second]) {
+        total++;
+      }
+    }
+    String firstEmail = contacts[first].getEmailAddress();
+    String secondEmail = contacts[second].getEmailAddress();
+    if (firstEmail != null && !firstEmail.isEmpty() && secondEmail != null
+        && !secondEmail.isEmpty()) {
+      weight++;
+      if (firstEmail.equalsIgnoreCase(secondEmail)) {
+        total++;
+      }
+    }
+    // rows of the signatures which must be equal to reach the minimum
+    int neededRows = (int) Math.ceil((minimum * weight - total) * SIGNATURE_LENGTH - 1e-9);
+    if (neededRows > SIGNATURE_LENGTH) {
+      return (total + 1) / weight;
+    }
+    int equalRows = 0;
+    int firstBase = first * SIGNATURE_LENGTH;
+    int secondBase = second * SIGNATURE_LENGTH;
+    for (int k = 0; k < SIGNATURE_LENGTH && equalRows + SIGNATURE_LENGTH - k >= neededRows; k++) {
+      if (signatures[firstBase + k] == signatures[secondBase + k]) {
+        equalRows++;
+      }
+    }
+    return (total + (double) equalRows / SIGNATURE_LENGTH) / weight;
+  }
+
+  private List<DuplicateCluster> buildClusters(Matches[] matches) {
+    int[] parents = new int[contacts.length];
+    for (int i = 0; i < parents.length; i++) {
+      parents[i] = i;
+    }
+    for (Matches taskMatches : matches) {
+      for (int m = 0; m < taskMatches.size; m++) {
+        int first = root(parents, (int) (taskMatches.pairs[m] >>> 32));
+        int second = root(parents, (int) taskMatches.pairs[m]);
+        // the earlier contact becomes the root, so clusters come out in order
+        if (first < second) {
+          parents[second] = first;
+        } else if (second < first) {
+          parents[first] = second;
+        }
+      }
+    }
+
+    float[] similarities = new float[contacts.length];
+    Arrays.fill(similarities, 1);
+    for (Matches taskMatches : matches) {
+      for (int m = 0; m < taskMatches.size; m++) {
+        int root = root(parents, (int) (taskMatches.pairs[m] >>> 32));
+        similarities[root] = Math.min(similarities[root], taskMatches.similarities[m]);
+      }
+    }
+
+    Map<Integer, List<Contact>> members = new HashMap<Integer, List<Contact>>();
+    List<Integer> roots = new ArrayList<Integer>();
+    for (int i = 0; i < contacts.length; i++) {
+      int root = root(parents, i);
+      if (root == i) {
+        continue;
+      }
+      List<Contact> cluster = members.get(root);
+      if (cluster == null) {
+        cluster = new ArrayList<Contact>();
+        cluster.add(contacts[root]);
+        members.put(root, cluster);
+        roots.add(root);
+      }
+      cluster.add(contacts[i]);
+    }
+
+    Collections.sort(roots);
+    List<DuplicateCluster> clusters = new ArrayList<DuplicateCluster>(roots.size());
+    for (int root : roots) {
+      List<Contact> cluster = members.get(root);
+      clusters.add(new DuplicateCluster(cluster, merge(cluster), similarities[root]));
+    }
+    return clusters;
+  }
+
+  private static int root(int[] parents, int position) {
+    while (parents[position] != position) {
+      parents[position] = parents[parents[position]];
+      position = parents[position];
+    }
+    return position;
+  }
+
+  /**
+   * suggests the contact a cluster could be merged into
+   *
+   * @param cluster
+   *          the contacts of the cluster
+   * @return a contact holding the value of every field most contacts agree on
+   */
+  static Contact merge(List<Contact> cluster) {
+    List<String> names = new ArrayList<String>(cluster.size());
+    List<String> phoneNumbers = new ArrayList<String>(cluster.size());
+    List<String> postalAddresses = new ArrayList<String>(cluster.size());
+    List<String> emailAddresses = new ArrayList<String>(cluster.size());
+    List<String> notes = new ArrayList<String>(cluster.size());
+    for (Contact contact : cluster) {
+      names.add(contact.getName());
+      phoneNumbers.add(contact.getPhoneNumber());
+      postalAddresses.add(contact.getPostalAddress());
+      emailAddresses.add(contact.getEmailAddress());
+      notes.add(contact.getNote());
+    }
+    String name = mostCommon(names, false);
+    String phoneNumber = mostCommon(phoneNumbers, true);
+    return new Contact.Builder(name == null ? cluster.get(0).getName() : name,
+        phoneNumber == null ? cluster.get(0).getPhoneNumber() : phoneNumber)
+        .postalAddress(mostCommon(postalAddresses, false))
+        .emailAddress(mostCommon(emailAddresses, false)).note(mostCommon(notes, false)).build();
+  }
+
+  /*
+   * Returns the most common non empty value, the longer one on a tie, then the first one. Values
+   * are counted by their letters and digits ignoring case, or by their digits only, and the first
+   * value of the most common kind is returned.
+   */
+  private static String mostCommon(List<String> values, boolean digitsOnly) {
+    Map<String, Integer> counts = new HashMap<String, Integer>();
+    Map<String, String> firstValues = new HashMap<String, String>();
+    String best = null;
+    int bestCount = 0;
+    for (String value : values) {
+      if (value == null || value.isEmpty()) {
+        continue;
+      }
+      String kind = comparable(value, digitsOnly);
+      Integer count = counts.get(kind);
+      int newCount = count == null ? 1 : count + 1;
+      counts.put(kind, newCount);
+      if (count == null) {
+        firstValues.put(kind, value);
+      }
+      String first = firstValues.get(kind);
+      if (newCount > bestCount || (newCount == bestCount && first.length() > best.length())) {
+        best = first;
+        bestCount = newCount;
+      }
+    }
+    return best;
+  }
+
+  private static String comparable(String value, boolean digitsOnly) {
+    StringBuilder comparable = new StringBuilder(value.length());
+    for (int i = 0; i < value.length(); i++) {
+      char c = value.charAt(i);
+      if (digitsOnly ? Character.isDigit(c) : Character.isLetterOrDigit(c)) {
+        comparable.append(Character.toLowerCase(c));
+      }
+    }
+    return comparable.length() > 0 ? comparable.toString() : value;
+  }
+
+  private static int taskCount(int count) {
+    int parallelism = ForkJoinPool.getCommonPoolParallelism();
+    if (parallelism < 2) {
+      return 1;
+    }
+    return Math.max(1, Math.min(parallelism * 4, count / MIN_RANGE));
+  }
+
+  // runs a task over equal ranges of [0, count), in parallel if the common pool has the threads
+  private static void forEachRange(int count, final RangeTask task) {
+    final int tasks = taskCount(count);
+    if (tasks == 1) {
+      task.run(0, 0, count);
+      return;
+    }
+    List<RecursiveAction> actions = new ArrayList<RecursiveAction>(tasks);
+    for (int t = 0; t < tasks; t++) {
+      final int index = t;
+      final int from = (int) ((long) count * t / tasks);
+      final int to = (int) ((long) count * (t + 1) / tasks);
+      actions.add(new RecursiveAction() {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void compute() {
+          task.run(index, from, to);
+        }
+      });
+    }
+    ForkJoinTask.invokeAll(actions);
+  }
+
+  /**
+   * RangeTask is the work done on one range of {@link ContactDeduplicator#forEachRange}.
+   */
+  private interface RangeTask {
+    void run(int task, int from, int to);
+  }
+
+  /**
+   * Matches is a growable list of matching pairs of positions and their similarities.
+   */
+  private static final class Matches {
+    private long[] pairs = new long[16];
+    private float[] similarities = new float[16];
+    private int size;
+
+    private void add(int first, int second, float similarity) {
+      if (size == pairs.length) {
+        pairs = Arrays.copyOf(pairs, size * 2);
+        similarities = Arrays.copyOf(similarities, size * 2);
+      }
+      pairs[size] = (long) first << 32 | second;
+      similarities[size] = similarity;
+      size++;
+    }
+  }
+}
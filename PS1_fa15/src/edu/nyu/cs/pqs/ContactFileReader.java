@@ -0,0 +1,286 @@
+package edu.nyu.cs.pqs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
+
+/**
+ * ContactFileReader reads the semicolon separated text format written by
+ * {@link AddressBook#saveAddressBookToFile(String)}. The file is split into chunks whose
+ * boundaries are moved to the next line break, and every chunk is memory mapped and parsed on its
+ * own thread. Chunks are handed back in file order, so contacts are added in the order they appear
+ * in the file. Files larger than 2 GB are fine since each chunk is mapped separately.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactFileReader {
+  /** charset used by the text format */
+  static final Charset CHARSET = Charset.forName("UTF-8");
+
+  /** default number of bytes parsed by one task */
+  static final int DEFAULT_CHUNK_SIZE = 32 << 20;
+
+  private static final Logger logger = Logger.getLogger(ContactFileReader.class.getName());
+
+  private static final byte FIELD_SEPARATOR = ';';
+  private static final byte LINE_SEPARATOR = '\n';
+  private static final byte CARRIAGE_RETURN = '\r';
+  private static final int FIELD_COUNT = 5;
+
+  /**
+   * ContactConsumer receives the contacts of a file, one chunk at a time and in file order.
+   */
+  interface ContactConsumer {
+    void accept(List<Contact> contacts);
+  }
+
+  private final int parallelism;
+  private final int chunkSize;
+
+  /**
+   * @param parallelism
+   *          number of threads parsing chunks, at least 1
+   * @param chunkSize
+   *          approximate number of bytes in a chunk, at least 1
+   */
+  ContactFileReader(int parallelism, int chunkSize) {
+    if (parallelism < 1 || chunkSize < 1) {
+      throw new IllegalArgumentException("parallelism and chunk size must be positive");
+    }
+    this.parallelism = parallelism;
+    this.chunkSize = chunkSize;
+  }
+
+  /**
+   * creates a reader using every available processor and the default chunk size
+   *
+   * @return the reader
+   */
+  static ContactFileReader withDefaults() {
+    return new ContactFileReader(Runtime.getRuntime().availableProcessors(), DEFAULT_CHUNK_SIZE);
+  }
+
+  /**
+   * reads all the contacts of a file and passes them to the consumer
+   *
+   * @param filePath
+   *          the file to read
+   * @param consumer
+   *          receives the contacts chunk by chunk, always on the calling thread
+   * @return the number of contacts read
+   * @throws IOException
+   *           if the file can not be read
+   */
+  long read(String filePath, ContactConsumer consumer) throws IOException {
+    long startTime = System.nanoTime();
+    long contactCount = 0;
+    FileChannel channel = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+    try {
+      List<long[]> chunks = splitIntoChunks(channel);
+      if (chunks.size() == 1 || parallelism == 1) {
+        for (long[] chunk : chunks) {
+          List<Contact> contacts = parseChunk(channel, chunk[0], chunk[1]);
+          contactCount += contacts.size();
+          consumer.accept(contacts);
+        }
+      } else {
+        contactCount = readInParallel(channel, chunks, consumer);
+      }
+    } finally {
+      channel.close();
+    }
+    long elapsedNanos = Math.max(1, System.nanoTime() - startTime);
+    logger.info(String.format("read %d contacts from %s in %d ms (%d contacts/sec)",
+        contactCount, filePath, elapsedNanos / 1000000, contactCount * 1000000000L / elapsedNanos));
+    return contactCount;
+  }
+
+  /*
+   * Keeps at most twice as many chunks in flight as there are threads, so parsed chunks waiting to
+   * be consumed do not pile up in memory.
+   */
+  private long readInParallel(final FileChannel channel, List<long[]> chunks,
+      ContactConsumer consumer) throws IOException {
+    ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+    Deque<Future<List<Contact>>> inFlight = new ArrayDeque<Future<List<Contact>>>();
+    long contactCount = 0;
+    try {
+      int nextChunk = 0;
+      while (nextChunk < chunks.size() || !inFlight.isEmpty()) {
+        while (nextChunk < chunks.size() && inFlight.size() < parallelism * 2) {
+          final long[] chunk = chunks.get(nextChunk++);
+          inFlight.addLast(executor.submit(new Callable<List<Contact>>() {
+            @Override
+            public List<Contact> call() throws IOException {
+              return parseChunk(channel, chunk[0], chunk[1]);
+            }
+          }));
+        }
+        List<Contact> contacts = await(inFlight.removeFirst());
+        contactCount += contacts.size();
+        consumer.accept(contacts);
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+    return contactCount;
+  }
+
+  // waits for a task reading a file, unwrapping the exception it failed with
+  static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("interrupted while reading contacts", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /*
+   * Returns {start, end} pairs covering the whole file. Every chunk except the last ends right
+   * after a line break, so no line is split between two chunks.
+   */
+  private List<long[]> splitIntoChunks(FileChannel channel) throws IOException {
+    long fileSize = channel.size();
+    List<long[]> chunks = new ArrayList<long[]>();
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    long start = 0;
+    while (start < fileSize) {
+      long end = Math.min(fileSize, start + chunkSize);
+      while (end < fileSize) {
+        probe.clear();
+        int read = channel.read(probe, end);
+        int newline = indexOf(probe, read, LINE_SEPARATOR);
+        if (newline >= 0) {
+          end += newline + 1;
+          break;
+        }
+        end += read;
+      }
+      chunks.add(new long[] { start, Math.min(end, fileSize) });
+      start = end;
+    }
+    return chunks;
+  }
+
+  private static int indexOf(ByteBuffer buffer, int length, byte value) {
+    for (int i = 0; i < length; i++) {
+      if (buffer.get(i) == value) {
+        return i;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * parses every line between two offsets of the file
+   *
+   * @param channel
+   *          the file
+   * @param start
+   *          offset of the first byte of the first line
+   * @param end
+   *          offset just past the last line
+   * @return the contacts in the chunk
+   * @throws IOException
+   *           if the chunk can not be mapped
+   */
+  static List<Contact> parseChunk(FileChannel channel, long start, long end) throws IOException {
+    MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, start, end - start);
+    List<Contact> contacts = new ArrayList<Contact>();
+    byte[] line = new byte[256];
+    int limit = buffer.limit();
+    int lineStart = 0;
+    while (lineStart < limit) {
+      int lineEnd = lineStart;
+      while (lineEnd < limit && buffer.get(lineEnd) != LINE_SEPARATOR) {
+        lineEnd++;
+      }
+      int length = lineEnd - lineStart;
+      if (length > line.length) {
+        line = new byte[Math.max(length, line.length * 2)];
+      }
+      buffer.position(lineStart);
+      buffer.get(line, 0, length);
+      Contact contact = parseLine(line, length);
+      if (contact != null) {
+        contacts.add(contact);
+      }
+      lineStart = lineEnd + 1;
+    }
+    return contacts;
+  }
+
+  /**
+   * parses one line of the text format without using regular expressions. Missing trailing fields
+   * are treated as empty.
+   *
+   * @param line
+   *          bytes of the line, without the line break
+   * @param length
+   *          number of valid bytes in line
+   * @return the contact, or null if the line is empty
+   */
+  static Contact parseLine(byte[] line, int length) {
+    if (length > 0 && line[length - 1] == CARRIAGE_RETURN) {
+      length--;
+    }
+    if (length == 0) {
+      return null;
+    }
+    String[] fields = new String[FIELD_COUNT];
+    int field = 0;
+    int fieldStart = 0;
+    for (int i = 0; i <= length && field < FIELD_COUNT; i++) {
+      if (i == length || line[i] == FIELD_SEPARATOR) {
+        fields[field++] = new String(line, fieldStart, i - fieldStart, CHARSET);
+        fieldStart = i + 1;
+      }
+    }
+
+    // building the contact object, name and phone number are required
+    Contact.Builder builder = new Contact.Builder(orEmpty(fields[0]), orEmpty(fields[1]));
+    if (isPresent(fields[2])) {
+      builder.postalAddress(fields[2]);
+    }
+    if (isPresent(fields[3])) {
+      builder.emailAddress(fields[3]);
+    }
+    if (isPresent(fields[4])) {
+      builder.note(fields[4]);
+    }
+    return builder.build();
+  }
+
+  private static boolean isPresent(String field) {
+    return field != null && field.length() > 0;
+  }
+
+  private static String orEmpty(String field) {
+    return field == null ? "" : field;
+  }
+}
@@ -0,0 +1,221 @@
+package edu.nyu.cs.pqs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * ContactFileWriter writes contacts in the semicolon separated text format read by
+ * {@link ContactFileReader}, one contact per line, in the same layout as
+ * {@link Contact#toString()}. Each contact is encoded straight into a fixed size buffer which is
+ * drained to a {@link FileChannel}, so memory use does not depend on the number of contacts.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactFileWriter {
+  private static final int BUFFER_SIZE = 64 << 10;
+  private static final byte FIELD_SEPARATOR = ';';
+  private static final byte LINE_SEPARATOR = '\n';
+
+  private final CharsetEncoder encoder;
+  private final ByteBuffer buffer;
+
+  ContactFileWriter() {
+    encoder = ContactFileReader.CHARSET.newEncoder();
+    buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+  }
+
+  /**
+   * writes the contacts to a file, replacing its contents
+   *
+   * @param filePath
+   *          the file to write. Created if it does not exist.
+   * @param contacts
+   *          the contacts to write
+   * @param atomic
+   *          if true the contacts are written to a temporary file in the same directory which then
+   *          replaces the target, so the target never holds a partially written address book
+   * @throws IOException
+   *           if the file can not be written
+   */
+  void write(String filePath, final Iterable<Contact> contacts, final boolean atomic)
+      throws IOException {
+    write(Paths.get(filePath), atomic, new FileContents() {
+      @Override
+      public void writeTo(Path path) throws IOException {
+        // only the temporary file of an atomic save must be on disk before the rename
+        ContactFileWriter.this.writeTo(path, contacts, atomic);
+      }
+    });
+  }
+
+  /**
+   * FileContents writes the complete contents of a file.
+   */
+  interface FileContents {
+    void writeTo(Path path) throws IOException;
+  }
+
+  /**
+   * writes a file either in place or through a temporary file which replaces the target. The
+   * temporary file is forced to disk before it is renamed, and the directory after, so the rename
+   * itself survives a crash. The temporary file takes the POSIX permissions of the target it
+   * replaces. Where the file system can not rename atomically, the target is replaced by a plain
+   * rename, and a crash during it may leave no file at the target.
+   *
+   * @param target
+   *          the file to write
+   * @param atomic
+   *          if true the contents are written to a temporary file in the same directory which then
+   *          replaces the target
+   * @param contents
+   *          writes the contents of the file
+   * @throws IOException
+   *           if the file can not be written
+   */
+  static void write(Path target, boolean atomic, FileContents contents) throws IOException {
+    if (!atomic) {
+      contents.writeTo(target);
+      return;
+    }
+    Path directory = target.toAbsolutePath().getParent();
+    Path temporary = createTemporary(directory, target.getFileName().toString());
+    try {
+      copyPermissions(target, temporary);
+      contents.writeTo(temporary);
+      try {
+        Files.move(temporary, target, StandardCopyOption.ATOMIC_MOVE,
+            StandardCopyOption.REPLACE_EXISTING);
+      } catch (AtomicMoveNotSupportedException e) {
+        Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING);
+      }
+      forceDirectory(directory);
+    } finally {
+      Files.deleteIfExists(temporary);
+    }
+  }
+
+  // unlike Files.createTempFile, which always creates an owner only file, the file gets the
+  // permissions of any new file, like a save in place would
+  private static Path createTemporary(Path directory, String name) throws IOException {
+    while (true) {
+      String suffix = Long.toHexString(ThreadLocalRandom.current().nextLong());
+      try {
+        return Files.createFile(directory.resolve(name + "." + suffix + ".tmp"));
+      } catch (FileAlreadyExistsException e) {
+        // taken by another save, try another name
+      }
+    }
+  }
+
+  private static void copyPermissions(Path target, Path temporary) throws IOException {
+    PosixFileAttributeView targetView = Files.getFileAttributeView(target,
+        PosixFileAttributeView.class);
+    if (targetView == null) {
+      return;
+    }
+    try {
+      Files.getFileAttributeView(temporary, PosixFileAttributeView.class).setPermissions(
+          targetView.readAttributes().permissions());
+    } catch (NoSuchFileException e) {
+      // a new target keeps the permissions of a new file
+    }
+  }
+
+  // makes the rename durable. Some platforms, like Windows, can not open a directory, in which
+  // case the rename is left to the file system to flush.
+  private static void forceDirectory(Path directory) {
+    try {
+      FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      // the contents are on disk, only the rename may be lost in a crash
+    }
+  }
+
+  private void writeTo(Path path, Iterable<Contact> contacts, boolean force) throws IOException {
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE,
+        StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+    try {
+      buffer.clear();
+      for (Contact contact : contacts) {
+        writeContact(channel, contact);
+      }
+      drain(channel);
+      if (force) {
+        channel.force(false);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  // same layout as Contact.toString, where missing required fields are written as "null"
+  private void writeContact(FileChannel channel, Contact contact) throws IOException {
+    writeField(channel, String.valueOf(contact.getName()));
+    writeByte(channel, FIELD_SEPARATOR);
+    writeField(channel, String.valueOf(contact.getPhoneNumber()));
+    writeByte(channel, FIELD_SEPARATOR);
+    writeField(channel, contact.getPostalAddress());
+    writeByte(channel, FIELD_SEPARATOR);
+    writeField(channel, contact.getEmailAddress());
+    writeByte(channel, FIELD_SEPARATOR);
+    writeField(channel, contact.getNote());
+    writeByte(channel, FIELD_SEPARATOR);
+    writeByte(channel, LINE_SEPARATOR);
+  }
+
+  private void writeField(FileChannel channel, String field) throws IOException {
+    if (field == null || field.isEmpty()) {
+      return;
+    }
+    CharBuffer chars = CharBuffer.wrap(field);
+    encoder.reset();
+    while (true) {
+      CoderResult result = encoder.encode(chars, buffer, true);
+      if (result.isOverflow()) {
+        drain(channel);
+      } else if (result.isUnderflow()) {
+        break;
+      } else {
+        result.throwException();
+      }
+    }
+    while (encoder.flush(buffer).isOverflow()) {
+      drain(channel);
+    }
+  }
+
+  private void writeByte(FileChannel channel, byte value) throws IOException {
+    if (!buffer.hasRemaining()) {
+      drain(channel);
+    }
+    buffer.put(value);
+  }
+
+  private void drain(FileChannel channel) throws IOException {
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      channel.write(buffer);
+    }
+    buffer.clear();
+  }
+}
@@ -0,0 +1,534 @@
+package edu.nyu.cs.pqs;
+
+import java.util.AbstractCollection;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import edu.nyu.cs.pqs.ContactStore.Slot;
+
+/**
+ * ContactIndex is an inverted index from the trigrams of a contact's normalized search text to the
+ * slots of the contacts containing them. It is used by {@link AddressBook} to answer substring
+ * searches without scanning every contact. It also maps the normalized value of each
+ * {@link Field} to the contacts holding it, for exact lookups. Postings are append only and keep
+ * the order in which contacts were added, so results come back in the same order as the address
+ * book. Removed slots stay in their postings until the {@link ContactStore} compacts, and readers
+ * skip them. Names and email local parts are also kept in a {@link ContactTrie} for completion.
+ *
+ * <p>
+ * Only one thread may add to the index at a time, but any number of threads may read it
+ * concurrently.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactIndex {
+  /** length of the grams stored in the index */
+  static final int GRAM_LENGTH = 3;
+
+  /** number of slots whose grams are sorted together by {@link #addAll(Slot[], int, int)} */
+  static final int BULK_CHUNK_SIZE = 1 << 16;
+
+  private static final Posting EMPTY_POSTING = new Posting();
+
+  /**
+   * Field is a contact field which can be looked up by exact value. Names and email addresses are
+   * compared ignoring case, phone numbers by their digits only.
+   */
+  enum Field {
+    NAME {
+      @Override
+      String valueOf(Contact contact) {
+        return contact.getName();
+      }
+    },
+    PHONE_NUMBER {
+      @Override
+      String valueOf(Contact contact) {
+        return contact.getPhoneNumber();
+      }
+
+      @Override
+      String normalizeValue(String value) {
+        StringBuilder digits = new StringBuilder(value.length());
+        for (int i = 0; i < value.length(); i++) {
+          if (Character.isDigit(value.charAt(i))) {
+            digits.append(value.charAt(i));
+          }
+        }
+        return digits.length() > 0 ? digits.toString() : normalize(value);
+      }
+    },
+    EMAIL_ADDRESS {
+      @Override
+      String valueOf(Contact contact) {
+        return contact.getEmailAddress();
+      }
+    };
+
+    abstract String valueOf(Contact contact);
+
+    String normalizeValue(String value) {
+      return normalize(value);
+    }
+
+    /**
+     * @return the normalized value of this field of the contact, or null if it is not set
+     */
+    String keyOf(Contact contact) {
+      String value = valueOf(contact);
+      return value == null ? null : normalizeValue(value);
+    }
+  }
+
+  /**
+   * Posting is an append only list of slots. Both the array and the size are volatile, and a slot
+   * is always written before the size. A reader which reads the size first gets an array holding at
+   * least that many slots, either the one the slot was written to or a larger copy of it.
+   */
+  static final class Posting {
+    private volatile Slot[] slots;
+    private volatile int size;
+
+    Posting() {
+      this(4);
+    }
+
+    /**
+     * @param capacity
+     *          number of slots to make room for before growing
+     */
+    Posting(int capacity) {
+      slots = new Slot[capacity];
+    }
+
+    // only called by the thread adding to the index
+    void append(Slot slot) {
+      int position = size;
+      Slot[] current = slots;
+      if (position == current.length) {
+        // the copy is published before the new slot, whose size is not published yet
+        current = Arrays.copyOf(current, position * 2);
+        slots = current;
+      }
+      current[position] = slot;
+      size = position + 1;
+    }
+
+    /**
+     * @return the number of slots, live or removed, in this posting
+     */
+    int size() {
+      return size;
+    }
+
+    /**
+     * @return the slots of this posting. Only the first {@link #size()} slots are valid, and size
+     *         must be read before calling this method.
+     */
+    Slot[] slots() {
+      return slots;
+    }
+
+    /**
+     * returns a read only collection of the contacts of this posting which are visible in a version
+     * of the store. Nothing is copied: the contacts are found while iterating.
+     *
+     * @param version
+     *          the version of the store
+     * @return the contacts, in the order they were added
+     */
+    Collection<Contact> contactsVisibleIn(final long version) {
+      final int count = size;
+      final Slot[] postingSlots = slots;
+      return new AbstractCollection<Contact>() {
+        @Override
+        public Iterator<Contact> iterator() {
+          return new Iterator<Contact>() {
+            private int position = advance(0);
+
+            private int advance(int from) {
+              while (from < count && !postingSlots[from].isVisibleIn(version)) {
+                from++;
+              }
+              return from;
+            }
+
+            @Override
+            public boolean hasNext() {
+              return position < count;
+            }
+
+            @Override
+            public Contact next() {
+              if (position >= count) {
+                throw new NoSuchElementException();
+              }
+              Contact contact = postingSlots[position].contact;
+              position = advance(position + 1);
+              return contact;
+            }
+
+            @Override
+            public void remove() {
+              throw new UnsupportedOperationException("result views are read only");
+            }
+          };
+        }
+
+        @Override
+        public int size() {
+          int visible = 0;
+          for (int i = 0; i < count; i++) {
+            if (postingSlots[i].isVisibleIn(version)) {
+              visible++;
+            }
+          }
+          return visible;
+        }
+      };
+    }
+  }
+
+  // keyed by the grams packed into longs, see pack
+  private final ConcurrentMap<Long, Posting> postings;
+  private final Map<Field, ConcurrentMap<String, Posting>> fieldPostings;
+  private final ContactTrie prefixes;
+
+  ContactIndex() {
+    postings = new ConcurrentHashMap<Long, Posting>();
+    fieldPostings = new EnumMap<Field, ConcurrentMap<String, Posting>>(Field.class);
+    for (Field field : Field.values()) {
+      fieldPostings.put(field, new ConcurrentHashMap<String, Posting>());
+    }
+    prefixes = new ContactTrie();
+  }
+
+  /**
+   * normalizes a string the same way for indexing and for querying
+   *
+   * @param text
+   *          the text to normalize
+   * @return lower case version of the text
+   */
+  static String normalize(String text) {
+    return text.toLowerCase();
+  }
+
+  /**
+   * add a slot to the postings of every distinct gram of its search key, of its field values and
+   * of its name and email prefixes
+   *
+   * @param slot
+   *          the slot to index
+   */
+  void add(Slot slot) {
+    // like addAll, the grams are packed into longs and sorted, so each distinct gram is looked up
+    // once without building a string for it
+    String searchKey = slot.contact.getSearchKey();
+    long[] grams = new long[Math.max(0, searchKey.length() - GRAM_LENGTH + 1)];
+    for (int i = 0; i < grams.length; i++) {
+      grams[i] = pack(searchKey, i);
+    }
+    Arrays.sort(grams);
+    for (int i = 0; i < grams.length; i++) {
+      if (i == 0 || grams[i] != grams[i - 1]) {
+        append(postings, grams[i], slot);
+      }
+    }
+    for (Field field : Field.values()) {
+      String key = field.keyOf(slot.contact);
+      if (key != null) {
+        append(fieldPostings.get(field), key, slot);
+      }
+    }
+    prefixes.add(slot);
+  }
+
+  /**
+   * add a batch of slots, in the order of the array. Instead of looking up the posting of every
+   * gram of every slot, the grams of up to {@link #BULK_CHUNK_SIZE} slots at a time are packed
+   * together with the slot's position into longs and sorted. Each distinct gram is then looked up
+   * once and gets all its slots appended in one run, in order and without duplicates.
+   *
+   * @param slots
+   *          the slots to index
+   * @param from
+   *          position of the first slot to index
+   * @param to
+   *          position after the last slot to index
+   */
+  void addAll(Slot[] slots, int from, int to) {
+    for (int start = from; start < to; start += BULK_CHUNK_SIZE) {
+      addGrams(slots, start, Math.min(to, start + BULK_CHUNK_SIZE));
+    }
+    for (int i = from; i < to; i++) {
+      for (Field field : Field.values()) {
+        String key = field.keyOf(slots[i].contact);
+        if (key != null) {
+          append(fieldPostings.get(field), key, slots[i]);
+        }
+      }
+      prefixes.add(slots[i]);
+    }
+  }
+
+  // a gram takes the upper 48 bits, the position of the slot in the chunk the lower 16
+  private void addGrams(Slot[] slots, int from, int to) {
+    int count = 0;
+    for (int i = from; i < to; i++) {
+      count += Math.max(0, slots[i].contact.getSearchKey().length() - GRAM_LENGTH + 1);
+    }
+    long[] entries = new long[count];
+    count = 0;
+    for (int i = from; i < to; i++) {
+      String key = slots[i].contact.getSearchKey();
+      for (int j = 0; j + GRAM_LENGTH <= key.length(); j++) {
+        entries[count++] = (pack(key, j) << 16) | (i - from);
+      }
+    }
+    entries = sortByGram(entries);
+    int run = 0;
+    while (run < count) {
+      long gram = entries[run] >>> 16;
+      Posting posting = posting(postings, gram);
+      int previous = -1;
+      for (; run < count && entries[run] >>> 16 == gram; run++) {
+        int position = (int) (entries[run] & 0xffff);
+        if (position != previous) {
+          posting.append(slots[from + position]);
+          previous = position;
+        }
+      }
+    }
+  }
+
+  /*
+   * Least significant byte first radix sort on the gram bits. The entries are created in position
+   * order and every pass is stable, so entries of the same gram stay in position order. Passes over
+   * a byte which is the same in every entry, like the upper byte of ASCII characters, are skipped.
+   */
+  private static long[] sortByGram(long[] entries) {
+    long[] sorted = new long[entries.length];
+    int[] starts = new int[257];
+    for (int shift = 16; shift < 64; shift += 8) {
+      Arrays.fill(starts, 0);
+      for (long entry : entries) {
+        starts[(int) (entry >>> shift & 0xff) + 1]++;
+      }
+      if (entries.length == 0
+          || starts[(int) (entries[0] >>> shift & 0xff) + 1] == entries.length) {
+        continue;
+      }
+      for (int i = 1; i < starts.length; i++) {
+        starts[i] += starts[i - 1];
+      }
+      for (long entry : entries) {
+        sorted[starts[(int) (entry >>> shift & 0xff)]++] = entry;
+      }
+      long[] swap = entries;
+      entries = sorted;
+      sorted = swap;
+    }
+    return entries;
+  }
+
+  private static <K> void append(ConcurrentMap<K, Posting> map, K key, Slot slot) {
+    posting(map, key).append(slot);
+  }
+
+  private static <K> Posting posting(ConcurrentMap<K, Posting> map, K key) {
+    Posting posting = map.get(key);
+    if (posting == null) {
+      posting = new Posting();
+      map.put(key, posting);
+    }
+    return posting;
+  }
+
+  /**
+   * returns the slots whose field has the given value, in constant time
+   *
+   * @param field
+   *          the field to look up
+   * @param value
+   *          the value, normalized by this method
+   * @return the slots, live or removed, whose field has the value
+   */
+  Posting lookup(Field field, String value) {
+    Posting posting = fieldPostings.get(field).get(field.normalizeValue(value));
+    return posting == null ? EMPTY_POSTING : posting;
+  }
+
+  /**
+   * @return the prefix tree over the names and email local parts
+   */
+  ContactTrie prefixes() {
+    return prefixes;
+  }
+
+  /**
+   * returns the smallest posting which is guaranteed to hold every contact containing the query.
+   * The caller still has to verify each candidate, since containing all the grams of the query
+   * does not mean containing the query itself.
+   *
+   * @param normalizedQuery
+   *          query which has already been normalized
+   * @return candidate slots in address book order, or null if the query is too short to be
+   *         answered from the index
+   */
+  Posting candidates(String normalizedQuery) {
+    if (normalizedQuery.length() < GRAM_LENGTH) {
+      return null;
+    }
+    Posting smallest = null;
+    for (int i = 0; i + GRAM_LENGTH <= normalizedQuery.length(); i++) {
+      Posting posting = postings.get(pack(normalizedQuery, i));
+      if (posting == null) {
+        return EMPTY_POSTING;
+      }
+      if (smallest == null || posting.size() < smallest.size()) {
+        smallest = posting;
+      }
+    }
+    return smallest;
+  }
+
+  /**
+   * returns the slots which may match the query with typos, as {@link ContactRanker} counts them.
+   * Such a contact either contains the query, or has a word of letters and digits within maxEdits
+   * typos of it. The first gram of that word is then within maxEdits typos of a prefix of the
+   * query, and its last gram of a suffix. So the candidates are the slots of
+   * {@link #candidates(String)}, and those in both a posting of a gram close to the start of the
+   * query and a posting of a gram close to its end. The caller still has to verify each.
+   *
+   * @param normalizedQuery
+   *          query of at least {@link #GRAM_LENGTH} characters which has already been normalized
+   * @param maxEdits
+   *          number of typos allowed
+   * @param limit
+   *          number of slots above which scanning every contact is cheaper
+   * @return the distinct candidate slots, or null if finding them means going through more than
+   *         limit slots
+   */
+  Slot[] typoCandidates(String normalizedQuery, int maxEdits, int limit) {
+    Posting exact = candidates(normalizedQuery);
+    List<Posting> starts = new ArrayList<Posting>();
+    List<Posting> ends = new ArrayList<Posting>();
+    starts.add(exact);
+    ends.add(exact);
+    long startSlots = exact.size();
+    long endSlots = exact.size();
+    // a gram can not be close to a prefix or suffix much longer than itself
+    int length = Math.min(normalizedQuery.length(), GRAM_LENGTH + maxEdits);
+    String start = normalizedQuery.substring(0, length);
+    String end = normalizedQuery.substring(normalizedQuery.length() - length);
+    int[][] edits = new int[GRAM_LENGTH + 1][length + 1];
+    for (Map.Entry<Long, Posting> entry : postings.entrySet()) {
+      long gram = entry.getKey();
+      if (!isWordGram(gram)) {
+        continue;
+      }
+      if (editsToPrefix(gram, start, false, edits) <= maxEdits) {
+        starts.add(entry.getValue());
+        startSlots += entry.getValue().size();
+      }
+      if (editsToPrefix(gram, end, true, edits) <= maxEdits) {
+        ends.add(entry.getValue());
+        endSlots += entry.getValue().size();
+      }
+      if (startSlots > limit && endSlots > limit) {
+        return null;
+      }
+    }
+    if (startSlots > endSlots) {
+      List<Posting> swap = starts;
+      starts = ends;
+      ends = swap;
+    }
+    Set<Slot> candidates = new HashSet<Slot>();
+    for (Posting posting : starts) {
+      addSlots(posting, candidates, null);
+    }
+    if (startSlots + endSlots > limit) {
+      // checking the other side would cost more than it saves
+      return candidates.toArray(new Slot[candidates.size()]);
+    }
+    Set<Slot> both = new HashSet<Slot>();
+    for (Posting posting : ends) {
+      addSlots(posting, both, candidates);
+    }
+    return both.toArray(new Slot[both.size()]);
+  }
+
+  // adds the slots of a posting to a set, only those in filter unless it is null
+  private static void addSlots(Posting posting, Set<Slot> slots, Set<Slot> filter) {
+    int size = posting.size();
+    Slot[] postingSlots = posting.slots();
+    for (int i = 0; i < size; i++) {
+      if (filter == null || filter.contains(postingSlots[i])) {
+        slots.add(postingSlots[i]);
+      }
+    }
+  }
+
+  private static boolean isWordGram(long gram) {
+    for (int i = 0; i < GRAM_LENGTH; i++) {
+      if (!Character.isLetterOrDigit(charAt(gram, i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /*
+   * Fewest typos, counted like ContactRanker does, turning the gram into a prefix of the query, or
+   * into a suffix when both are read from the end. edits is a table of GRAM_LENGTH + 1 rows of
+   * query.length() + 1 columns.
+   */
+  private static int editsToPrefix(long gram, String query, boolean fromEnd, int[][] edits) {
+    int length = query.length();
+    for (int j = 0; j <= length; j++) {
+      edits[0][j] = j;
+    }
+    for (int i = 1; i <= GRAM_LENGTH; i++) {
+      char c = charAt(gram, fromEnd ? GRAM_LENGTH - i : i - 1);
+      edits[i][0] = i;
+      for (int j = 1; j <= length; j++) {
+        char q = query.charAt(fromEnd ? length - j : j - 1);
+        int best = Math.min(edits[i - 1][j - 1] + (c == q ? 0 : 1),
+            Math.min(edits[i - 1][j], edits[i][j - 1]) + 1);
+        if (i > 1 && j > 1 && c == query.charAt(fromEnd ? length - j + 1 : j - 2)
+            && q == charAt(gram, fromEnd ? GRAM_LENGTH - i + 1 : i - 2)) {
+          best = Math.min(best, edits[i - 2][j - 2] + 1);
+        }
+        edits[i][j] = best;
+      }
+    }
+    int fewest = Integer.MAX_VALUE;
+    for (int j = 0; j <= length; j++) {
+      fewest = Math.min(fewest, edits[GRAM_LENGTH][j]);
+    }
+    return fewest;
+  }
+
+  // the gram of the text at a position, packed into the lower 48 bits of a long
+  private static long pack(String text, int at) {
+    return ((long) text.charAt(at) << 32) | ((long) text.charAt(at + 1) << 16)
+        | text.charAt(at + 2);
+  }
+
+  private static char charAt(long gram, int index) {
+    return (char) (gram >>> 16 * (GRAM_LENGTH - 1 - index));
+  }
+}
@@ -0,0 +1,519 @@
+package edu.nyu.cs.pqs;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * ContactJournal persists an {@link AddressBook} incrementally. The directory holds at most a few
+ * files:
+ *
+ * <pre>
+ * snapshot-N.bin   every change logged before generation N, in the binary address book format
+ * journal-N.log    changes logged in generation N, appended as they happen
+ * </pre>
+ *
+ * Each change is a frame of a 4 byte payload length, a 4 byte CRC32 of the payload and the
+ * payload, which is a type byte followed by the contact encoded by {@link ContactBinaryFile}.
+ * Changes are queued in memory while the store's write lock is held and written by a single
+ * flusher thread, which forces everything queued since its last write to disk with one fsync. This
+ * way concurrent writers share fsyncs (group commit).
+ *
+ * <p>
+ * Compaction starts a new generation, writes the state of the store at that moment as the new
+ * snapshot and deletes the files of older generations. It runs in the background once the current
+ * log grows past a threshold. Recovery loads the newest snapshot and replays the logs of its
+ * generation and later. A torn frame at the end of a log, left by a crash during a write, is cut
+ * off.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactJournal implements ContactStore.ChangeLog {
+  /** log size in bytes above which a background compaction is started */
+  static final long DEFAULT_COMPACTION_THRESHOLD = 64L << 20;
+
+  private static final Logger logger = Logger.getLogger(ContactJournal.class.getName());
+
+  private static final String SNAPSHOT_PREFIX = "snapshot-";
+  private static final String SNAPSHOT_SUFFIX = ".bin";
+  private static final String LOG_PREFIX = "journal-";
+  private static final String LOG_SUFFIX = ".log";
+  private static final byte ADD = 1;
+  private static final byte REMOVE = 2;
+  private static final int FRAME_HEADER_SIZE = 8;
+  private static final int INITIAL_BUFFER_SIZE = 64 << 10;
+
+  /**
+   * LogOpener opens the log files of a journal for appending. Tests pass their own to make the
+   * log fail.
+   */
+  interface LogOpener {
+    FileChannel open(Path path) throws IOException;
+  }
+
+  /** opens the log files on the file system */
+  static final LogOpener FILE_LOGS = new LogOpener() {
+    @Override
+    public FileChannel open(Path path) throws IOException {
+      return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+          StandardOpenOption.APPEND);
+    }
+  };
+
+  private final Path directory;
+  private final ContactStore store;
+  private final long compactionThreshold;
+  private final LogOpener logOpener;
+
+  // guards the queue of pending frames and the tickets
+  private final Object lock = new Object();
+  private ByteBuffer pending;
+  private ByteBuffer spare;
+  private long appendedTicket;
+  private long syncedTicket;
+  private IOException failure;
+  private boolean closed;
+
+  // guards the log file, held while writing to it or switching to a new one
+  private final Object ioLock = new Object();
+  private FileChannel log;
+  private long generation;
+  private long logSize;
+
+  // serializes compactions
+  private final Object compactionLock = new Object();
+  private volatile boolean compactionScheduled;
+
+  private final Thread flusher;
+  private final ExecutorService compactor;
+
+  private ContactJournal(Path directory, ContactStore store, long compactionThreshold,
+      LogOpener logOpener, long generation, FileChannel log) throws IOException {
+    this.directory = directory;
+    this.store = store;
+    this.compactionThreshold = compactionThreshold;
+    this.logOpener = logOpener;
+    this.generation = generation;
+    this.log = log;
+    this.logSize = log.size();
+    pending = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    spare = ByteBuffer.allocate(INITIAL_BUFFER_SIZE);
+    flusher = new Thread(new Runnable() {
+      @Override
+      public void run() {
+        flushLoop();
+      }
+    }, "contact-journal-flusher");
+    flusher.setDaemon(true);
+    compactor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "contact-journal-compactor");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * recovers the contents of a journal directory into an empty store, then starts logging every
+   * change of the store to the directory
+   *
+   * @param directory
+   *          the journal directory. Created if it does not exist.
+   * @param store
+   *          an empty store
+   * @param compactionThreshold
+   *          log size in bytes above which a background compaction is started
+   * @return the journal
+   * @throws IOException
+   *           if the directory can not be read or holds a corrupt snapshot
+   */
+  static ContactJournal open(Path directory, ContactStore store, long compactionThreshold)
+      throws IOException {
+    return open(directory, store, compactionThreshold, FILE_LOGS);
+  }
+
+  /**
+   * like {@link #open(Path, ContactStore, long)}, opening the log files with logOpener
+   */
+  static ContactJournal open(Path directory, final ContactStore store, long compactionThreshold,
+      LogOpener logOpener) throws IOException {
+    Files.createDirectories(directory);
+    List<Long> snapshots = generations(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX);
+    List<Long> logs = generations(directory, LOG_PREFIX, LOG_SUFFIX);
+
+    long snapshotGeneration = 0;
+    if (!snapshots.isEmpty()) {
+      snapshotGeneration = snapshots.get(snapshots.size() - 1);
+      ContactBinaryFile.read(snapshotPath(directory, snapshotGeneration),
+          new ContactFileReader.ContactConsumer() {
+            @Override
+            public void accept(List<Contact> contacts) {
+              store.addAll(contacts, false);
+            }
+          });
+    }
+
+    long currentGeneration = snapshotGeneration;
+    for (long logGeneration : logs) {
+      if (logGeneration >= snapshotGeneration) {
+        replay(logPath(directory, logGeneration), store);
+        currentGeneration = logGeneration;
+      }
+    }
+    deleteGenerationsBefore(directory, snapshotGeneration);
+
+    FileChannel log = logOpener.open(logPath(directory, currentGeneration));
+    ContactJournal journal = new ContactJournal(directory, store, compactionThreshold, logOpener,
+        currentGeneration, log);
+    store.setChangeLog(journal);
+    journal.flusher.start();
+    return journal;
+  }
+
+  @Override
+  public void added(Contact contact) {
+    append(ADD, contact);
+  }
+
+  @Override
+  public void removed(Contact contact) {
+    append(REMOVE, contact);
+  }
+
+  private void append(byte type, Contact contact) {
+    byte[] record;
+    try {
+      record = ContactBinaryFile.encode(contact);
+    } catch (CharacterCodingException e) {
+      throw new IllegalArgumentException("contact can not be encoded as UTF-8: " + contact, e);
+    }
+    CRC32 checksum = new CRC32();
+    checksum.update(type);
+    checksum.update(record);
+    synchronized (lock) {
+      if (failure != null) {
+        throw new UncheckedIOException("contact journal failed", failure);
+      }
+      if (closed) {
+        throw new IllegalStateException("contact journal is closed");
+      }
+      int frameSize = FRAME_HEADER_SIZE + 1 + record.length;
+      if (pending.remaining() < frameSize) {
+        ByteBuffer larger = ByteBuffer.allocate(Math.max(pending.capacity() * 2,
+            pending.position() + frameSize));
+        pending.flip();
+        pending = larger.put(pending);
+      }
+      pending.putInt(1 + record.length).putInt((int) checksum.getValue()).put(type).put(record);
+      appendedTicket++;
+      lock.notifyAll();
+    }
+  }
+
+  /**
+   * waits until every change logged before this call is on disk. Changes logged by other threads
+   * in the meantime are written with the same fsync.
+   *
+   * @throws UncheckedIOException
+   *           if the journal could not be written
+   */
+  void awaitDurable() {
+    synchronized (lock) {
+      long ticket = appendedTicket;
+      boolean interrupted = false;
+      while (syncedTicket < ticket && failure == null) {
+        try {
+          lock.wait();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+      if (syncedTicket < ticket) {
+        throw new UncheckedIOException("contact journal failed", failure);
+      }
+    }
+  }
+
+  private void flushLoop() {
+    while (true) {
+      synchronized (lock) {
+        while (pending.position() == 0 && !closed) {
+          try {
+            lock.wait();
+          } catch (InterruptedException e) {
+            // only close stops the flusher
+          }
+        }
+        if (pending.position() == 0) {
+          return;
+        }
+      }
+      try {
+        synchronized (ioLock) {
+          flushPending();
+        }
+      } catch (IOException e) {
+        // flushPending has already failed the journal
+        logger.log(Level.SEVERE, "could not write contact journal", e);
+        return;
+      }
+      scheduleCompactionIfNeeded();
+    }
+  }
+
+  /*
+   * Writes and forces every pending frame. Must hold ioLock. If the batch can not be written, the
+   * journal fails for good, whichever thread was flushing: the frames of the batch are lost, so no
+   * later flush may report tickets after them as durable.
+   */
+  private void flushPending() throws IOException {
+    ByteBuffer batch;
+    long batchTicket;
+    synchronized (lock) {
+      if (failure != null) {
+        throw failure;
+      }
+      if (pending.position() == 0) {
+        return;
+      }
+      batch = pending;
+      batchTicket = appendedTicket;
+      pending = spare;
+    }
+    try {
+      batch.flip();
+      while (batch.hasRemaining()) {
+        logSize += log.write(batch);
+      }
+      log.force(false);
+    } catch (IOException e) {
+      synchronized (lock) {
+        if (failure == null) {
+          failure = e;
+        }
+        batch.clear();
+        spare = batch;
+        lock.notifyAll();
+      }
+      throw e;
+    }
+    batch.clear();
+    synchronized (lock) {
+      spare = batch;
+      syncedTicket = batchTicket;
+      lock.notifyAll();
+    }
+  }
+
+  private void scheduleCompactionIfNeeded() {
+    long size;
+    synchronized (ioLock) {
+      size = logSize;
+    }
+    if (size < compactionThreshold || compactionScheduled) {
+      return;
+    }
+    compactionScheduled = true;
+    compactor.execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          compact();
+        } catch (IOException e) {
+          logger.log(Level.WARNING, "background compaction of contact journal failed", e);
+        } finally {
+          compactionScheduled = false;
+        }
+      }
+    });
+  }
+
+  /**
+   * folds the log into a new snapshot. Writers are only blocked while the journal switches to a
+   * new generation, not while the snapshot is written.
+   *
+   * @throws IOException
+   *           if the snapshot can not be written
+   */
+  void compact() throws IOException {
+    synchronized (compactionLock) {
+      final long[] newGeneration = new long[1];
+      ContactStore.View view = store.runLocked(new ContactStore.LockedAction() {
+        @Override
+        public void run() throws IOException {
+          newGeneration[0] = startNewGeneration();
+        }
+      });
+      ContactBinaryFile.write(snapshotPath(directory, newGeneration[0]), view, false);
+      deleteGenerationsBefore(directory, newGeneration[0]);
+      logger.fine("compacted contact journal into generation " + newGeneration[0]);
+    }
+  }
+
+  // writes everything pending to the current log and switches to the next generation's log
+  private long startNewGeneration() throws IOException {
+    synchronized (ioLock) {
+      flushPending();
+      FileChannel next = logOpener.open(logPath(directory, generation + 1));
+      log.close();
+      log = next;
+      logSize = next.size();
+      generation++;
+      return generation;
+    }
+  }
+
+  /**
+   * stops logging, writes everything pending and closes the log
+   *
+   * @throws IOException
+   *           if the pending changes could not be written
+   */
+  void close() throws IOException {
+    store.setChangeLog(null);
+    synchronized (lock) {
+      closed = true;
+      lock.notifyAll();
+    }
+    try {
+      flusher.join();
+      compactor.shutdown();
+      compactor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    synchronized (ioLock) {
+      log.close();
+    }
+    synchronized (lock) {
+      if (failure != null) {
+        throw failure;
+      }
+    }
+  }
+
+  /*
+   * Applies every complete frame of a log to the store. The log is cut right after the last good
+   * frame, since anything after it was never acknowledged to a writer.
+   */
+  private static void replay(Path logPath, ContactStore store) throws IOException {
+    FileChannel channel = FileChannel.open(logPath, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+    try {
+      long size = channel.size();
+      long position = 0;
+      ByteBuffer header = ByteBuffer.allocate(FRAME_HEADER_SIZE);
+      while (position + FRAME_HEADER_SIZE <= size) {
+        header.clear();
+        readFully(channel, header, position);
+        header.flip();
+        int payloadSize = header.getInt();
+        int expectedChecksum = header.getInt();
+        if (payloadSize < 1 || position + FRAME_HEADER_SIZE + payloadSize > size) {
+          break;
+        }
+        ByteBuffer payload = ByteBuffer.allocate(payloadSize);
+        readFully(channel, payload, position + FRAME_HEADER_SIZE);
+        CRC32 checksum = new CRC32();
+        checksum.update(payload.array());
+        if ((int) checksum.getValue() != expectedChecksum) {
+          break;
+        }
+        byte type = payload.get(0);
+        payload.position(1);
+        Contact contact = ContactBinaryFile.decode(payload);
+        if (type == ADD) {
+          store.add(contact);
+        } else if (type == REMOVE) {
+          store.remove(contact);
+        } else {
+          break;
+        }
+        position += FRAME_HEADER_SIZE + payloadSize;
+      }
+      if (position < size) {
+        logger.warning("cutting " + (size - position) + " bytes of torn writes from " + logPath);
+        channel.truncate(position);
+        channel.force(true);
+      }
+    } finally {
+      channel.close();
+    }
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position)
+      throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0) {
+        throw new IOException("unexpected end of contact journal");
+      }
+      position += read;
+    }
+  }
+
+  private static List<Long> generations(Path directory, String prefix, String suffix)
+      throws IOException {
+    List<Long> generations = new ArrayList<Long>();
+    DirectoryStream<Path> files = Files.newDirectoryStream(directory, prefix + "*" + suffix);
+    try {
+      for (Path file : files) {
+        String name = file.getFileName().toString();
+        try {
+          generations.add(Long.parseLong(name.substring(prefix.length(),
+              name.length() - suffix.length())));
+        } catch (NumberFormatException e) {
+          // not one of ours, for example a temporary file of an interrupted compaction
+        }
+      }
+    } finally {
+      files.close();
+    }
+    Collections.sort(generations);
+    return generations;
+  }
+
+  private static void deleteGenerationsBefore(Path directory, long generation)
+      throws IOException {
+    for (long old : generations(directory, SNAPSHOT_PREFIX, SNAPSHOT_SUFFIX)) {
+      if (old < generation) {
+        Files.deleteIfExists(snapshotPath(directory, old));
+      }
+    }
+    for (long old : generations(directory, LOG_PREFIX, LOG_SUFFIX)) {
+      if (old < generation) {
+        Files.deleteIfExists(logPath(directory, old));
+      }
+    }
+  }
+
+  private static Path snapshotPath(Path directory, long generation) {
+    return directory.resolve(SNAPSHOT_PREFIX + generation + SNAPSHOT_SUFFIX);
+  }
+
+  private static Path logPath(Path directory, long generation) {
+    return directory.resolve(LOG_PREFIX + generation + LOG_SUFFIX);
+  }
+}
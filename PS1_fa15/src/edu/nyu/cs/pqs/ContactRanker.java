@@ -0,0 +1,326 @@
+package edu.nyu.cs.pqs;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import edu.nyu.cs.pqs.ContactStore.Slot;
+
+/**
+ * ContactRanker scores how well each contact matches a query and keeps the best ones. A field
+ * which equals the query scores highest, then a field starting with it, then a word of a field
+ * starting with it, then a field containing it. Queries of at least
+ * {@link #MIN_FUZZY_QUERY_LENGTH} characters also match words within a few typos, scoring less the
+ * more edits they need. A typo is a missing, extra or wrong character, or two swapped characters.
+ * Matches in the name count more than in the phone number and email address, which count more
+ * than in the postal address and note. Ties keep address book order.
+ *
+ * <p>
+ * Only the best results of a page are held, in a heap bounded by the page size, and contacts which
+ * can not make it into the heap allocate nothing. A ranker reuses its buffers and is used by one
+ * thread only.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactRanker {
+  /** queries shorter than this only match exactly, without typos */
+  static final int MIN_FUZZY_QUERY_LENGTH = 4;
+
+  /** queries this long may have two typos, shorter ones one */
+  private static final int TWO_EDITS_QUERY_LENGTH = 8;
+
+  private static final int EXACT = 500;
+  private static final int PREFIX = 400;
+  private static final int WORD_PREFIX = 300;
+  private static final int SUBSTRING = 200;
+  private static final int FUZZY = 100;
+  private static final int PER_EDIT = 25;
+
+  private static final int NAME_WEIGHT = 30;
+  private static final int CONTACT_WEIGHT = 20;
+  private static final int OTHER_WEIGHT = 0;
+
+  // weights of name, phone number, postal address, email address and note, the order of toString
+  private static final int[] FIELD_WEIGHTS = { NAME_WEIGHT, CONTACT_WEIGHT, OTHER_WEIGHT,
+      CONTACT_WEIGHT, OTHER_WEIGHT };
+
+  // worst result first, so the head of the heap is the one to drop
+  private static final Comparator<Ranked> WORST_FIRST = new Comparator<Ranked>() {
+    @Override
+    public int compare(Ranked first, Ranked second) {
+      if (first.score != second.score) {
+        return first.score < second.score ? -1 : 1;
+      }
+      return Long.compare(second.sequence, first.sequence);
+    }
+  };
+
+  private static final class Ranked {
+    final Contact contact;
+    final int score;
+    final long sequence;
+
+    Ranked(Contact contact, int score, long sequence) {
+      this.contact = contact;
+      this.score = score;
+      this.sequence = sequence;
+    }
+  }
+
+  private final String query;
+  private final int maxEdits;
+  private int[] twoRowsBack;
+  private int[] previousRow;
+  private int[] currentRow;
+  private final int[] fieldEnds = new int[FIELD_WEIGHTS.length];
+  private final int[] fieldMatches = new int[FIELD_WEIGHTS.length];
+  // score a contact must beat to make it into a full page, typos are not tried below it
+  private int floor;
+
+  /**
+   * @param normalizedQuery
+   *          query which has already been normalized
+   */
+  ContactRanker(String normalizedQuery) {
+    query = normalizedQuery;
+    if (query.length() < MIN_FUZZY_QUERY_LENGTH) {
+      maxEdits = 0;
+    } else {
+      maxEdits = query.length() < TWO_EDITS_QUERY_LENGTH ? 1 : 2;
+    }
+    twoRowsBack = new int[query.length() + 1];
+    previousRow = new int[query.length() + 1];
+    currentRow = new int[query.length() + 1];
+  }
+
+  /**
+   * find one page of the best matches of the query in a view of the store
+   *
+   * @param view
+   *          the view to search
+   * @param pageSize
+   *          maximum number of contacts in the page
+   * @param cursor
+   *          cursor of the previous page, or null for the first page
+   * @return the page
+   * @throws IllegalArgumentException
+   *           if the cursor was not returned by a previous page
+   */
+  SearchPage rank(ContactStore.View view, int pageSize, String cursor) {
+    int afterScore = Integer.MAX_VALUE;
+    long afterSequence = -1;
+    if (cursor != null) {
+      int separator = cursor.indexOf(':');
+      try {
+        afterScore = Integer.parseInt(cursor.substring(0, Math.max(separator, 0)), 16);
+        afterSequence = Long.parseLong(cursor.substring(separator + 1), 16);
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("invalid search cursor: " + cursor, e);
+      }
+    }
+
+    Slot[] slots = view.slots();
+    int count = view.slotCount();
+    if (maxEdits == 0) {
+      ContactIndex.Posting candidates = view.getIndex().candidates(query);
+      if (candidates != null) {
+        count = candidates.size();
+        slots = candidates.slots();
+      }
+    } else {
+      // typos can match contacts which do not contain the query, so their candidates come from
+      // the grams close to the query
+      Slot[] candidates = view.getIndex().typoCandidates(query, maxEdits, count);
+      if (candidates != null) {
+        slots = candidates;
+        count = candidates.length;
+      }
+    }
+
+    // one more than the page, to know whether there is a next page
+    int capacity = pageSize == Integer.MAX_VALUE ? pageSize : pageSize + 1;
+    PriorityQueue<Ranked> best = new PriorityQueue<Ranked>(Math.min(capacity, 1024), WORST_FIRST);
+    floor = 0;
+    for (int i = 0; i < count; i++) {
+      Slot slot = slots[i];
+      // once the page is full of better matches, contacts which need typos can be skipped
+      if (!slot.isVisibleIn(view.getVersion())
+          || (!slot.contact.getSearchKey().contains(query) && (maxEdits == 0
+              || floor >= FUZZY + NAME_WEIGHT))) {
+        continue;
+      }
+      int score = score(slot.contact);
+      if (score == 0 || score > afterScore
+          || (score == afterScore && slot.addedVersion <= afterSequence)) {
+        continue;
+      }
+      if (best.size() == capacity) {
+        Ranked worst = best.peek();
+        if (score < worst.score || (score == worst.score && slot.addedVersion > worst.sequence)) {
+          continue;
+        }
+        best.poll();
+      }
+      best.add(new Ranked(slot.contact, score, slot.addedVersion));
+      if (best.size() == capacity) {
+        floor = best.peek().score;
+      }
+    }
+
+    String nextCursor = null;
+    if (best.size() == capacity) {
+      best.poll();
+      Ranked last = best.peek();
+      nextCursor = Integer.toHexString(last.score) + ":" + Long.toHexString(last.sequence);
+    }
+    List<Contact> contacts = new ArrayList<Contact>(best.size());
+    while (!best.isEmpty()) {
+      contacts.add(best.poll().contact);
+    }
+    Collections.reverse(contacts);
+    return new SearchPage(contacts, nextCursor);
+  }
+
+  /**
+   * @return the score of the best matching field of the contact, or 0 if no field matches
+   */
+  int score(Contact contact) {
+    if (query.isEmpty()) {
+      return SUBSTRING;
+    }
+    // the fields are matched in place in the lower case search key, which is laid out like
+    // toString, so one pass over the key finds the matches of all the fields
+    String key = contact.getSearchKey();
+    int end = -1;
+    for (int field = 0; field < FIELD_WEIGHTS.length; field++) {
+      end = key.indexOf(';', end + 1);
+      fieldEnds[field] = end;
+      fieldMatches[field] = 0;
+    }
+    if (end != key.length() - 1) {
+      // a field holds a ';' itself
+      return scoreFields(contact);
+    }
+    int field = 0;
+    for (int at = key.indexOf(query); at >= 0; at = key.indexOf(query, at + 1)) {
+      while (at > fieldEnds[field]) {
+        field++;
+      }
+      if (at + query.length() <= fieldEnds[field]) {
+        fieldMatches[field] = Math.max(fieldMatches[field], matchAt(key, at, fieldStart(field),
+            fieldEnds[field]));
+      }
+    }
+    int score = 0;
+    for (field = 0; field < FIELD_WEIGHTS.length; field++) {
+      int match = fieldMatches[field];
+      if (match == 0 && maxEdits > 0 && FUZZY + FIELD_WEIGHTS[field] > floor) {
+        match = fuzzyMatch(key, fieldStart(field), fieldEnds[field]);
+      }
+      if (match != 0 && !isMissing(contact, field, key)) {
+        score = Math.max(score, match + FIELD_WEIGHTS[field]);
+      }
+    }
+    return score;
+  }
+
+  private int fieldStart(int field) {
+    return field == 0 ? 0 : fieldEnds[field - 1] + 1;
+  }
+
+  // toString writes a missing name or phone number as null
+  private boolean isMissing(Contact contact, int field, String key) {
+    int start = fieldStart(field);
+    if (field > 1 || fieldEnds[field] - start != 4 || !key.startsWith("null", start)) {
+      return false;
+    }
+    return (field == 0 ? contact.getName() : contact.getPhoneNumber()) == null;
+  }
+
+  private int scoreFields(Contact contact) {
+    String[] values = { contact.getName(), contact.getPhoneNumber(), contact.getPostalAddress(),
+        contact.getEmailAddress(), contact.getNote() };
+    int score = 0;
+    for (int field = 0; field < values.length; field++) {
+      if (values[field] != null) {
+        String text = ContactIndex.normalize(values[field]);
+        int match = 0;
+        for (int at = text.indexOf(query); at >= 0; at = text.indexOf(query, at + 1)) {
+          match = Math.max(match, matchAt(text, at, 0, text.length()));
+        }
+        if (match == 0 && maxEdits > 0 && FUZZY + FIELD_WEIGHTS[field] > floor) {
+          match = fuzzyMatch(text, 0, text.length());
+        }
+        if (match != 0) {
+          score = Math.max(score, match + FIELD_WEIGHTS[field]);
+        }
+      }
+    }
+    return score;
+  }
+
+  // how the query found at a position matches the field text[from, to)
+  private int matchAt(String text, int at, int from, int to) {
+    if (at == from) {
+      return at + query.length() == to ? EXACT : PREFIX;
+    }
+    return Character.isLetterOrDigit(text.charAt(at - 1)) ? SUBSTRING : WORD_PREFIX;
+  }
+
+  // matches the query against the words of the field text[from, to) allowing typos
+  private int fuzzyMatch(String text, int from, int to) {
+    int fewestEdits = maxEdits + 1;
+    for (int start = from; start < to && fewestEdits > 0; start++) {
+      if (Character.isLetterOrDigit(text.charAt(start))) {
+        int end = start + 1;
+        while (end < to && Character.isLetterOrDigit(text.charAt(end))) {
+          end++;
+        }
+        fewestEdits = Math.min(fewestEdits, distance(text, start, end));
+        start = end;
+      }
+    }
+    return fewestEdits <= maxEdits ? FUZZY - PER_EDIT * fewestEdits : 0;
+  }
+
+  /*
+   * Edit distance between the query and the word text[start, end), counting an insertion, a
+   * deletion, a substitution or a swap of two neighbouring characters as one edit. Gives up with
+   * maxEdits + 1 as soon as the distance is known to be larger than maxEdits.
+   */
+  private int distance(String text, int start, int end) {
+    int length = query.length();
+    if (Math.abs((end - start) - length) > maxEdits) {
+      return maxEdits + 1;
+    }
+    for (int j = 0; j <= length; j++) {
+      previousRow[j] = j;
+    }
+    for (int i = start; i < end; i++) {
+      char c = text.charAt(i);
+      currentRow[0] = i - start + 1;
+      int rowMinimum = currentRow[0];
+      for (int j = 1; j <= length; j++) {
+        int edits = Math.min(previousRow[j - 1] + (query.charAt(j - 1) == c ? 0 : 1),
+            Math.min(previousRow[j], currentRow[j - 1]) + 1);
+        if (i > start && j > 1 && query.charAt(j - 2) == c
+            && query.charAt(j - 1) == text.charAt(i - 1)) {
+          edits = Math.min(edits, twoRowsBack[j - 2] + 1);
+        }
+        currentRow[j] = edits;
+        rowMinimum = Math.min(rowMinimum, edits);
+      }
+      if (rowMinimum > maxEdits) {
+        return maxEdits + 1;
+      }
+      int[] row = twoRowsBack;
+      twoRowsBack = previousRow;
+      previousRow = currentRow;
+      currentRow = row;
+    }
+    return previousRow[length];
+  }
+}
@@ -0,0 +1,112 @@
+package edu.nyu.cs.pqs;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import edu.nyu.cs.pqs.ContactStore.Slot;
+
+/**
+ * ContactSearchTask scans an array of slots for contacts containing a query. The slots are split
+ * into fixed segments which are scanned in parallel on the common fork/join pool. Each segment
+ * fills its own result list, and the lists are joined in segment order, so the result keeps the
+ * order of the slots.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactSearchTask extends RecursiveAction {
+  private static final long serialVersionUID = 1L;
+
+  /** default number of slots per segment, below which searches run on the calling thread */
+  static final int DEFAULT_SEGMENT_SIZE = 1 << 15;
+
+  private final Slot[] slots;
+  private final int count;
+  private final long version;
+  private final String query;
+  private final int segmentSize;
+  private final List<List<Contact>> results;
+  private final int firstSegment;
+  private final int lastSegment;
+
+  private ContactSearchTask(Slot[] slots, int count, long version, String query, int segmentSize,
+      List<List<Contact>> results, int firstSegment, int lastSegment) {
+    this.slots = slots;
+    this.count = count;
+    this.version = version;
+    this.query = query;
+    this.segmentSize = segmentSize;
+    this.results = results;
+    this.firstSegment = firstSegment;
+    this.lastSegment = lastSegment;
+  }
+
+  /**
+   * find the contacts visible in a version whose search key contains the query
+   *
+   * @param slots
+   *          the slots to scan
+   * @param count
+   *          the number of valid slots in the array
+   * @param version
+   *          the version of the store the search runs at
+   * @param normalizedQuery
+   *          query which has already been normalized
+   * @param segmentSize
+   *          number of slots scanned by one task. Fewer slots than this are scanned on the calling
+   *          thread, and so are all slots when the common pool has a single thread.
+   * @return the matching contacts, in slot order
+   */
+  static ArrayList<Contact> search(Slot[] slots, int count, long version, String normalizedQuery,
+      int segmentSize) {
+    if (count <= segmentSize || ForkJoinPool.getCommonPoolParallelism() < 2) {
+      ArrayList<Contact> resultList = new ArrayList<Contact>();
+      scan(slots, 0, count, version, normalizedQuery, resultList);
+      return resultList;
+    }
+    int segments = (int) ((count + (long) segmentSize - 1) / segmentSize);
+    List<List<Contact>> results = new ArrayList<List<Contact>>(segments);
+    int total = 0;
+    for (int i = 0; i < segments; i++) {
+      results.add(null);
+    }
+    ForkJoinPool.commonPool().invoke(new ContactSearchTask(slots, count, version, normalizedQuery,
+        segmentSize, results, 0, segments));
+    for (List<Contact> segmentResult : results) {
+      total += segmentResult.size();
+    }
+    ArrayList<Contact> resultList = new ArrayList<Contact>(total);
+    for (List<Contact> segmentResult : results) {
+      resultList.addAll(segmentResult);
+    }
+    return resultList;
+  }
+
+  @Override
+  protected void compute() {
+    if (lastSegment - firstSegment == 1) {
+      int from = firstSegment * segmentSize;
+      int to = (int) Math.min(count, (long) from + segmentSize);
+      List<Contact> segmentResult = new ArrayList<Contact>();
+      scan(slots, from, to, version, query, segmentResult);
+      results.set(firstSegment, segmentResult);
+      return;
+    }
+    int middle = (firstSegment + lastSegment) >>> 1;
+    invokeAll(new ContactSearchTask(slots, count, version, query, segmentSize, results,
+        firstSegment, middle), new ContactSearchTask(slots, count, version, query, segmentSize,
+        results, middle, lastSegment));
+  }
+
+  private static void scan(Slot[] slots, int from, int to, long version, String query,
+      List<Contact> resultList) {
+    for (int i = from; i < to; i++) {
+      Slot slot = slots[i];
+      if (slot.isVisibleIn(version) && slot.contact.getSearchKey().contains(query)) {
+        resultList.add(slot.contact);
+      }
+    }
+  }
+}
@@ -0,0 +1,411 @@
+package edu.nyu.cs.pqs;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * ContactStore holds the contacts of an {@link AddressBook} together with their search index. It is
+ * a multi-version store: writers append slots and mark removed slots with the version that removed
+ * them, and every write publishes a new immutable {@link View}. A hash index from each contact to
+ * its live slots makes removes constant time, and removed slots are dropped by an occasional
+ * compaction. Readers take the current view without locking and see a consistent point-in-time
+ * state while writers keep going. Writers are serialized with a lock.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactStore {
+  private static final int INITIAL_CAPACITY = 16;
+
+  // compaction is not worth it for a handful of removed slots
+  private static final int MIN_DEAD_SLOTS_TO_COMPACT = 1024;
+
+  /**
+   * Slot holds one added contact. A slot is visible in every version from the one which added it
+   * until the one which removed it.
+   */
+  static final class Slot {
+    final Contact contact;
+    final long addedVersion;
+    private volatile long removedVersion;
+
+    Slot(Contact contact, long addedVersion) {
+      this.contact = contact;
+      this.addedVersion = addedVersion;
+    }
+
+    boolean isVisibleIn(long version) {
+      long removed = removedVersion;
+      return addedVersion <= version && (removed == 0 || removed > version);
+    }
+
+    boolean isRemoved() {
+      return removedVersion != 0;
+    }
+  }
+
+  /**
+   * View is an immutable point-in-time state of the store. It shares the slot array and the index
+   * with later views, and ignores everything added or removed after its version.
+   */
+  static final class View implements Iterable<Contact> {
+    private final Slot[] slots;
+    private final int size;
+    private final int contactCount;
+    private final long version;
+    private final ContactIndex index;
+
+    private View(Slot[] slots, int size, int contactCount, long version, ContactIndex index) {
+      this.slots = slots;
+      this.size = size;
+      this.contactCount = contactCount;
+      this.version = version;
+      this.index = index;
+    }
+
+    /**
+     * @return the version of the store this view was taken at
+     */
+    long getVersion() {
+      return version;
+    }
+
+    /**
+     * @return the number of contacts visible in this view
+     */
+    int contactCount() {
+      return contactCount;
+    }
+
+    /**
+     * @return the number of slots, live or removed, covered by this view
+     */
+    int slotCount() {
+      return size;
+    }
+
+    /**
+     * @return the slots of this view. Only the first {@link #slotCount()} slots are valid, and
+     *         slots which are not visible in this view must be skipped.
+     */
+    Slot[] slots() {
+      return slots;
+    }
+
+    /**
+     * @param position
+     *          position of the slot, less than {@link #slotCount()}
+     * @return the slot at the position, or null if it is not visible in this view
+     */
+    Slot slotAt(int position) {
+      Slot slot = slots[position];
+      return slot.isVisibleIn(version) ? slot : null;
+    }
+
+    /**
+     * @return the index of this view
+     */
+    ContactIndex getIndex() {
+      return index;
+    }
+
+    /**
+     * iterates over the contacts visible in this view, in the order they were added
+     */
+    @Override
+    public Iterator<Contact> iterator() {
+      return new Iterator<Contact>() {
+        private int position = advance(0);
+
+        private int advance(int from) {
+          while (from < size && !slots[from].isVisibleIn(version)) {
+            from++;
+          }
+          return from;
+        }
+
+        @Override
+        public boolean hasNext() {
+          return position < size;
+        }
+
+        @Override
+        public Contact next() {
+          if (position >= size) {
+            throw new NoSuchElementException();
+          }
+          Contact contact = slots[position].contact;
+          position = advance(position + 1);
+          return contact;
+        }
+
+        @Override
+        public void remove() {
+          throw new UnsupportedOperationException("views are read only");
+        }
+      };
+    }
+  }
+
+  /**
+   * ChangeLog is told about every change while the write lock is held, before the change is
+   * applied, so it sees changes in exactly the order they are applied.
+   */
+  interface ChangeLog {
+    void added(Contact contact);
+
+    void removed(Contact contact);
+  }
+
+  /**
+   * LockedAction is run while holding the write lock.
+   */
+  interface LockedAction {
+    void run() throws IOException;
+  }
+
+  private final ReentrantLock writeLock;
+  private volatile View current;
+
+  // state below is only touched while holding the write lock
+  private Slot[] slots;
+  private int size;
+  private int deadSlots;
+  private long version;
+  private ContactIndex index;
+  private final Map<Contact, Deque<Slot>> positions;
+  private ChangeLog changeLog;
+
+  ContactStore() {
+    writeLock = new ReentrantLock();
+    slots = new Slot[INITIAL_CAPACITY];
+    index = new ContactIndex();
+    positions = new HashMap<Contact, Deque<Slot>>();
+    publish();
+  }
+
+  /**
+   * @return the current view of the store. Never blocks.
+   */
+  View view() {
+    return current;
+  }
+
+  /**
+   * sets the change log which is told about every later change
+   *
+   * @param changeLog
+   *          the change log, or null to stop logging
+   */
+  void setChangeLog(ChangeLog changeLog) {
+    writeLock.lock();
+    try {
+      this.changeLog = changeLog;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * runs an action while no writer can change the store
+   *
+   * @param action
+   *          the action to run
+   * @return the view of the store while the action ran
+   * @throws IOException
+   *           if the action fails
+   */
+  View runLocked(LockedAction action) throws IOException {
+    writeLock.lock();
+    try {
+      action.run();
+      return current;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * add a contact at the end of the store
+   *
+   * @param contact
+   *          the contact to add
+   */
+  void add(Contact contact) {
+    writeLock.lock();
+    try {
+      if (changeLog != null) {
+        changeLog.added(contact);
+      }
+      if (size == slots.length) {
+        slots = Arrays.copyOf(slots, size * 2);
+      }
+      Slot slot = new Slot(contact, version + 1);
+      slots[size] = slot;
+      index.add(slot);
+      Deque<Slot> livePositions = positions.get(contact);
+      if (livePositions == null) {
+        livePositions = new ArrayDeque<Slot>(1);
+        positions.put(contact, livePositions);
+      }
+      livePositions.addLast(slot);
+      size++;
+      version++;
+      publish();
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * add contacts at the end of the store as one write. Room for all of them is made at once and the
+   * index is built for the whole batch in one pass, so this is much cheaper than adding them one by
+   * one. Each contact still gets a version of its own.
+   *
+   * @param toAdd
+   *          the contacts to add, in order
+   * @param skipDuplicates
+   *          if true, contacts equal to one already in the store or earlier in the batch are not
+   *          added
+   * @return the number of contacts added
+   */
+  int addAll(Collection<Contact> toAdd, boolean skipDuplicates) {
+    writeLock.lock();
+    int first = size;
+    try {
+      if (size + toAdd.size() > slots.length) {
+        slots = Arrays.copyOf(slots, Math.max(size + toAdd.size(), slots.length * 2));
+      }
+      for (Contact contact : toAdd) {
+        // positions holds every live contact, so it doubles as the set of contacts seen
+        Deque<Slot> livePositions = positions.get(contact);
+        if (skipDuplicates && livePositions != null) {
+          continue;
+        }
+        if (changeLog != null) {
+          changeLog.added(contact);
+        }
+        Slot slot = new Slot(contact, version + 1);
+        slots[size++] = slot;
+        if (livePositions == null) {
+          livePositions = new ArrayDeque<Slot>(1);
+          positions.put(contact, livePositions);
+        }
+        livePositions.addLast(slot);
+        version++;
+      }
+      return size - first;
+    } finally {
+      // whatever was logged before a failure is added, as it would be on recovery
+      if (size > first) {
+        index.addAll(slots, first, size);
+        publish();
+      }
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * remove the first live occurrence of a contact from the store
+   *
+   * @param contact
+   *          the contact to remove
+   * @return true if the contact was found and removed
+   */
+  boolean remove(Contact contact) {
+    writeLock.lock();
+    try {
+      if (!markRemoved(contact, version + 1)) {
+        return false;
+      }
+      version++;
+      compactIfNeeded();
+      publish();
+      return true;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  /**
+   * remove the first live occurrence of every contact in the collection, as one write. A contact
+   * which is in the collection twice removes two occurrences.
+   *
+   * @param toRemove
+   *          the contacts to remove
+   * @return the number of contacts removed
+   */
+  int removeAll(Collection<Contact> toRemove) {
+    writeLock.lock();
+    try {
+      int removed = 0;
+      for (Contact contact : toRemove) {
+        if (markRemoved(contact, version + 1)) {
+          removed++;
+        }
+      }
+      if (removed > 0) {
+        version++;
+        compactIfNeeded();
+        publish();
+      }
+      return removed;
+    } finally {
+      writeLock.unlock();
+    }
+  }
+
+  // marks the first live slot of the contact as removed in the given version
+  private boolean markRemoved(Contact contact, long removedVersion) {
+    Deque<Slot> livePositions = positions.get(contact);
+    if (livePositions == null) {
+      return false;
+    }
+    if (changeLog != null) {
+      changeLog.removed(contact);
+    }
+    Slot slot = livePositions.pollFirst();
+    if (livePositions.isEmpty()) {
+      positions.remove(contact);
+    }
+    slot.removedVersion = removedVersion;
+    deadSlots++;
+    return true;
+  }
+
+  /*
+   * Copies live slots to a fresh array and rebuilds the index once removed slots outnumber live
+   * ones. Older views keep the arrays they were created with, so they are not disturbed.
+   */
+  private void compactIfNeeded() {
+    if (deadSlots < MIN_DEAD_SLOTS_TO_COMPACT || deadSlots * 2 < size) {
+      return;
+    }
+    int liveSlots = size - deadSlots;
+    Slot[] compacted = new Slot[Math.max(INITIAL_CAPACITY, liveSlots * 2)];
+    int position = 0;
+    for (int i = 0; i < size; i++) {
+      if (!slots[i].isRemoved()) {
+        compacted[position++] = slots[i];
+      }
+    }
+    ContactIndex compactedIndex = new ContactIndex();
+    compactedIndex.addAll(compacted, 0, position);
+    slots = compacted;
+    size = position;
+    deadSlots = 0;
+    index = compactedIndex;
+  }
+
+  private void publish() {
+    current = new View(slots, size, size - deadSlots, version, index);
+  }
+}
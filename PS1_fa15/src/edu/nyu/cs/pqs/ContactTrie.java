@@ -0,0 +1,221 @@
+package edu.nyu.cs.pqs;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import edu.nyu.cs.pqs.ContactIndex.Posting;
+import edu.nyu.cs.pqs.ContactStore.Slot;
+
+/**
+ * ContactTrie is a radix tree over the lower case names and email local parts of contacts, used to
+ * complete what a user has typed so far. Each name is also reachable from every word after the
+ * first, so "smi" completes "Alice Smith". A key ending at a node keeps the slots holding it in a
+ * {@link Posting}, in the order they were added.
+ *
+ * <p>
+ * Like {@link ContactIndex}, one thread adds at a time and any number of threads read
+ * concurrently. Nodes are never changed in a way a reader could see half done: children are
+ * replaced by new arrays and splitting an edge puts a new node in place of the old one. Removed
+ * slots stay until the {@link ContactStore} compacts, and readers skip them.
+ *
+ * @author Rachita
+ *
+ */
+final class ContactTrie {
+  private static final Node[] NO_CHILDREN = new Node[0];
+
+  private static final class Node {
+    final String label;
+    // sorted by the first character of their labels
+    volatile Node[] children;
+    volatile Posting posting;
+
+    Node(String label, Node[] children, Posting posting) {
+      this.label = label;
+      this.children = children;
+      this.posting = posting;
+    }
+  }
+
+  private final Node root = new Node("", NO_CHILDREN, null);
+  private volatile int keyCount;
+
+  /**
+   * add a slot under its name, the words of its name and its email local part
+   *
+   * @param slot
+   *          the slot to add
+   */
+  void add(Slot slot) {
+    Set<String> keys = new HashSet<String>();
+    String name = slot.contact.getName();
+    if (name != null) {
+      String key = ContactIndex.normalize(name);
+      for (int i = 0; i < key.length(); i++) {
+        if (Character.isLetterOrDigit(key.charAt(i))
+            && (i == 0 || !Character.isLetterOrDigit(key.charAt(i - 1)))) {
+          keys.add(key.substring(i));
+        }
+      }
+    }
+    String email = slot.contact.getEmailAddress();
+    if (email != null) {
+      int at = email.indexOf('@');
+      keys.add(ContactIndex.normalize(at < 0 ? email : email.substring(0, at)));
+    }
+    for (String key : keys) {
+      insert(key, slot);
+    }
+  }
+
+  private void insert(String key, Slot slot) {
+    Node node = root;
+    int position = 0;
+    while (position < key.length()) {
+      Node[] children = node.children;
+      int index = find(children, key.charAt(position));
+      if (index < 0) {
+        // most keys belong to a single contact
+        Posting posting = new Posting(1);
+        posting.append(slot);
+        keyCount++;
+        node.children = insertChild(children, -index - 1,
+            new Node(key.substring(position), NO_CHILDREN, posting));
+        return;
+      }
+      Node child = children[index];
+      int common = commonPrefix(child.label, key, position);
+      if (common < child.label.length()) {
+        // the key leaves the edge half way, so the edge is split at that point
+        Node lower = new Node(child.label.substring(common), child.children, child.posting);
+        Node middle = new Node(child.label.substring(0, common), new Node[] { lower }, null);
+        Node[] replaced = children.clone();
+        replaced[index] = middle;
+        node.children = replaced;
+        child = middle;
+      }
+      node = child;
+      position += common;
+    }
+    if (node.posting == null) {
+      keyCount++;
+      node.posting = new Posting(1);
+    }
+    node.posting.append(slot);
+  }
+
+  /**
+   * collect the contacts visible in a version with a key starting with a prefix, in alphabetical
+   * order of their keys. A contact reachable through several keys is collected once.
+   *
+   * @param prefix
+   *          the normalized prefix
+   * @param version
+   *          the version of the store
+   * @param limit
+   *          maximum number of contacts to collect
+   * @param completions
+   *          list the contacts are added to
+   */
+  void complete(String prefix, long version, int limit, List<Contact> completions) {
+    Node node = root;
+    int position = 0;
+    while (position < prefix.length()) {
+      Node[] children = node.children;
+      int index = find(children, prefix.charAt(position));
+      if (index < 0) {
+        return;
+      }
+      node = children[index];
+      int common = commonPrefix(node.label, prefix, position);
+      if (position + common < prefix.length() && common < node.label.length()) {
+        return;
+      }
+      position += common;
+    }
+    collect(node, version, limit, completions, new HashSet<Slot>());
+  }
+
+  // depth first in alphabetical order, stopping once the limit is reached
+  private static boolean collect(Node node, long version, int limit, List<Contact> completions,
+      Set<Slot> seen) {
+    Posting posting = node.posting;
+    if (posting != null) {
+      int size = posting.size();
+      Slot[] slots = posting.slots();
+      for (int i = 0; i < size; i++) {
+        if (slots[i].isVisibleIn(version) && seen.add(slots[i])) {
+          completions.add(slots[i].contact);
+          if (completions.size() >= limit) {
+            return false;
+          }
+        }
+      }
+    }
+    for (Node child : node.children) {
+      if (!collect(child, version, limit, completions, seen)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private static int find(Node[] children, char first) {
+    int low = 0;
+    int high = children.length - 1;
+    while (low <= high) {
+      int middle = (low + high) >>> 1;
+      char label = children[middle].label.charAt(0);
+      if (label < first) {
+        low = middle + 1;
+      } else if (label > first) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private static Node[] insertChild(Node[] children, int index, Node child) {
+    Node[] inserted = Arrays.copyOf(children, children.length + 1);
+    System.arraycopy(children, index, inserted, index + 1, children.length - index);
+    inserted[index] = child;
+    return inserted;
+  }
+
+  private static int commonPrefix(String label, String key, int from) {
+    int length = Math.min(label.length(), key.length() - from);
+    int common = 0;
+    while (common < length && label.charAt(common) == key.charAt(from + common)) {
+      common++;
+    }
+    return common;
+  }
+
+  /**
+   * @return the size of the tree, with a rough estimate of its memory use
+   */
+  PrefixIndexStats stats() {
+    long[] counts = new long[3];
+    count(root, counts);
+    return new PrefixIndexStats(keyCount, counts[0], counts[1], counts[2]);
+  }
+
+  // counts nodes, entries and estimated bytes
+  private static void count(Node node, long[] counts) {
+    counts[0]++;
+    // node object, label string and its characters, children array
+    counts[2] += 24 + 24 + 16 + 2L * node.label.length() + 16 + 4L * node.children.length;
+    Posting posting = node.posting;
+    if (posting != null) {
+      counts[1] += posting.size();
+      counts[2] += 24 + 16 + 4L * posting.slots().length;
+    }
+    for (Node child : node.children) {
+      count(child, counts);
+    }
+  }
+}
@@ -0,0 +1,62 @@
+package edu.nyu.cs.pqs;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * DuplicateCluster is a group of contacts which probably describe the same person, found by
+ * {@link AddressBook#findDuplicates()}, together with a suggestion for the contact they could be
+ * merged into.
+ *
+ * @author Rachita
+ *
+ */
+public final class DuplicateCluster {
+  private final List<Contact> contacts;
+  private final Contact suggestedMerge;
+  private final double similarity;
+
+  DuplicateCluster(List<Contact> contacts, Contact suggestedMerge, double similarity) {
+    this.contacts = Collections.unmodifiableList(contacts);
+    this.suggestedMerge = suggestedMerge;
+    this.similarity = similarity;
+  }
+
+  /**
+   * @return the contacts of the cluster, at least two, in the order they were added
+   */
+  public List<Contact> getContacts() {
+    return contacts;
+  }
+
+  /**
+   * @return a contact holding, for every field, the value most of the contacts of the cluster
+   *         agree on. Ties go to the longer value, then to the contact added first.
+   */
+  public Contact getSuggestedMerge() {
+    return suggestedMerge;
+  }
+
+  /**
+   * @return the lowest similarity, between 0 and 1, of the pairs of contacts of the cluster found
+   *         to match
+   */
+  public double getSimilarity() {
+    return similarity;
+  }
+
+  /**
+   * puts the suggested merge on the first line and the contacts of the cluster on the following
+   * lines
+   */
+  @Override
+  public String toString() {
+    StringBuilder resultString = new StringBuilder();
+    resultString.append(String.format("merge into %s (similarity %.2f)%n", suggestedMerge,
+        similarity));
+    for (Contact contact : contacts) {
+      resultString.append("  ").append(contact).append('\n');
+    }
+    return resultString.toString();
+  }
+}
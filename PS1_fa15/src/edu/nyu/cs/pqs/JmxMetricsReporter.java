@@ -0,0 +1,62 @@
+package edu.nyu.cs.pqs;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * JmxMetricsReporter registers the statistics of every operation as an MBean on the platform MBean
+ * server, named edu.nyu.cs.pqs:type=AddressBook,name=[book name],operation=[operation].
+ *
+ * @author Rachita
+ *
+ */
+public final class JmxMetricsReporter implements MetricsReporter {
+  private final String bookName;
+  private final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+  private final List<ObjectName> registered = new ArrayList<ObjectName>();
+
+  /**
+   * @param bookName
+   *          name telling this address book apart from others in the same JVM
+   */
+  public JmxMetricsReporter(String bookName) {
+    this.bookName = bookName;
+  }
+
+  /**
+   * @throws IllegalStateException
+   *           if the MBeans can not be registered, for example because another book uses the
+   *           same name
+   */
+  @Override
+  public synchronized void start(AddressBookMetrics metrics) {
+    try {
+      for (OperationStats stats : metrics.getAll()) {
+        ObjectName name = new ObjectName("edu.nyu.cs.pqs:type=AddressBook,name="
+            + ObjectName.quote(bookName) + ",operation=" + stats.getOperation());
+        server.registerMBean(stats, name);
+        registered.add(name);
+      }
+    } catch (JMException e) {
+      stop();
+      throw new IllegalStateException("could not register metrics of " + bookName, e);
+    }
+  }
+
+  @Override
+  public synchronized void stop() {
+    for (ObjectName name : registered) {
+      try {
+        server.unregisterMBean(name);
+      } catch (JMException e) {
+        // already unregistered by someone else
+      }
+    }
+    registered.clear();
+  }
+}
@@ -0,0 +1,421 @@
+package edu.nyu.cs.pqs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * LazyAddressBookFile gives access to the contacts of a saved address book without loading them.
+ * Opening a text file only memory maps it. Where every {@value #INDEX_INTERVAL}th contact starts is
+ * recorded later, one int per {@value #INDEX_INTERVAL} contacts, region by region of the file from
+ * its start up to the first contact asked for that is not indexed yet. Reading the first contacts
+ * of a large file therefore only scans its start, while {@link #size()} and reading the last
+ * contact scan all of it the first time. Opening a binary file saved with an index only reads its
+ * header. A contact is parsed the first time it is asked for, and the most recently used contacts
+ * are kept in a cache of bounded size.
+ *
+ * <p>
+ * Files written by {@link AddressBook#saveAddressBookToCompressedFile(String)} are read on demand
+ * with {@link CompressedAddressBookFile} instead.
+ *
+ * @author Rachita
+ *
+ */
+public final class LazyAddressBookFile implements Closeable {
+  /** number of contacts between two entries of the offset index of a text file */
+  static final int INDEX_INTERVAL = 64;
+
+  /** largest part of a text file mapped at once. Mappings end right after a line break. */
+  static final int MAX_MAPPING_SIZE = 1 << 30;
+
+  /**
+   * number of bytes of a text file scanned for contacts at once. Regions end right after the first
+   * line break at or after this size.
+   */
+  static final int REGION_SIZE = 8 << 20;
+
+  private static final byte LINE_SEPARATOR = '\n';
+  private static final byte CARRIAGE_RETURN = '\r';
+
+  private final FileChannel channel;
+  private final ContactCache cache;
+  // -1 for a text file until all of its regions are indexed
+  private long size;
+
+  // text files: the mappings and the regions they are cut into, as the mapping and the offsets in
+  // it where each region starts and ends. For the first indexedRegions regions, the number of
+  // contacts before each and its sampled line offsets.
+  private final MappedByteBuffer[] mappings;
+  private final int[] regionMappings;
+  private final int[] regionStarts;
+  private final int[] regionEnds;
+  private final long[] firstContacts;
+  private final int[][] lineOffsets;
+  private int indexedRegions;
+  private long indexedContacts;
+  private byte[] line = new byte[256];
+
+  // binary files: offset of the index block holding the offset of every record
+  private final long indexOffset;
+
+  private LazyAddressBookFile(FileChannel channel, int cacheSize, long size,
+      MappedByteBuffer[] mappings, int[] regionMappings, int[] regionStarts, int[] regionEnds,
+      long indexOffset) {
+    this.channel = channel;
+    this.cache = new ContactCache(cacheSize);
+    this.size = size;
+    this.mappings = mappings;
+    this.regionMappings = regionMappings;
+    this.regionStarts = regionStarts;
+    this.regionEnds = regionEnds;
+    int regionCount = regionMappings == null ? 0 : regionMappings.length;
+    this.firstContacts = new long[regionCount];
+    this.lineOffsets = new int[regionCount][];
+    this.indexOffset = indexOffset;
+  }
+
+  /**
+   * open a file written by {@link AddressBook#saveAddressBookToFile(String)} or by
+   * {@link AddressBook#saveAddressBookToBinaryFile(String, boolean)} with an index. Text files are
+   * only mapped, and scanned for line breaks as contacts are asked for.
+   *
+   * @param filePath
+   *          the file to open
+   * @param cacheSize
+   *          maximum number of parsed contacts kept in memory
+   * @return the open file
+   * @throws IOException
+   *           throws an IOexception if the file can not be read, or is a binary file without an
+   *           index
+   * @throws IllegalArgumentException
+   *           if the cache size is negative
+   */
+  public static LazyAddressBookFile open(String filePath, int cacheSize) throws IOException {
+    return open(filePath, cacheSize, MAX_MAPPING_SIZE, REGION_SIZE);
+  }
+
+  /**
+   * open a file like {@link #open(String, int)}, mapping and indexing text files in smaller parts
+   *
+   * @param mappingSize
+   *          largest number of bytes of a text file mapped at once
+   * @param regionSize
+   *          number of bytes of a text file scanned for contacts at once
+   */
+  static LazyAddressBookFile open(String filePath, int cacheSize, int mappingSize,
+      int regionSize) throws IOException {
+    if (cacheSize < 0) {
+      throw new IllegalArgumentException("cache size must not be negative: " + cacheSize);
+    }
+    Path path = Paths.get(filePath);
+    boolean binary = ContactBinaryFile.isBinaryFile(path);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      if (binary) {
+        ContactBinaryFile.Header header = ContactBinaryFile.readHeader(channel);
+        if (!header.hasIndex()) {
+          throw new IOException("binary address book saved without an index: " + filePath);
+        }
+        return new LazyAddressBookFile(channel, cacheSize, header.recordCount, null, null, null,
+            null, header.indexOffset);
+      }
+      return openText(channel, cacheSize, mappingSize, regionSize);
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  private static LazyAddressBookFile openText(FileChannel channel, int cacheSize,
+      int mappingSize, int regionSize) throws IOException {
+    List<MappedByteBuffer> mapped = new ArrayList<MappedByteBuffer>();
+    List<int[]> regions = new ArrayList<int[]>();
+    long fileSize = channel.size();
+    long start = 0;
+    while (start < fileSize) {
+      MappedByteBuffer mapping = channel.map(FileChannel.MapMode.READ_ONLY, start,
+          Math.min(fileSize - start, mappingSize));
+      int end = mapping.limit();
+      if (start + end < fileSize) {
+        while (end > 0 && mapping.get(end - 1) != LINE_SEPARATOR) {
+          end--;
+        }
+        if (end == 0) {
+          throw new IOException("line longer than " + mappingSize + " bytes at " + start);
+        }
+        mapping.limit(end);
+      }
+      // only the ends of the regions are looked for here, their lines are scanned when needed
+      int regionStart = 0;
+      while (regionStart < end) {
+        int regionEnd = (int) Math.min((long) regionStart + regionSize, end);
+        while (regionEnd < end && mapping.get(regionEnd - 1) != LINE_SEPARATOR) {
+          regionEnd++;
+        }
+        regions.add(new int[] { mapped.size(), regionStart, regionEnd });
+        regionStart = regionEnd;
+      }
+      mapped.add(mapping);
+      start += end;
+    }
+    int[] regionMappings = new int[regions.size()];
+    int[] regionStarts = new int[regions.size()];
+    int[] regionEnds = new int[regions.size()];
+    for (int i = 0; i < regions.size(); i++) {
+      regionMappings[i] = regions.get(i)[0];
+      regionStarts[i] = regions.get(i)[1];
+      regionEnds[i] = regions.get(i)[2];
+    }
+    LazyAddressBookFile file = new LazyAddressBookFile(channel, cacheSize, -1,
+        mapped.toArray(new MappedByteBuffer[mapped.size()]), regionMappings, regionStarts,
+        regionEnds, 0);
+    if (regions.isEmpty()) {
+      file.size = 0;
+    }
+    return file;
+  }
+
+  // indexes the regions up to the one holding the contact at position, one after the other.
+  // Returns whether the file has a contact at position.
+  private boolean indexTo(long position) {
+    while (position >= indexedContacts && indexedRegions < firstContacts.length) {
+      addRegion(indexLines(indexedRegions));
+    }
+    return position < indexedContacts;
+  }
+
+  // indexes every region left, on as many threads as there are processors, in the style of
+  // ContactFileReader
+  private void indexAll() {
+    int parallelism = Math.min(firstContacts.length - indexedRegions,
+        Runtime.getRuntime().availableProcessors());
+    if (parallelism >= 2) {
+      ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+      try {
+        Deque<Future<int[]>> scans = new ArrayDeque<Future<int[]>>();
+        for (int region = indexedRegions; region < firstContacts.length; region++) {
+          final int toScan = region;
+          scans.addLast(executor.submit(new Callable<int[]>() {
+            @Override
+            public int[] call() {
+              return indexLines(toScan);
+            }
+          }));
+        }
+        while (!scans.isEmpty()) {
+          addRegion(awaitScan(scans.removeFirst()));
+        }
+      } finally {
+        executor.shutdownNow();
+      }
+    }
+    indexTo(Long.MAX_VALUE);
+  }
+
+  // the result of a scan. An interrupt is kept for the caller rather than failing the scan, as
+  // size and get do not throw on one.
+  private static int[] awaitScan(Future<int[]> scan) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          return scan.get();
+        } catch (InterruptedException e) {
+          interrupted = true;
+        }
+      }
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw (Error) cause;
+    } finally {
+      if (interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  // the last entry of the offsets of a region holds the number of contacts in it
+  private void addRegion(int[] offsets) {
+    int contacts = offsets[offsets.length - 1];
+    firstContacts[indexedRegions] = indexedContacts;
+    lineOffsets[indexedRegions] = Arrays.copyOf(offsets, offsets.length - 1);
+    indexedContacts += contacts;
+    indexedRegions++;
+    if (indexedRegions == firstContacts.length) {
+      size = indexedContacts;
+    }
+  }
+
+  /*
+   * Returns the offset in its mapping of every INDEX_INTERVALth non empty line of a region,
+   * followed by the number of non empty lines. Empty lines do not hold a contact and are not
+   * counted.
+   */
+  private int[] indexLines(int region) {
+    ByteBuffer mapping = mappings[regionMappings[region]];
+    int[] offsets = new int[16];
+    int sampled = 0;
+    int contacts = 0;
+    int limit = regionEnds[region];
+    int lineStart = regionStarts[region];
+    for (int i = lineStart; i <= limit; i++) {
+      if (i < limit && mapping.get(i) != LINE_SEPARATOR) {
+        continue;
+      }
+      int length = i - lineStart;
+      if (length > 1 || (length == 1 && mapping.get(lineStart) != CARRIAGE_RETURN)) {
+        if (contacts % INDEX_INTERVAL == 0) {
+          if (sampled == offsets.length) {
+            offsets = Arrays.copyOf(offsets, sampled * 2);
+          }
+          offsets[sampled++] = lineStart;
+        }
+        contacts++;
+      }
+      lineStart = i + 1;
+    }
+    offsets = Arrays.copyOf(offsets, sampled + 1);
+    offsets[sampled] = contacts;
+    return offsets;
+  }
+
+  /**
+   * @return the number of contacts in the file. The first call on a text file scans the regions
+   *         not indexed yet, on all available processors.
+   */
+  public synchronized long size() {
+    if (size < 0) {
+      indexAll();
+    }
+    return size;
+  }
+
+  /**
+   * get one contact, parsing it if it is not in the cache
+   *
+   * @param position
+   *          position of the contact in the file, starting at 0
+   * @return the contact
+   * @throws IOException
+   *           throws an IOexception if the contact can not be read
+   * @throws IndexOutOfBoundsException
+   *           if there is no contact at the position
+   */
+  public synchronized Contact get(long position) throws IOException {
+    if (position < 0 || (size >= 0 && position >= size) || (size < 0 && !indexTo(position))) {
+      throw new IndexOutOfBoundsException("no contact " + position + " in a file of " + size()
+          + " contacts");
+    }
+    Contact contact = cache.get(position);
+    if (contact == null) {
+      contact = mappings == null ? readBinary(position) : readText(position);
+      if (cache.maxSize > 0) {
+        cache.put(position, contact);
+      }
+    }
+    return contact;
+  }
+
+  /**
+   * @return the number of contacts in the cache
+   */
+  public synchronized int cachedCount() {
+    return cache.size();
+  }
+
+  private Contact readBinary(long position) throws IOException {
+    ByteBuffer offset = ByteBuffer.allocate(8);
+    long filePosition = indexOffset + position * 8;
+    while (offset.hasRemaining()) {
+      if (channel.read(offset, filePosition + offset.position()) < 0) {
+        throw new IOException("binary address book index is truncated");
+      }
+    }
+    return ContactBinaryFile.readContactAt(channel, offset.getLong(0));
+  }
+
+  // the region holding position is indexed
+  private Contact readText(long position) {
+    int region = Arrays.binarySearch(firstContacts, 0, indexedRegions, position);
+    if (region < 0) {
+      region = -region - 2;
+    }
+    // regions without contacts share their first contact with the next one
+    while (region + 1 < indexedRegions && firstContacts[region + 1] <= position) {
+      region++;
+    }
+    ByteBuffer buffer = mappings[regionMappings[region]];
+    long local = position - firstContacts[region];
+    int lineStart = lineOffsets[region][(int) (local / INDEX_INTERVAL)];
+    int toSkip = (int) (local % INDEX_INTERVAL);
+    while (true) {
+      int lineEnd = lineStart;
+      while (lineEnd < buffer.limit() && buffer.get(lineEnd) != LINE_SEPARATOR) {
+        lineEnd++;
+      }
+      int length = lineEnd - lineStart;
+      if (length > line.length) {
+        line = new byte[Math.max(length, line.length * 2)];
+      }
+      for (int i = 0; i < length; i++) {
+        line[i] = buffer.get(lineStart + i);
+      }
+      boolean empty = length == 0 || (length == 1 && line[0] == CARRIAGE_RETURN);
+      if (!empty && toSkip-- == 0) {
+        return ContactFileReader.parseLine(line, length);
+      }
+      lineStart = lineEnd + 1;
+    }
+  }
+
+  /**
+   * close the file. The mappings of a text file are released once they are garbage collected.
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    cache.clear();
+    channel.close();
+  }
+
+  /**
+   * ContactCache is a map from position to contact which drops its least recently used entry
+   * once it is full.
+   */
+  private static final class ContactCache extends LinkedHashMap<Long, Contact> {
+    private static final long serialVersionUID = 1L;
+    private final int maxSize;
+
+    private ContactCache(int maxSize) {
+      super(16, 0.75f, true);
+      this.maxSize = maxSize;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Contact> eldest) {
+      return size() > maxSize;
+    }
+  }
+}
@@ -0,0 +1,63 @@
+package edu.nyu.cs.pqs;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * LoggingMetricsReporter logs the statistics of every operation at INFO level at a fixed period,
+ * from a daemon thread.
+ *
+ * @author Rachita
+ *
+ */
+public final class LoggingMetricsReporter implements MetricsReporter {
+  private static final Logger logger = Logger.getLogger(LoggingMetricsReporter.class.getName());
+
+  private final long period;
+  private final TimeUnit unit;
+  private ScheduledExecutorService scheduler;
+
+  /**
+   * @param period
+   *          time between two reports
+   * @param unit
+   *          unit of the period
+   */
+  public LoggingMetricsReporter(long period, TimeUnit unit) {
+    if (period <= 0) {
+      throw new IllegalArgumentException("period must be positive: " + period);
+    }
+    this.period = period;
+    this.unit = unit;
+  }
+
+  @Override
+  public synchronized void start(final AddressBookMetrics metrics) {
+    stop();
+    scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+      @Override
+      public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, "address-book-metrics");
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    scheduler.scheduleAtFixedRate(new Runnable() {
+      @Override
+      public void run() {
+        logger.info("address book metrics\n" + metrics);
+      }
+    }, period, period, unit);
+  }
+
+  @Override
+  public synchronized void stop() {
+    if (scheduler != null) {
+      scheduler.shutdown();
+      scheduler = null;
+    }
+  }
+}
@@ -0,0 +1,23 @@
+package edu.nyu.cs.pqs;
+
+/**
+ * MetricsReporter publishes the {@link AddressBookMetrics} of an address book somewhere outside of
+ * it. {@link JmxMetricsReporter} and {@link LoggingMetricsReporter} are provided.
+ *
+ * @author Rachita
+ *
+ */
+public interface MetricsReporter {
+  /**
+   * start publishing metrics
+   *
+   * @param metrics
+   *          the metrics to publish
+   */
+  void start(AddressBookMetrics metrics);
+
+  /**
+   * stop publishing metrics
+   */
+  void stop();
+}
@@ -0,0 +1,635 @@
+package edu.nyu.cs.pqs;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * OffHeapContactStore is a storage engine for very large address books which keeps the contact
+ * fields outside of the Java heap, so the garbage collector does not have to trace tens of millions
+ * of {@link Contact} and String objects. Every contact is a row of five columns in direct
+ * {@link ByteBuffer} segments. A column entry refers either to the UTF-8 bytes of the value in a
+ * data arena, or to an entry of a string dictionary shared by all rows. Postal addresses and notes
+ * go through the dictionary, since the same values come up again and again. Once the dictionary
+ * is full, new values are stored in the arena like the other columns.
+ *
+ * <p>
+ * The heap only holds the segment references, a bit per row marking removed rows and the
+ * dictionary. {@link #get(int)} decodes a new contact from its row on every call, which the store
+ * does not keep. Scans over many rows should use a {@link Cursor} instead, which decodes the
+ * values of a row into buffers it reuses from row to row. {@link #search(String)} matches the
+ * encoded rows directly, without decoding them into contacts.
+ *
+ * <p>
+ * Direct buffers count against the limit on direct memory of the JVM, set with
+ * {@code -XX:MaxDirectMemorySize} and as large as the maximum heap by default. Typical contacts
+ * take about 175 bytes each outside the heap, so a store of ten million contacts needs the limit
+ * raised to about 2 GB, and {@link #add(Contact)} throws {@link OutOfMemoryError} once it is
+ * reached. The buffers are freed by the garbage collector. {@link #close()} drops every reference
+ * the store holds to them, so a closed store does not keep them alive.
+ *
+ * <p>
+ * The store is not a backing of {@link AddressBook}, and can not become one without giving up
+ * what it saves. An address book keeps every contact in its trigram, field and prefix indexes,
+ * its ranker and the slots its snapshots share, all of which hold {@link Contact} references, so
+ * it would have to decode and keep every row on the heap again. The store is meant for books too
+ * large for that, which are loaded once with {@link #loadFromFile(String)} and then read and
+ * searched by row.
+ *
+ * <p>
+ * Writes are serialized on the store. Reads take no lock: segments are never moved once
+ * published, the segment arrays are replaced rather than modified, and {@link #add(Contact)}
+ * publishes a row by increasing a volatile row count after the row and its values are written.
+ *
+ * @author Rachita
+ *
+ */
+public final class OffHeapContactStore implements Iterable<Contact>, Closeable {
+  // arena segments start small and double up to the maximum size
+  private static final int MIN_ARENA_SEGMENT_SIZE = 1 << 20;
+  private static final int MAX_ARENA_SEGMENT_SIZE = 64 << 20;
+  private static final int ROWS_PER_SEGMENT = 1 << 16;
+  private static final int COLUMNS = 5;
+  private static final int ROW_SIZE = COLUMNS * 8;
+  private static final int MAX_DICTIONARY_SIZE = 1 << 16;
+
+  // column entries: NULL for missing values, DICTIONARY_FLAG | id for dictionary entries,
+  // otherwise the arena address of the value
+  private static final long NULL = -1;
+  private static final long DICTIONARY_FLAG = 1L << 62;
+
+  private static final int NAME = 0;
+  private static final int PHONE_NUMBER = 1;
+  private static final int POSTAL_ADDRESS = 2;
+  private static final int EMAIL_ADDRESS = 3;
+  private static final int NOTE = 4;
+
+  // read without a lock. The arrays are replaced when a segment is added, never modified, and the
+  // buffers they hold are only read with absolute gets or through duplicates.
+  private volatile ByteBuffer[] arena = new ByteBuffer[0];
+  private volatile ByteBuffer[] rows = new ByteBuffer[0];
+  // a bit per row, set when the row is removed
+  private volatile AtomicLongArray[] removed = new AtomicLongArray[0];
+  private volatile long[] dictionaryAddresses = new long[64];
+  private volatile int dictionarySize;
+  // written last by add, so that a reader seeing a row also sees its values
+  private volatile int rowCount;
+  private volatile int removedCount;
+  private volatile boolean closed;
+
+  // only used by writers, under the lock of the store
+  private final Map<String, Integer> dictionaryIds = new HashMap<String, Integer>();
+  private final CharsetEncoder encoder = ContactFileReader.CHARSET.newEncoder();
+  private ByteBuffer arenaTail;
+
+  /**
+   * create an empty store.
+   */
+  public OffHeapContactStore() {
+  }
+
+  /**
+   * create a store holding the contacts of a file written by
+   * {@link AddressBook#saveAddressBookToFile(String)},
+   * {@link AddressBook#saveAddressBookToBinaryFile(String, boolean)} or
+   * {@link AddressBook#saveAddressBookToCompressedFile(String)}. The contacts go straight
+   * from the file to the store, without building an {@link AddressBook} first.
+   *
+   * @param filePath
+   *          the file to read
+   * @return the store
+   * @throws IOException
+   *           if the file can not be read
+   */
+  public static OffHeapContactStore loadFromFile(String filePath) throws IOException {
+    final OffHeapContactStore store = new OffHeapContactStore();
+    ContactFileReader.ContactConsumer consumer = new ContactFileReader.ContactConsumer() {
+      @Override
+      public void accept(List<Contact> contacts) {
+        for (Contact contact : contacts) {
+          store.add(contact);
+        }
+      }
+    };
+    Path path = Paths.get(filePath);
+    if (ContactBinaryFile.isBinaryFile(path)) {
+      ContactBinaryFile.read(path, consumer);
+    } else if (ContactBlockFile.isBlockFile(path)) {
+      ContactBlockFile.read(path, Runtime.getRuntime().availableProcessors(), consumer);
+    } else {
+      ContactFileReader.withDefaults().read(filePath, consumer);
+    }
+    return store;
+  }
+
+  /**
+   * add a contact at the end of the store
+   *
+   * @param contact
+   *          the contact to add
+   * @return the row of the contact, used to get or remove it
+   * @throws IllegalArgumentException
+   *           if a field of the contact can not be encoded as UTF-8, such as a lone surrogate
+   */
+  public synchronized int add(Contact contact) {
+    ensureOpen();
+    // every field is encoded before anything is stored, so a bad field leaves no partial row
+    ByteBuffer name = encode(contact.getName());
+    ByteBuffer phoneNumber = encode(contact.getPhoneNumber());
+    ByteBuffer postalAddress = encode(contact.getPostalAddress());
+    ByteBuffer emailAddress = encode(contact.getEmailAddress());
+    ByteBuffer note = encode(contact.getNote());
+    int row = rowCount;
+    if (row % ROWS_PER_SEGMENT == 0) {
+      rows = append(rows, ByteBuffer.allocateDirect(ROWS_PER_SEGMENT * ROW_SIZE));
+      AtomicLongArray[] newRemoved = Arrays.copyOf(removed, removed.length + 1);
+      newRemoved[removed.length] = new AtomicLongArray(ROWS_PER_SEGMENT / 64);
+      removed = newRemoved;
+    }
+    ByteBuffer segment = rows[row / ROWS_PER_SEGMENT];
+    int base = (row % ROWS_PER_SEGMENT) * ROW_SIZE;
+    segment.putLong(base + NAME * 8, store(name));
+    segment.putLong(base + PHONE_NUMBER * 8, store(phoneNumber));
+    segment.putLong(base + POSTAL_ADDRESS * 8, storeShared(contact.getPostalAddress(),
+        postalAddress));
+    segment.putLong(base + EMAIL_ADDRESS * 8, store(emailAddress));
+    segment.putLong(base + NOTE * 8, storeShared(contact.getNote(), note));
+    rowCount = row + 1;
+    return row;
+  }
+
+  /**
+   * remove a contact from the store. Its row number is not reused.
+   *
+   * @param row
+   *          the row returned by {@link #add(Contact)}
+   * @return true if the row held a contact which was not removed yet
+   */
+  public synchronized boolean remove(int row) {
+    ensureOpen();
+    if (row < 0 || row >= rowCount || isRemoved(row)) {
+      return false;
+    }
+    AtomicLongArray words = removed[row / ROWS_PER_SEGMENT];
+    int word = (row % ROWS_PER_SEGMENT) >>> 6;
+    words.set(word, words.get(word) | (1L << row));
+    removedCount++;
+    return true;
+  }
+
+  /**
+   * decode the contact of a row. Every call creates a new contact, use a {@link Cursor} to read
+   * many rows.
+   *
+   * @param row
+   *          the row returned by {@link #add(Contact)}
+   * @return a new Contact object with the values of the row, or null if the row was removed or
+   *         never added
+   * @throws IllegalStateException
+   *           if a value of the row is not valid UTF-8
+   */
+  public Contact get(int row) {
+    ensureOpen();
+    if (row < 0 || row >= rowCount || isRemoved(row)) {
+      return null;
+    }
+    CharsetDecoder decoder = ContactFileReader.CHARSET.newDecoder();
+    return new Contact.Builder(column(row, NAME, decoder), column(row, PHONE_NUMBER, decoder))
+        .postalAddress(column(row, POSTAL_ADDRESS, decoder))
+        .emailAddress(column(row, EMAIL_ADDRESS, decoder)).note(column(row, NOTE, decoder))
+        .build();
+  }
+
+  /**
+   * @return the number of contacts in the store
+   */
+  public int size() {
+    ensureOpen();
+    // read rowCount first, so that the rows counted in removedCount are all counted in it
+    int count = rowCount;
+    return count - removedCount;
+  }
+
+  /**
+   * search in all the fields of all contacts, like {@link AddressBook#search(String)}. Case is
+   * ignored character by character. Rows are matched in their encoded form, and only the matching
+   * ones are decoded into contacts.
+   *
+   * @param searchString
+   *          the string to be searched
+   * @return the rows of all the contacts which contain the string
+   * @throws IllegalStateException
+   *           if a value of the store is not valid UTF-8
+   */
+  public List<Integer> search(String searchString) {
+    ensureOpen();
+    char[] query = lowerCase(searchString);
+    int end = rowCount;
+    Scan scan = new Scan();
+    List<Integer> resultRows = new ArrayList<Integer>();
+    for (int row = 0; row < end; row++) {
+      if (!isRemoved(row) && scan.contains(row, query)) {
+        resultRows.add(row);
+      }
+    }
+    return resultRows;
+  }
+
+  /**
+   * iterates over the contacts of the store in the order they were added, decoding each on access.
+   * The iterator works on the rows added before it is created.
+   */
+  @Override
+  public Iterator<Contact> iterator() {
+    ensureOpen();
+    final int end = rowCount;
+    return new Iterator<Contact>() {
+      private int row = 0;
+      private Contact next = advance();
+
+      private Contact advance() {
+        while (row < end) {
+          Contact contact = get(row++);
+          if (contact != null) {
+            return contact;
+          }
+        }
+        return null;
+      }
+
+      @Override
+      public boolean hasNext() {
+        return next != null;
+      }
+
+      @Override
+      public Contact next() {
+        if (next == null) {
+          throw new NoSuchElementException();
+        }
+        Contact contact = next;
+        next = advance();
+        return contact;
+      }
+
+      @Override
+      public void remove() {
+        throw new UnsupportedOperationException("use remove(int) with the row of the contact");
+      }
+    };
+  }
+
+  /**
+   * @return a new cursor over the rows of the store, for one thread
+   */
+  public Cursor cursor() {
+    ensureOpen();
+    return new Cursor();
+  }
+
+  /**
+   * release the rows and values of the store. Their direct buffers are freed by the garbage
+   * collector, which may happen only at its next cycle. Nothing may read the store while or after
+   * it is closed: the buffers are not freed right away, since a read still running on one of them
+   * would see its memory reused, and later adds, removes and reads throw
+   * {@link IllegalStateException}. Closing a closed store has no effect.
+   */
+  @Override
+  public synchronized void close() {
+    closed = true;
+    arena = new ByteBuffer[0];
+    rows = new ByteBuffer[0];
+    removed = new AtomicLongArray[0];
+    dictionaryAddresses = new long[0];
+    dictionaryIds.clear();
+    arenaTail = null;
+  }
+
+  /**
+   * @return the number of bytes allocated outside of the heap for rows and values
+   */
+  public long offHeapBytes() {
+    long bytes = 0;
+    for (ByteBuffer segment : arena) {
+      bytes += segment.capacity();
+    }
+    for (ByteBuffer segment : rows) {
+      bytes += segment.capacity();
+    }
+    return bytes;
+  }
+
+  /**
+   * @return the number of distinct values shared through the dictionary
+   */
+  public int dictionarySize() {
+    return dictionarySize;
+  }
+
+  private void ensureOpen() {
+    if (closed) {
+      throw new IllegalStateException("off heap contact store is closed");
+    }
+  }
+
+  private static ByteBuffer[] append(ByteBuffer[] segments, ByteBuffer segment) {
+    ByteBuffer[] newSegments = Arrays.copyOf(segments, segments.length + 1);
+    newSegments[segments.length] = segment;
+    return newSegments;
+  }
+
+  // the UTF-8 bytes of a value, or null
+  private ByteBuffer encode(String value) {
+    if (value == null) {
+      return null;
+    }
+    try {
+      return encoder.encode(CharBuffer.wrap(value));
+    } catch (CharacterCodingException e) {
+      throw new IllegalArgumentException("value can not be encoded as UTF-8: " + value, e);
+    }
+  }
+
+  // stores a value in the dictionary while there is room, otherwise in the arena
+  private long storeShared(String value, ByteBuffer bytes) {
+    if (value == null) {
+      return NULL;
+    }
+    Integer id = dictionaryIds.get(value);
+    if (id == null) {
+      if (dictionaryIds.size() == MAX_DICTIONARY_SIZE) {
+        return store(bytes);
+      }
+      id = dictionaryIds.size();
+      long[] addresses = dictionaryAddresses;
+      if (id == addresses.length) {
+        addresses = Arrays.copyOf(addresses, id * 2);
+      }
+      addresses[id] = store(bytes);
+      dictionaryAddresses = addresses;
+      dictionaryIds.put(value, id);
+      dictionarySize = id + 1;
+    }
+    return DICTIONARY_FLAG | id;
+  }
+
+  // copies the length and UTF-8 bytes of a value to the arena and returns its address
+  private long store(ByteBuffer bytes) {
+    if (bytes == null) {
+      return NULL;
+    }
+    int size = 4 + bytes.remaining();
+    if (arenaTail == null || arenaTail.remaining() < size) {
+      int segmentSize = arenaTail == null ? MIN_ARENA_SEGMENT_SIZE
+          : Math.min(arenaTail.capacity() * 2, MAX_ARENA_SEGMENT_SIZE);
+      ByteBuffer segment = ByteBuffer.allocateDirect(Math.max(segmentSize, size));
+      arena = append(arena, segment);
+      // the writer moves the position of a duplicate, so readers never see it change
+      arenaTail = segment.duplicate();
+    }
+    long address = ((long) (arena.length - 1) << 32) | arenaTail.position();
+    arenaTail.putInt(bytes.remaining()).put(bytes);
+    return address;
+  }
+
+  private boolean isRemoved(int row) {
+    long word = removed[row / ROWS_PER_SEGMENT].get((row % ROWS_PER_SEGMENT) >>> 6);
+    return (word & (1L << row)) != 0;
+  }
+
+  // resolves a column entry to the arena address of the value, or NULL
+  private long address(int row, int column) {
+    ByteBuffer segment = rows[row / ROWS_PER_SEGMENT];
+    long entry = segment.getLong((row % ROWS_PER_SEGMENT) * ROW_SIZE + column * 8);
+    if (entry != NULL && (entry & DICTIONARY_FLAG) != 0) {
+      return dictionaryAddresses[(int) (entry & ~DICTIONARY_FLAG)];
+    }
+    return entry;
+  }
+
+  // a view of the UTF-8 bytes of the value at an arena address
+  private ByteBuffer value(long address) {
+    ByteBuffer value = arena[(int) (address >>> 32)].duplicate();
+    int offset = (int) address;
+    value.position(offset + 4);
+    value.limit(offset + 4 + value.getInt(offset));
+    return value;
+  }
+
+  private String column(int row, int column, CharsetDecoder decoder) {
+    long address = address(row, column);
+    if (address == NULL) {
+      return null;
+    }
+    try {
+      return decoder.decode(value(address)).toString();
+    } catch (CharacterCodingException e) {
+      throw new IllegalStateException("corrupt value in row " + row, e);
+    }
+  }
+
+  private static char[] lowerCase(String text) {
+    char[] chars = new char[text.length()];
+    int length = 0;
+    for (int i = 0; i < text.length();) {
+      int codePoint = text.codePointAt(i);
+      length += Character.toChars(Character.toLowerCase(codePoint), chars, length);
+      i += Character.charCount(codePoint);
+    }
+    return Arrays.copyOf(chars, length);
+  }
+
+  /**
+   * Cursor reads the values of one row at a time without creating a {@link Contact} or a String.
+   * The values are decoded into buffers of the cursor which are reused for the next row, so a value
+   * is only valid until the cursor moves, and a cursor must not be shared between threads. Each
+   * value is decoded the first time it is asked for.
+   */
+  public final class Cursor {
+    private final CharsetDecoder decoder = ContactFileReader.CHARSET.newDecoder();
+    private final CharBuffer[] values = new CharBuffer[COLUMNS];
+    private final boolean[] decoded = new boolean[COLUMNS];
+    private int row = -1;
+
+    private Cursor() {
+    }
+
+    /**
+     * move the cursor to a row
+     *
+     * @param row
+     *          the row returned by {@link OffHeapContactStore#add(Contact)}
+     * @return true if the row holds a contact, false if it was removed or never added, in which
+     *         case the cursor is not on a row
+     */
+    public boolean moveTo(int row) {
+      ensureOpen();
+      Arrays.fill(decoded, false);
+      if (row < 0 || row >= rowCount || isRemoved(row)) {
+        this.row = -1;
+        return false;
+      }
+      this.row = row;
+      return true;
+    }
+
+    /**
+     * @return the name of the contact, valid until the cursor moves
+     */
+    public CharSequence name() {
+      return decode(NAME);
+    }
+
+    /**
+     * @return the phone number of the contact, valid until the cursor moves
+     */
+    public CharSequence phoneNumber() {
+      return decode(PHONE_NUMBER);
+    }
+
+    /**
+     * @return the postal address of the contact or null, valid until the cursor moves
+     */
+    public CharSequence postalAddress() {
+      return decode(POSTAL_ADDRESS);
+    }
+
+    /**
+     * @return the email address of the contact or null, valid until the cursor moves
+     */
+    public CharSequence emailAddress() {
+      return decode(EMAIL_ADDRESS);
+    }
+
+    /**
+     * @return the note of the contact or null, valid until the cursor moves
+     */
+    public CharSequence note() {
+      return decode(NOTE);
+    }
+
+    private CharSequence decode(int column) {
+      if (row < 0) {
+        throw new IllegalStateException("cursor is not on a row");
+      }
+      long address = address(row, column);
+      if (address == NULL) {
+        return null;
+      }
+      CharBuffer chars = values[column];
+      if (!decoded[column]) {
+        ByteBuffer bytes = value(address);
+        // UTF-8 never has more chars than bytes
+        if (chars == null || chars.capacity() < bytes.remaining()) {
+          chars = CharBuffer.allocate(Math.max(bytes.remaining(), 64));
+          values[column] = chars;
+        }
+        chars.clear();
+        decoder.reset();
+        CoderResult result = decoder.decode(bytes, chars, true);
+        if (!result.isError()) {
+          result = decoder.flush(chars);
+        }
+        if (result.isError()) {
+          throw new IllegalStateException("corrupt value in row " + row);
+        }
+        chars.flip();
+        decoded[column] = true;
+      }
+      return chars;
+    }
+  }
+
+  /*
+   * The buffers of one search, so that searches running at the same time share nothing.
+   */
+  private final class Scan {
+    private final CharsetDecoder decoder = ContactFileReader.CHARSET.newDecoder();
+    private CharBuffer decoded = CharBuffer.allocate(256);
+    private char[] text = new char[256];
+    private int length;
+
+    boolean contains(int row, char[] query) {
+      searchText(row);
+      outer: for (int start = 0; start + query.length <= length; start++) {
+        for (int i = 0; i < query.length; i++) {
+          if (text[start + i] != query[i]) {
+            continue outer;
+          }
+        }
+        return true;
+      }
+      return false;
+    }
+
+    // decodes a row into the text in the layout of Contact.toString, lower case
+    private void searchText(int row) {
+      length = 0;
+      for (int column = 0; column < COLUMNS; column++) {
+        long address = address(row, column);
+        if (address == NULL) {
+          if (column == NAME || column == PHONE_NUMBER) {
+            append("null");
+          }
+        } else {
+          appendValue(row, address);
+        }
+        append(";");
+      }
+    }
+
+    private void append(String value) {
+      ensureText(length + value.length());
+      for (int i = 0; i < value.length(); i++) {
+        text[length++] = value.charAt(i);
+      }
+    }
+
+    // decodes the UTF-8 bytes of a value after the text, lower casing each code point. A value
+    // never has more chars than bytes, even lower cased.
+    private void appendValue(int row, long address) {
+      ByteBuffer value = value(address);
+      int size = value.remaining();
+      if (decoded.capacity() < size) {
+        decoded = CharBuffer.allocate(Math.max(size, decoded.capacity() * 2));
+      }
+      decoded.clear();
+      decoder.reset();
+      CoderResult result = decoder.decode(value, decoded, true);
+      if (!result.isError()) {
+        result = decoder.flush(decoded);
+      }
+      if (result.isError()) {
+        throw new IllegalStateException("corrupt value in row " + row);
+      }
+      decoded.flip();
+      ensureText(length + size);
+      for (int i = 0; i < decoded.limit();) {
+        int codePoint = Character.codePointAt(decoded, i);
+        length += Character.toChars(Character.toLowerCase(codePoint), text, length);
+        i += Character.charCount(codePoint);
+      }
+    }
+
+    private void ensureText(int capacity) {
+      if (capacity > text.length) {
+        text = Arrays.copyOf(text, Math.max(capacity, text.length * 2));
+      }
+    }
+  }
+}
@@ -0,0 +1,158 @@
+package edu.nyu.cs.pqs;
+
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongBinaryOperator;
+
+/**
+ * OperationStats counts the calls of one address book operation and keeps a histogram of their
+ * latency. Every value is a striped {@link LongAdder}, so threads recording at the same time do
+ * not contend. The histogram has four buckets per power of two, which puts percentiles within 25%
+ * of the exact value.
+ *
+ * @author Rachita
+ *
+ */
+public final class OperationStats implements OperationStatsMBean {
+  private static final int SUB_BUCKETS = 4;
+  private static final int BUCKETS = 64 * SUB_BUCKETS;
+
+  private static final LongBinaryOperator MAX = new LongBinaryOperator() {
+    @Override
+    public long applyAsLong(long left, long right) {
+      return Math.max(left, right);
+    }
+  };
+
+  private final AddressBookMetrics.Operation operation;
+  private final LongAdder count = new LongAdder();
+  private final LongAdder totalNanos = new LongAdder();
+  private final LongAccumulator maxNanos = new LongAccumulator(MAX, 0);
+  private final LongAdder contacts = new LongAdder();
+  private final LongAdder scanned = new LongAdder();
+  private final LongAdder[] histogram = new LongAdder[BUCKETS];
+
+  OperationStats(AddressBookMetrics.Operation operation) {
+    this.operation = operation;
+    for (int i = 0; i < BUCKETS; i++) {
+      histogram[i] = new LongAdder();
+    }
+  }
+
+  void record(long nanos, long contactCount, long scannedCount) {
+    count.increment();
+    totalNanos.add(nanos);
+    maxNanos.accumulate(nanos);
+    histogram[bucket(nanos)].increment();
+    if (contactCount != 0) {
+      contacts.add(contactCount);
+    }
+    if (scannedCount != 0) {
+      scanned.add(scannedCount);
+    }
+  }
+
+  // the power of two of the value, and the next two bits below the highest one
+  private static int bucket(long nanos) {
+    if (nanos < SUB_BUCKETS) {
+      return (int) Math.max(nanos, 0);
+    }
+    int exponent = 63 - Long.numberOfLeadingZeros(nanos);
+    return exponent * SUB_BUCKETS + (int) (nanos >>> (exponent - 2) & (SUB_BUCKETS - 1));
+  }
+
+  // the largest value which falls into a bucket
+  private static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) {
+      return bucket;
+    }
+    int exponent = bucket / SUB_BUCKETS;
+    long bound = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS + 1) << (exponent - 2);
+    return bound <= 0 ? Long.MAX_VALUE : bound - 1;
+  }
+
+  /**
+   * @return the operation these statistics are about
+   */
+  public AddressBookMetrics.Operation getOperation() {
+    return operation;
+  }
+
+  @Override
+  public long getCount() {
+    return count.sum();
+  }
+
+  /**
+   * @return the total time spent in all calls, in nanoseconds
+   */
+  public long getTotalNanos() {
+    return totalNanos.sum();
+  }
+
+  /**
+   * returns an upper bound of a percentile of the latency, from the histogram
+   *
+   * @param percentile
+   *          the percentile, between 0 and 100
+   * @return the latency in nanoseconds, or 0 if there were no calls
+   */
+  public long getPercentileNanos(double percentile) {
+    long[] counts = new long[BUCKETS];
+    long total = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      counts[i] = histogram[i].sum();
+      total += counts[i];
+    }
+    if (total == 0) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(total * Math.min(Math.max(percentile, 0), 100) / 100);
+    long seen = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts[i];
+      if (seen >= Math.max(rank, 1)) {
+        return Math.min(upperBound(i), maxNanos.get());
+      }
+    }
+    return maxNanos.get();
+  }
+
+  @Override
+  public double getMeanMicros() {
+    long calls = count.sum();
+    return calls == 0 ? 0 : totalNanos.sum() / 1000.0 / calls;
+  }
+
+  @Override
+  public double getMedianMicros() {
+    return getPercentileNanos(50) / 1000.0;
+  }
+
+  @Override
+  public double getP99Micros() {
+    return getPercentileNanos(99) / 1000.0;
+  }
+
+  @Override
+  public double getMaxMicros() {
+    return maxNanos.get() / 1000.0;
+  }
+
+  @Override
+  public long getContactCount() {
+    return contacts.sum();
+  }
+
+  @Override
+  public long getScannedCount() {
+    return scanned.sum();
+  }
+
+  @Override
+  public String toString() {
+    return String.format("%s: %d calls, mean %.1f us, median %.1f us, p99 %.1f us, max %.1f us, "
+        + "%d contacts, %d scanned", operation, getCount(), getMeanMicros(), getMedianMicros(),
+        getP99Micros(), getMaxMicros(), getContactCount(), getScannedCount());
+  }
+}
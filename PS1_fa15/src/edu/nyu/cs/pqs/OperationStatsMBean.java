@@ -0,0 +1,45 @@
+package edu.nyu.cs.pqs;
+
+/**
+ * OperationStatsMBean is the management interface under which {@link JmxMetricsReporter} exposes
+ * the {@link OperationStats} of one address book operation.
+ *
+ * @author Rachita
+ *
+ */
+public interface OperationStatsMBean {
+  /**
+   * @return the number of calls
+   */
+  long getCount();
+
+  /**
+   * @return the mean latency of a call in microseconds
+   */
+  double getMeanMicros();
+
+  /**
+   * @return the median latency of a call in microseconds
+   */
+  double getMedianMicros();
+
+  /**
+   * @return the 99th percentile of the latency of a call in microseconds
+   */
+  double getP99Micros();
+
+  /**
+   * @return the longest latency of a call in microseconds
+   */
+  double getMaxMicros();
+
+  /**
+   * @return the number of contacts added, removed, found, loaded or saved by all calls
+   */
+  long getContactCount();
+
+  /**
+   * @return the number of contacts checked by all searches
+   */
+  long getScannedCount();
+}
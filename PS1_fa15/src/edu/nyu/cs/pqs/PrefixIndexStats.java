@@ -0,0 +1,57 @@
+package edu.nyu.cs.pqs;
+
+/**
+ * PrefixIndexStats describes the size of the index behind {@link AddressBook#complete(String, int)}
+ * at the time it was taken.
+ *
+ * @author Rachita
+ *
+ */
+public final class PrefixIndexStats {
+  private final long keyCount;
+  private final long nodeCount;
+  private final long entryCount;
+  private final long estimatedBytes;
+
+  PrefixIndexStats(long keyCount, long nodeCount, long entryCount, long estimatedBytes) {
+    this.keyCount = keyCount;
+    this.nodeCount = nodeCount;
+    this.entryCount = entryCount;
+    this.estimatedBytes = estimatedBytes;
+  }
+
+  /**
+   * @return the number of distinct names, name words and email local parts indexed
+   */
+  public long getKeyCount() {
+    return keyCount;
+  }
+
+  /**
+   * @return the number of nodes of the tree
+   */
+  public long getNodeCount() {
+    return nodeCount;
+  }
+
+  /**
+   * @return the number of contact entries under the keys, including removed contacts which have not
+   *         been compacted yet
+   */
+  public long getEntryCount() {
+    return entryCount;
+  }
+
+  /**
+   * @return a rough estimate of the heap used by the index, in bytes
+   */
+  public long getEstimatedBytes() {
+    return estimatedBytes;
+  }
+
+  @Override
+  public String toString() {
+    return keyCount + " keys, " + nodeCount + " nodes, " + entryCount + " entries, about "
+        + estimatedBytes + " bytes";
+  }
+}
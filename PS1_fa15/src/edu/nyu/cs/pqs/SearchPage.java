@@ -0,0 +1,47 @@
+package edu.nyu.cs.pqs;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * SearchPage is one page of the results of {@link AddressBook#searchRanked(String, int, String)},
+ * best matches first. The cursor of a page is passed back to get the page after it.
+ *
+ * @author Rachita
+ *
+ */
+public final class SearchPage {
+  private final List<Contact> contacts;
+  private final String nextCursor;
+
+  SearchPage(List<Contact> contacts, String nextCursor) {
+    this.contacts = Collections.unmodifiableList(contacts);
+    this.nextCursor = nextCursor;
+  }
+
+  /**
+   * @return the contacts of this page, best match first
+   */
+  public List<Contact> getContacts() {
+    return contacts;
+  }
+
+  /**
+   * @return the cursor to get the next page with, or null if this is the last page
+   */
+  public String getNextCursor() {
+    return nextCursor;
+  }
+
+  /**
+   * @return true if there are more results after this page
+   */
+  public boolean hasNextPage() {
+    return nextCursor != null;
+  }
+
+  @Override
+  public String toString() {
+    return contacts + (nextCursor == null ? "" : " next: " + nextCursor);
+  }
+}
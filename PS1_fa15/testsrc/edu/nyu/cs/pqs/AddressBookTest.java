@@ -0,0 +1,898 @@
+package edu.nyu.cs.pqs;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AddressBookTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  AddressBook addressBook;
+  Contact contact1;
+  Contact contact2;
+  Contact contact3;
+
+  @Before
+  public void setUp() {
+    addressBook = AddressBook.createEmptyAddressBook();
+    contact1 = new Contact.Builder("Alice Smith", "2125550101").emailAddress("alice@nyu.edu")
+        .postalAddress("1 Washington Sq").note("friend").build();
+    contact2 = new Contact.Builder("Bob Jones", "2125550102").emailAddress("bob@nyu.edu").build();
+    contact3 = new Contact.Builder("Carol Smithers", "6465550103").note("work").build();
+    addressBook.addContact(contact1);
+    addressBook.addContact(contact2);
+    addressBook.addContact(contact3);
+  }
+
+  @Test
+  public void testSearch() {
+    List<Contact> result = addressBook.search("SMITH");
+    assertEquals(2, result.size());
+    assertEquals(contact1, result.get(0));
+    assertEquals(contact3, result.get(1));
+
+    assertEquals(3, addressBook.search("").size());
+    assertEquals(2, addressBook.search("nyu.edu").size());
+    assertTrue(addressBook.search("not there").isEmpty());
+  }
+
+  @Test
+  public void testSearch_shortQuery() {
+    assertEquals(1, addressBook.search("Bo").size());
+    assertEquals(3, addressBook.search("5").size());
+  }
+
+  @Test
+  public void testSearch_parallel() {
+    List<Contact> expected = new ArrayList<Contact>();
+    for (int i = 0; i < 5000; i++) {
+      Contact contact = new Contact.Builder("name" + i, "555" + i).build();
+      addressBook.addContact(contact);
+      if (i % 7 == 0) {
+        addressBook.removeContact(contact);
+      } else if (Integer.toString(i).startsWith("1")) {
+        expected.add(contact);
+      }
+    }
+    addressBook.setSearchSegmentSize(100);
+    assertEquals(expected, addressBook.search("e1"));
+    assertEquals(2, addressBook.search("smith").size());
+    addressBook.setSearchSegmentSize(Integer.MAX_VALUE);
+    assertEquals(expected, addressBook.search("e1"));
+  }
+
+  @Test
+  public void testSearchRanked() {
+    Contact smith = new Contact.Builder("Smith", "2125550104").build();
+    Contact noted = new Contact.Builder("Dave Doe", "2125550105").note("met smith at work").build();
+    addressBook.addContact(noted);
+    addressBook.addContact(smith);
+
+    SearchPage page = addressBook.searchRanked("smith", 2);
+    assertEquals(Arrays.asList(smith, contact1), page.getContacts());
+    assertTrue(page.hasNextPage());
+    page = addressBook.searchRanked("smith", 2, page.getNextCursor());
+    assertEquals(Arrays.asList(contact3, noted), page.getContacts());
+    assertFalse(page.hasNextPage());
+
+    assertEquals(Arrays.asList(contact1, smith, noted),
+        addressBook.searchRanked("smitj", 10).getContacts());
+    assertEquals(Arrays.asList(contact1, smith, noted),
+        addressBook.searchRanked("msith", 10).getContacts());
+    assertEquals(Arrays.asList(contact1, smith, noted),
+        addressBook.searchRanked("xmith", 10).getContacts());
+    assertTrue(addressBook.searchRanked("zzz", 10).getContacts().isEmpty());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSearchRanked_badCursor() {
+    addressBook.searchRanked("smith", 2, "not a cursor");
+  }
+
+  @Test
+  public void testComplete() {
+    Contact carl = new Contact.Builder("Carl Sagan", "2125550104").emailAddress("smitty@nyu.edu")
+        .build();
+    addressBook.addContact(carl);
+
+    assertEquals(Arrays.asList(contact1, contact3, carl), addressBook.complete("Smi", 10));
+    assertEquals(Arrays.asList(carl, contact3), addressBook.complete("car", 10));
+    assertEquals(Arrays.asList(contact1), addressBook.complete("smith", 1));
+    assertEquals(Arrays.asList(contact2), addressBook.complete("bob", 10));
+    assertTrue(addressBook.complete("smithz", 10).isEmpty());
+    assertTrue(addressBook.complete("", 0).isEmpty());
+    assertEquals(4, addressBook.complete("", 10).size());
+
+    addressBook.removeContact(contact1);
+    assertEquals(Arrays.asList(contact3, carl), addressBook.complete("smi", 10));
+
+    PrefixIndexStats stats = addressBook.getPrefixIndexStats();
+    assertTrue(stats.getKeyCount() > 0);
+    assertTrue(stats.getNodeCount() > stats.getKeyCount() / 2);
+    assertTrue(stats.getEstimatedBytes() > 0);
+  }
+
+  @Test
+  public void testFindByField() {
+    assertEquals(Arrays.asList(contact1), new ArrayList<Contact>(addressBook.findByName(
+        "alice smith")));
+    assertEquals(Arrays.asList(contact2), new ArrayList<Contact>(addressBook.findByPhone(
+        "(212) 555-0102")));
+    assertEquals(Arrays.asList(contact2), new ArrayList<Contact>(addressBook.findByEmail(
+        "BOB@nyu.edu")));
+    assertTrue(addressBook.findByName("Alice").isEmpty());
+    assertTrue(addressBook.findByEmail(null).isEmpty());
+
+    Collection<Contact> view = addressBook.findByName("Bob Jones");
+    addressBook.removeContact(contact2);
+    assertEquals("views do not change after they are taken", 1, view.size());
+    assertTrue(addressBook.findByName("Bob Jones").isEmpty());
+  }
+
+  @Test
+  public void testRemoveContact() {
+    addressBook.addContact(contact1);
+    addressBook.removeContact(contact1);
+    List<Contact> result = addressBook.search("alice");
+    assertEquals(1, result.size());
+
+    addressBook.removeContact(contact1);
+    assertTrue(addressBook.search("alice").isEmpty());
+    assertEquals(2, addressBook.search("").size());
+  }
+
+  @Test
+  public void testRemoveAll() {
+    List<Contact> toRemove = new ArrayList<Contact>();
+    for (int i = 0; i < 5000; i++) {
+      Contact contact = new Contact.Builder("bulk" + i, "555" + i).build();
+      addressBook.addContact(contact);
+      toRemove.add(contact);
+    }
+    toRemove.add(contact2);
+    assertTrue(addressBook.removeAll(toRemove));
+    assertFalse(addressBook.removeAll(toRemove));
+
+    assertTrue(addressBook.search("bulk").isEmpty());
+    List<Contact> result = addressBook.search("");
+    assertEquals(2, result.size());
+    assertEquals(contact1, result.get(0));
+    assertEquals(contact3, result.get(1));
+  }
+
+  @Test
+  public void testAddAll() {
+    AddressBook oneByOne = AddressBook.createEmptyAddressBook();
+    List<Contact> batch = new ArrayList<Contact>();
+    for (int i = 0; i < 70000; i++) {
+      Contact contact = new Contact.Builder("name" + i % 50000, "555" + i % 50000).build();
+      batch.add(contact);
+      oneByOne.addContact(contact);
+    }
+    AddressBook bulk = AddressBook.createEmptyAddressBook();
+    assertEquals(70000, bulk.addAll(batch));
+    assertEquals(oneByOne, bulk);
+    assertEquals(oneByOne.search("e4999"), bulk.search("e4999"));
+    assertEquals(2, bulk.findByName("NAME42").size());
+
+    assertEquals(1, addressBook.addAll(Arrays.asList(contact1, contact2, batch.get(0),
+        batch.get(50000)), true));
+    assertEquals(4, addressBook.search("").size());
+    assertEquals(2, addressBook.addAll(Arrays.asList(contact1, contact1)));
+    assertEquals(6, addressBook.search("").size());
+  }
+
+  @Test
+  public void testSnapshot() throws IOException {
+    List<Contact> batch = new ArrayList<Contact>();
+    for (int i = 0; i < 3000; i++) {
+      batch.add(new Contact.Builder("name" + i, "555" + i).build());
+    }
+    addressBook.addAll(batch);
+    AddressBookSnapshot snapshot = addressBook.snapshot();
+
+    // enough removes to compact the store under the snapshot
+    addressBook.removeAll(batch);
+    addressBook.removeContact(contact1);
+    addressBook.addContact(new Contact.Builder("Dave Smith", "2125550104").build());
+
+    assertEquals(3003, snapshot.size());
+    assertEquals(Arrays.asList(contact1, contact3), snapshot.search("smith"));
+    assertEquals(1, snapshot.findByName("alice smith").size());
+    assertEquals(Arrays.asList(contact1), snapshot.complete("ali", 10));
+    List<Contact> iterated = new ArrayList<Contact>();
+    for (Contact contact : snapshot) {
+      iterated.add(contact);
+    }
+    assertEquals(contact1, iterated.get(0));
+    assertEquals(batch.get(2999), iterated.get(3002));
+
+    File file = folder.newFile("snapshot.txt");
+    snapshot.saveToFile(file.getPath(), true);
+    AddressBook fromFile = AddressBook.createEmptyAddressBook();
+    fromFile.loadContactsFromFile(file.getPath());
+    assertEquals(fromFile.snapshot().toString(), snapshot.toString());
+
+    assertEquals(3, addressBook.snapshot().size());
+    assertEquals(2, addressBook.search("smith").size());
+  }
+
+  @Test
+  public void testMetrics() throws IOException {
+    assertEquals(null, addressBook.getMetrics());
+    AddressBookMetrics metrics = addressBook.enableMetrics();
+    assertTrue(metrics == addressBook.enableMetrics());
+
+    addressBook.addContact(new Contact.Builder("Dave Smith", "2125550104").build());
+    addressBook.removeContact(contact2);
+    addressBook.search("smith");
+    addressBook.search("nobody");
+    File file = folder.newFile("metrics.txt");
+    addressBook.saveAddressBookToFile(file.getPath());
+    addressBook.loadContactsFromFile(file.getPath());
+
+    OperationStats add = metrics.get(AddressBookMetrics.Operation.ADD);
+    assertEquals(1, add.getCount());
+    assertEquals(1, add.getContactCount());
+    assertEquals(1, metrics.get(AddressBookMetrics.Operation.REMOVE).getContactCount());
+    OperationStats search = metrics.get(AddressBookMetrics.Operation.SEARCH);
+    assertEquals(2, search.getCount());
+    assertEquals(3, search.getContactCount());
+    assertTrue(search.getScannedCount() >= 3);
+    assertTrue(search.getPercentileNanos(50) <= search.getPercentileNanos(100));
+    assertTrue(search.getMaxMicros() > 0);
+    assertEquals(3, metrics.get(AddressBookMetrics.Operation.SAVE).getContactCount());
+    assertEquals(3, metrics.get(AddressBookMetrics.Operation.LOAD).getContactCount());
+
+    JmxMetricsReporter reporter = new JmxMetricsReporter("testMetrics");
+    reporter.start(metrics);
+    try {
+      ObjectName name = new ObjectName(
+          "edu.nyu.cs.pqs:type=AddressBook,name=\"testMetrics\",operation=SEARCH");
+      assertEquals(2L, ManagementFactory.getPlatformMBeanServer().getAttribute(name, "Count"));
+    } catch (JMException e) {
+      throw new AssertionError(e);
+    } finally {
+      reporter.stop();
+    }
+
+    addressBook.disableMetrics();
+    addressBook.search("smith");
+    assertEquals(2, search.getCount());
+  }
+
+  @Test
+  public void testFindDuplicates() {
+    Contact alice = new Contact.Builder("alice smith", "(212) 555-0101")
+        .emailAddress("ALICE@nyu.edu").build();
+    Contact alicia = new Contact.Builder("Alicia Smith", "1 212 555 0101").build();
+    Contact bobby = new Contact.Builder("Bobby Jones", "212.555.0102").build();
+    Contact otherBob = new Contact.Builder("Bob Jones", "7185550100").emailAddress("bj@gmail.com")
+        .build();
+    addressBook.addAll(Arrays.asList(alice, alicia, bobby, otherBob));
+    for (int i = 0; i < 5000; i++) {
+      addressBook.addContact(new Contact.Builder("person" + i, "555" + (1000000 + i)).build());
+    }
+
+    List<DuplicateCluster> clusters = addressBook.findDuplicates();
+    assertEquals(2, clusters.size());
+    assertEquals(Arrays.asList(contact1, alice, alicia), clusters.get(0).getContacts());
+    Contact merged = clusters.get(0).getSuggestedMerge();
+    assertEquals("Alice Smith", merged.getName());
+    assertEquals("friend", merged.getNote());
+    assertEquals(Arrays.asList(contact2, bobby), clusters.get(1).getContacts());
+    assertEquals("2125550102", clusters.get(1).getSuggestedMerge().getPhoneNumber());
+    assertTrue(clusters.get(1).getSimilarity() >= 0.7);
+
+    clusters = addressBook.findDuplicates(1);
+    assertEquals(1, clusters.size());
+    assertEquals(Arrays.asList(contact1, alice), clusters.get(0).getContacts());
+  }
+
+  @Test
+  public void testSaveAndLoad() throws IOException {
+    File file = folder.newFile("book.txt");
+    addressBook.saveAddressBookToFile(file.getPath());
+
+    AddressBook fromFile = AddressBook.createEmptyAddressBook();
+    fromFile.loadContactsFromFile(file.getPath());
+    assertEquals(addressBook, fromFile);
+  }
+
+  @Test
+  public void testSaveAtomically() throws IOException {
+    File file = folder.newFile("atomic.txt");
+    addressBook.saveAddressBookToFile(file.getPath(), true);
+
+    String saved = new String(Files.readAllBytes(file.toPath()), "UTF-8");
+    assertEquals(addressBook.toString(), saved);
+    assertEquals(1, folder.getRoot().list().length);
+  }
+
+  @Test
+  public void testSaveAtomically_keepsPermissions() throws IOException {
+    File file = folder.newFile("shared.txt");
+    Assume.assumeNotNull(Files.getFileAttributeView(file.toPath(),
+        PosixFileAttributeView.class));
+    Set<PosixFilePermission> shared = PosixFilePermissions.fromString("rw-rw-r--");
+    Files.setPosixFilePermissions(file.toPath(), shared);
+    addressBook.saveAddressBookToFile(file.getPath(), true);
+    assertEquals(shared, Files.getPosixFilePermissions(file.toPath()));
+  }
+
+  @Test
+  public void testSaveAndLoadBinary() throws IOException {
+    File file = folder.newFile("book.bin");
+    addressBook.addContact(new Contact.Builder("Semi;Colon", "1").note("a\nb").build());
+    for (int i = 0; i < 10000; i++) {
+      addressBook.addContact(new Contact.Builder("name" + i, "555" + i).build());
+    }
+    addressBook.saveAddressBookToBinaryFile(file.getPath(), true);
+
+    AddressBook fromFile = AddressBook.createEmptyAddressBook();
+    fromFile.loadContactsFromFile(file.getPath());
+    assertEquals(addressBook, fromFile);
+  }
+
+  @Test
+  public void testSaveAndLoadCompressed() throws IOException {
+    File file = folder.newFile("book.pqz");
+    StringBuilder longNote = new StringBuilder();
+    for (int i = 0; i < 20000; i++) {
+      longNote.append(i);
+    }
+    addressBook.addContact(new Contact.Builder("Long Note", "1").note(longNote.toString()).build());
+    for (int i = 0; i < 30000; i++) {
+      addressBook.addContact(new Contact.Builder("name" + i, "555" + i).build());
+    }
+    addressBook.saveAddressBookToCompressedFile(file.getPath());
+    assertTrue(file.length() < 30000 * 10);
+
+    AddressBook fromFile = AddressBook.createEmptyAddressBook();
+    fromFile.loadContactsFromFile(file.getPath());
+    assertEquals(addressBook, fromFile);
+    final List<Contact> inParallel = new ArrayList<Contact>();
+    ContactBlockFile.read(file.toPath(), 4, new ContactFileReader.ContactConsumer() {
+      @Override
+      public void accept(List<Contact> contacts) {
+        inParallel.addAll(contacts);
+      }
+    });
+    assertEquals(addressBook.search(""), inParallel);
+
+    CompressedAddressBookFile compressed = CompressedAddressBookFile.open(file.getPath());
+    try {
+      assertEquals(30004, compressed.size());
+      assertEquals(contact2, compressed.get(1));
+      assertEquals(longNote.toString(), compressed.get(3).getNote());
+      assertEquals(inParallel.subList(5000, 25000), compressed.getRange(5000, 20000));
+      assertEquals(inParallel.get(30003), compressed.get(30003));
+    } finally {
+      compressed.close();
+    }
+  }
+
+  @Test
+  public void testLoadBinary_corrupt() throws IOException {
+    File file = folder.newFile("corrupt.bin");
+    addressBook.saveAddressBookToBinaryFile(file.getPath(), false);
+    RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+    randomAccessFile.seek(randomAccessFile.length() - 1);
+    randomAccessFile.write('x');
+    randomAccessFile.close();
+
+    AddressBook fromFile = AddressBook.createEmptyAddressBook();
+    try {
+      fromFile.loadContactsFromFile(file.getPath());
+      fail("a corrupt file should not load");
+    } catch (IOException e) {
+      assertTrue(fromFile.search("").isEmpty());
+    }
+  }
+
+  @Test
+  public void testLoadCompressed_corruptIndex() throws IOException {
+    File file = folder.newFile("corrupt.blk");
+    addressBook.saveAddressBookToCompressedFile(file.getPath());
+    byte[] saved = Files.readAllBytes(file.toPath());
+    // the index of the single block is the last 32 bytes of the file
+    int entry = saved.length - 32;
+    // sizes which would have the reader allocate gigabytes
+    ByteBuffer corrupt = ByteBuffer.wrap(saved.clone());
+    corrupt.putInt(entry + 12, Integer.MAX_VALUE);
+    assertCorruptCompressed(file, corrupt);
+    corrupt = ByteBuffer.wrap(saved.clone());
+    corrupt.putLong(8, 1 << 30).putInt(entry + 24, 1 << 30);
+    assertCorruptCompressed(file, corrupt);
+    // an empty block
+    corrupt = ByteBuffer.wrap(saved.clone());
+    corrupt.putLong(8, 0).putInt(entry + 24, 0);
+    assertCorruptCompressed(file, corrupt);
+  }
+
+  private void assertCorruptCompressed(File file, ByteBuffer contents) throws IOException {
+    Files.write(file.toPath(), contents.array());
+    AddressBook fromFile = AddressBook.createEmptyAddressBook();
+    try {
+      fromFile.loadContactsFromFile(file.getPath());
+      fail("a corrupt compressed file should not load");
+    } catch (IOException e) {
+      assertTrue(fromFile.search("").isEmpty());
+    }
+  }
+
+  @Test(expected = CharacterCodingException.class)
+  public void testSaveBinary_loneSurrogate() throws IOException {
+    addressBook.addContact(new Contact.Builder("Lone \ud800 Surrogate", "1").build());
+    addressBook.saveAddressBookToBinaryFile(folder.newFile("surrogate.bin").getPath(), false);
+  }
+
+  @Test(expected = CharacterCodingException.class)
+  public void testSaveCompressed_loneSurrogate() throws IOException {
+    addressBook.addContact(new Contact.Builder("Lone \ud800 Surrogate", "1").build());
+    addressBook.saveAddressBookToCompressedFile(folder.newFile("surrogate.blk").getPath());
+  }
+
+  @Test
+  public void testJournal_loneSurrogate() throws IOException {
+    AddressBook journaled = AddressBook.openJournaledAddressBook(folder.newFolder("lone")
+        .getPath());
+    try {
+      journaled.addContact(new Contact.Builder("Lone \ud800 Surrogate", "1").build());
+      fail("a lone surrogate can not be logged as UTF-8");
+    } catch (IllegalArgumentException expected) {
+      assertTrue(journaled.search("").isEmpty());
+    }
+    journaled.closeJournal();
+  }
+
+  @Test
+  public void testJournal() throws IOException {
+    String directory = folder.newFolder("journal").getPath();
+    AddressBook journaled = AddressBook.openJournaledAddressBook(directory);
+    journaled.addContact(contact1);
+    journaled.addContact(contact2);
+    journaled.compactJournal();
+    journaled.addContact(contact3);
+    journaled.removeContact(contact2);
+    journaled.closeJournal();
+
+    AddressBook recovered = AddressBook.openJournaledAddressBook(directory);
+    List<Contact> result = recovered.search("");
+    assertEquals(2, result.size());
+    assertEquals(contact1, result.get(0));
+    assertEquals(contact3, result.get(1));
+    recovered.closeJournal();
+  }
+
+  @Test
+  public void testJournal_tornWrite() throws IOException {
+    File directory = folder.newFolder("torn");
+    AddressBook journaled = AddressBook.openJournaledAddressBook(directory.getPath());
+    journaled.addContact(contact1);
+    journaled.closeJournal();
+
+    // a crash in the middle of a write leaves half a frame at the end of the log
+    RandomAccessFile log = new RandomAccessFile(new File(directory, "journal-0.log"), "rw");
+    log.seek(log.length());
+    log.write(new byte[] { 0, 0, 0, 42, 1, 2 });
+    log.close();
+
+    AddressBook recovered = AddressBook.openJournaledAddressBook(directory.getPath());
+    assertEquals(1, recovered.search("").size());
+    recovered.addContact(contact2);
+    recovered.closeJournal();
+
+    recovered = AddressBook.openJournaledAddressBook(directory.getPath());
+    assertEquals(2, recovered.search("").size());
+    recovered.closeJournal();
+  }
+
+  @Test
+  public void testJournal_failedCompaction() throws IOException {
+    final List<FailingChannel> logs = new ArrayList<FailingChannel>();
+    ContactJournal.LogOpener opener = new ContactJournal.LogOpener() {
+      @Override
+      public FileChannel open(Path path) throws IOException {
+        FailingChannel log = new FailingChannel(ContactJournal.FILE_LOGS.open(path));
+        logs.add(log);
+        return log;
+      }
+    };
+    ContactStore store = new ContactStore();
+    ContactJournal journal = ContactJournal.open(folder.newFolder("failing").toPath(), store,
+        Long.MAX_VALUE, opener);
+    store.add(contact1);
+    journal.awaitDurable();
+
+    logs.get(0).failing = true;
+    store.add(contact2);
+    try {
+      // the flush before the new generation fails, whether compaction or the flusher runs it
+      journal.compact();
+      fail("compaction wrote to a failing log");
+    } catch (IOException expected) {
+    }
+
+    // the frame of contact2 is lost, so nothing after it may be reported durable
+    logs.get(0).failing = false;
+    try {
+      journal.awaitDurable();
+      fail("a lost frame was reported durable");
+    } catch (UncheckedIOException expected) {
+    }
+    try {
+      store.add(contact3);
+      fail("a failed journal accepted a change");
+    } catch (UncheckedIOException expected) {
+    }
+    try {
+      journal.close();
+      fail("a failed journal closed cleanly");
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void testLoadInParallelChunks() throws IOException {
+    File file = folder.newFile("chunks.txt");
+    AddressBook book = AddressBook.createEmptyAddressBook();
+    for (int i = 0; i < 2000; i++) {
+      book.addContact(new Contact.Builder("name" + i, "555" + i).note(i % 3 == 0 ? null : "n" + i)
+          .build());
+    }
+    book.saveAddressBookToFile(file.getPath());
+
+    final AddressBook fromFile = AddressBook.createEmptyAddressBook();
+    long read = new ContactFileReader(4, 1000).read(file.getPath(),
+        new ContactFileReader.ContactConsumer() {
+          @Override
+          public void accept(List<Contact> contacts) {
+            for (Contact contact : contacts) {
+              fromFile.addContact(contact);
+            }
+          }
+        });
+    assertEquals(2000, read);
+    assertEquals(book, fromFile);
+  }
+
+  @Test
+  public void testLazyFile() throws IOException {
+    File file = folder.newFile("lazy.txt");
+    Files.write(file.toPath(), "\nAlice;1\r\n\r\nBob;2;;bob@nyu.edu\n\n".getBytes("UTF-8"));
+    LazyAddressBookFile lazy = LazyAddressBookFile.open(file.getPath(), 10);
+    try {
+      assertEquals("bob@nyu.edu", lazy.get(1).getEmailAddress());
+      try {
+        lazy.get(2);
+        fail("read a contact past the end of the file");
+      } catch (IndexOutOfBoundsException expected) {
+      }
+      assertEquals(2, lazy.size());
+      assertEquals("Alice", lazy.get(0).getName());
+    } finally {
+      lazy.close();
+    }
+
+    for (int i = 0; i < 1000; i++) {
+      addressBook.addContact(new Contact.Builder("name" + i, "555" + i).build());
+    }
+    List<Contact> all = addressBook.search("");
+    addressBook.saveAddressBookToFile(file.getPath());
+    File binaryFile = folder.newFile("lazy.bin");
+    addressBook.saveAddressBookToBinaryFile(binaryFile.getPath(), true);
+    for (LazyAddressBookFile opened : Arrays.asList(
+        LazyAddressBookFile.open(file.getPath(), 100, 4000, 1000),
+        LazyAddressBookFile.open(binaryFile.getPath(), 100))) {
+      try {
+        assertEquals(1003, opened.size());
+        for (int i = 1002; i >= 0; i -= 7) {
+          assertEquals(all.get(i), opened.get(i));
+        }
+        assertEquals(100, opened.cachedCount());
+        assertTrue(opened.get(1002) == opened.get(1002));
+      } finally {
+        opened.close();
+      }
+    }
+  }
+
+  @Test
+  public void testOffHeapStore() throws IOException {
+    OffHeapContactStore store = new OffHeapContactStore();
+    for (Contact contact : Arrays.asList(contact1, contact2, contact3)) {
+      store.add(contact);
+    }
+    int row = store.add(new Contact.Builder("Dave Doe", "2125550104").postalAddress(
+        "2 Broadway, NY 10004").build());
+    assertEquals(4, store.size());
+    assertEquals(new Contact.Builder("Dave Doe", "2125550104").postalAddress(
+        "2 Broadway, NY 10004").build(), store.get(row));
+    assertEquals(Arrays.asList(0, 2), store.search("SMITH"));
+    assertEquals(Arrays.asList(row), store.search("10004"));
+
+    assertTrue(store.remove(0));
+    assertFalse(store.remove(0));
+    assertEquals(null, store.get(0));
+    assertEquals(Arrays.asList(2), store.search("smith"));
+
+    File file = folder.newFile("offheap.txt");
+    addressBook.saveAddressBookToFile(file.getPath());
+    OffHeapContactStore fromFile = OffHeapContactStore.loadFromFile(file.getPath());
+    List<Contact> contacts = new ArrayList<Contact>();
+    for (Contact contact : fromFile) {
+      contacts.add(contact);
+    }
+    assertEquals(Arrays.asList(contact1, contact2, contact3), contacts);
+  }
+
+  @Test
+  public void testOffHeapStore_cursor() {
+    OffHeapContactStore store = new OffHeapContactStore();
+    store.add(contact1);
+    int row = store.add(new Contact.Builder("Dave Doe", "2125550104").note("\u00fcn\u00efcode")
+        .build());
+    store.remove(0);
+
+    OffHeapContactStore.Cursor cursor = store.cursor();
+    assertFalse(cursor.moveTo(0));
+    assertTrue(cursor.moveTo(row));
+    assertEquals("Dave Doe", cursor.name().toString());
+    assertEquals("2125550104", cursor.phoneNumber().toString());
+    assertEquals(null, cursor.postalAddress());
+    assertEquals("\u00fcn\u00efcode", cursor.note().toString());
+
+    store.close();
+    assertEquals(0, store.offHeapBytes());
+    try {
+      store.get(row);
+      fail("a closed store was read");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  @Test
+  public void testOffHeapStore_loneSurrogate() {
+    OffHeapContactStore store = new OffHeapContactStore();
+    try {
+      store.add(new Contact.Builder("Lone \ud800 Surrogate", "2125550105").build());
+      fail("a lone surrogate can not be stored as UTF-8");
+    } catch (IllegalArgumentException expected) {
+      assertEquals(0, store.size());
+    }
+  }
+
+  @Test
+  public void testEquals() {
+    AddressBook other = AddressBook.createEmptyAddressBook();
+    other.addContact(contact1);
+    other.addContact(contact2);
+    assertTrue(!addressBook.equals(other));
+
+    other.addContact(contact3);
+    assertEquals(addressBook, other);
+    assertEquals(addressBook.hashCode(), other.hashCode());
+  }
+
+  /*
+   * Writers add contacts and remove every second one while readers search. Each writer's share of
+   * the results only ever drops by the one contact it is about to remove, so a reader working on
+   * consistent snapshots never sees the count drop by more than the number of writers.
+   */
+  @Test
+  public void testConcurrentAddAndSearch() throws Exception {
+    final int writers = 4;
+    final int readers = 4;
+    final int contactsPerWriter = 5000;
+    final AddressBook book = AddressBook.createEmptyAddressBook();
+    final AtomicBoolean writing = new AtomicBoolean(true);
+    final CountDownLatch start = new CountDownLatch(1);
+    ExecutorService executor = Executors.newFixedThreadPool(writers + readers);
+    List<Future<?>> writerFutures = new ArrayList<Future<?>>();
+    List<Future<?>> readerFutures = new ArrayList<Future<?>>();
+
+    for (int w = 0; w < writers; w++) {
+      final int writer = w;
+      writerFutures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          await(start);
+          for (int i = 0; i < contactsPerWriter; i++) {
+            Contact contact = new Contact.Builder("writer" + writer + " contact" + i, "555" + i)
+                .note("pair").build();
+            book.addContact(contact);
+            if (i % 2 == 1) {
+              book.removeContact(contact);
+            }
+          }
+        }
+      }));
+    }
+    for (int r = 0; r < readers; r++) {
+      readerFutures.add(executor.submit(new Runnable() {
+        @Override
+        public void run() {
+          await(start);
+          int lastSeen = 0;
+          while (writing.get()) {
+            int seen = book.search("pair").size();
+            assertTrue("snapshots never go back in time", seen >= lastSeen - writers);
+            lastSeen = seen;
+          }
+        }
+      }));
+    }
+
+    start.countDown();
+    for (Future<?> future : writerFutures) {
+      future.get();
+    }
+    writing.set(false);
+    for (Future<?> future : readerFutures) {
+      future.get();
+    }
+    executor.shutdown();
+    executor.awaitTermination(10, TimeUnit.SECONDS);
+
+    assertEquals(writers * contactsPerWriter / 2, book.search("pair").size());
+  }
+
+  private static void await(CountDownLatch latch) {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+  /** a log that throws on every write and force while failing is set */
+  private static class FailingChannel extends FileChannel {
+    private final FileChannel delegate;
+    volatile boolean failing;
+
+    FailingChannel(FileChannel delegate) {
+      this.delegate = delegate;
+    }
+
+    private void check() throws IOException {
+      if (failing) {
+        throw new IOException("injected failure");
+      }
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+      return delegate.read(dst);
+    }
+
+    @Override
+    public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+      return delegate.read(dsts, offset, length);
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+      check();
+      return delegate.write(src);
+    }
+
+    @Override
+    public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+      check();
+      return delegate.write(srcs, offset, length);
+    }
+
+    @Override
+    public long position() throws IOException {
+      return delegate.position();
+    }
+
+    @Override
+    public FileChannel position(long newPosition) throws IOException {
+      delegate.position(newPosition);
+      return this;
+    }
+
+    @Override
+    public long size() throws IOException {
+      return delegate.size();
+    }
+
+    @Override
+    public FileChannel truncate(long size) throws IOException {
+      check();
+      delegate.truncate(size);
+      return this;
+    }
+
+    @Override
+    public void force(boolean metaData) throws IOException {
+      check();
+      delegate.force(metaData);
+    }
+
+    @Override
+    public long transferTo(long position, long count, WritableByteChannel target)
+        throws IOException {
+      return delegate.transferTo(position, count, target);
+    }
+
+    @Override
+    public long transferFrom(ReadableByteChannel src, long position, long count)
+        throws IOException {
+      check();
+      return delegate.transferFrom(src, position, count);
+    }
+
+    @Override
+    public int read(ByteBuffer dst, long position) throws IOException {
+      return delegate.read(dst, position);
+    }
+
+    @Override
+    public int write(ByteBuffer src, long position) throws IOException {
+      check();
+      return delegate.write(src, position);
+    }
+
+    @Override
+    public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+      return delegate.map(mode, position, size);
+    }
+
+    @Override
+    public FileLock lock(long position, long size, boolean shared) throws IOException {
+      return delegate.lock(position, size, shared);
+    }
+
+    @Override
+    public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+      return delegate.tryLock(position, size, shared);
+    }
+
+    @Override
+    protected void implCloseChannel() throws IOException {
+      delegate.close();
+    }
+  }
+}
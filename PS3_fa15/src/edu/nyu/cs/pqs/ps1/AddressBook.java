@@ -1,25 +1,26 @@
 package edu.nyu.cs.pqs.ps1;
 
-import java.io.File;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
-import java.util.HashSet;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
-import javax.xml.parsers.DocumentBuilder;
-import javax.xml.parsers.DocumentBuilderFactory;
-import javax.xml.transform.Transformer;
-import javax.xml.transform.TransformerFactory;
-import javax.xml.transform.dom.DOMSource;
-import javax.xml.transform.stream.StreamResult;
-
-import org.w3c.dom.Attr;
-import org.w3c.dom.Document;
-import org.w3c.dom.Element;
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
 
 import edu.nyu.cs.pqs.utils.AddressBookUtils.SearchBy;
+import edu.nyu.cs.pqs.utils.AddressBookUtils.SearchMode;
 
 /**
  * This class contains methods that can be used to add, delete, search, save and load objects.
@@ -31,12 +32,24 @@ public class AddressBook {
   
   private String addressBookName;
   
-  private Set<AddressEntry> entrySet = new HashSet<AddressEntry>();
+  private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+  
+  // every entry of the AddressBook, mapped to itself to find the instance held for an equal one
+  private Map<AddressEntry, AddressEntry> entries =
+      new LinkedHashMap<AddressEntry, AddressEntry>();
+  
+  // for every field, the entries holding each value of the field
+  private final Map<SearchBy, FieldIndex> indexes = new EnumMap<SearchBy, FieldIndex>(
+      SearchBy.class);
   
   private AddressBook() {
+    for (SearchBy field : SearchBy.values()) {
+      indexes.put(field, new FieldIndex());
+    }
   }
   
   private AddressBook(String bookName) {
+    this();
     this.addressBookName = bookName;
   }
   
@@ -51,13 +64,21 @@ public class AddressBook {
   }
   
   /**
-   * This method allows the user to add an AddressEntry object to an AddressBook object.
+   * This method allows the user to add an AddressEntry object to an AddressBook object. Null
+   * entries are not added. The AddressBook follows later changes made to the entry through its
+   * setters.
    * 
    * @param addressEntry
    * @return
    */
   public boolean addEntry(AddressEntry addressEntry) {
-    return this.entrySet.add(addressEntry);
+    if (addressEntry == null || entries.containsKey(addressEntry)) {
+      return false;
+    }
+    entries.put(addressEntry, addressEntry);
+    index(addressEntry);
+    addressEntry.addOwner(this);
+    return true;
   }
   
   /**
@@ -66,160 +87,185 @@ public class AddressBook {
    * @param addressEntry
    */
   public boolean remove(AddressEntry addressEntry) {
-    return entrySet.remove(addressEntry);
+    AddressEntry removed = entries.remove(addressEntry);
+    if (removed == null) {
+      return false;
+    }
+    unindex(removed);
+    removed.removeOwner(this);
+    return true;
   }
   
-  /**
-   * This method allows the user to search for an AddressBook object using different search
-   * parameters.
-   * 
-   * @param field
-   * @param value
-   * @return
+  /*
+   * Whether this AddressBook holds an entry equal to changed other than addressEntry itself, in
+   * which case addressEntry can not be changed to the values of changed.
    */
-  public List<AddressEntry> searchBy(SearchBy field, String value) {
-    
-    switch (field) {
-      case NAME:
-        return searchByName(value);
-      case POSTAL_ADDRESS:
-        return searchByPostalAddress(value);
-      case EMAIL:
-        return searchByEmail(value);
-      case NOTE:
-        return searchByNote(value);
-      case PHONE_NUMBER:
-        return searchByPhoneNumber(value);
-      default:
-        return null;
-    }
+  boolean holdsOther(AddressEntry changed, AddressEntry addressEntry) {
+    AddressEntry held = entries.get(changed);
+    return held != null && held != addressEntry;
   }
   
-  private List<AddressEntry> searchByPhoneNumber(String value) {
-    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
-    
-    for (AddressEntry entry : entrySet) {
-      if (entry.getPhoneNumber().equals(value)) {
-        resultEntries.add(entry);
-      }
-    }
-    return resultEntries;
+  /*
+   * Called by an entry of this AddressBook before one of its fields changes, while it can still
+   * be found under its current hash code.
+   */
+  void entryChanging(AddressEntry addressEntry) {
+    entries.remove(addressEntry);
+    unindex(addressEntry);
   }
   
-  private List<AddressEntry> searchByEmail(String value) {
-    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
-    
-    for (AddressEntry entry : entrySet) {
-      if (entry.getEmailAddress().equals(value)) {
-        resultEntries.add(entry);
-      }
-    }
-    return resultEntries;
+  /*
+   * Called by an entry of this AddressBook after one of its fields has changed. The entry goes
+   * back in with its new values, which holdsOther has checked equal no other entry.
+   */
+  void entryChanged(AddressEntry addressEntry) {
+    entries.put(addressEntry, addressEntry);
+    index(addressEntry);
   }
   
-  private List<AddressEntry> searchByNote(String value) {
-    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
-    
-    for (AddressEntry entry : entrySet) {
-      if (entry.getNote().equals(value)) {
-        resultEntries.add(entry);
-      }
+  private void index(AddressEntry addressEntry) {
+    for (Map.Entry<SearchBy, FieldIndex> index : indexes.entrySet()) {
+      index.getValue().add(index.getKey().getValue(addressEntry), addressEntry);
     }
-    return resultEntries;
   }
   
-  private List<AddressEntry> searchByPostalAddress(String value) {
-    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
-    
-    for (AddressEntry entry : entrySet) {
-      if (entry.getPostalAddress().equals(value)) {
-        resultEntries.add(entry);
-      }
+  private void unindex(AddressEntry addressEntry) {
+    for (Map.Entry<SearchBy, FieldIndex> index : indexes.entrySet()) {
+      index.getValue().remove(index.getKey().getValue(addressEntry), addressEntry);
     }
-    return resultEntries;
   }
   
-  private List<AddressEntry> searchByName(String value) {
-    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
-    
-    for (AddressEntry entry : entrySet) {
-      if (entry.getName().equals(value)) {
-        resultEntries.add(entry);
-      }
+  /**
+   * This method allows the user to search for an AddressBook object using different search
+   * parameters. Every field is indexed, so the time taken depends on the number of entries found
+   * rather than on the size of the AddressBook. Entries are returned in the order they were added.
+   * 
+   * @param field
+   * @param value
+   * @return
+   */
+  public List<AddressEntry> searchBy(SearchBy field, String value) {
+    return indexes.get(field).exact(value);
+  }
+  
+  /**
+   * This method allows the user to search for AddressEntry objects whose field matches the given
+   * values in one of the ways listed by SearchMode. RANGE takes the smallest and the largest value
+   * to include, either of which can be null to leave the range open on that side. The other modes
+   * take a single value, and PREFIX and CONTAINS find nothing for null. The time taken grows with
+   * the logarithm of the size of the AddressBook plus the number of entries found. The first
+   * CONTAINS search on a field sorts every suffix of its values, which takes eight bytes per
+   * character of the values, and is repeated once enough values have been added or removed.
+   * 
+   * @param field
+   * @param mode
+   * @param values
+   * @return the entries found. EXACT keeps the order in which entries were added, the other modes
+   *         sort them by the value of field.
+   * @throws IllegalArgumentException
+   *           if the number of values does not match the mode
+   */
+  public List<AddressEntry> searchBy(SearchBy field, SearchMode mode, String... values) {
+    int expectedValues = mode == SearchMode.RANGE ? 2 : 1;
+    if (values.length != expectedValues) {
+      throw new IllegalArgumentException(mode + " searches take " + expectedValues
+          + " values, not " + values.length);
     }
-    return resultEntries;
+    FieldIndex index = indexes.get(field);
+    if (mode == SearchMode.RANGE) {
+      return index.range(values[0], values[1]);
+    }
+    if (mode == SearchMode.EXACT) {
+      return index.exact(values[0]);
+    }
+    if (values[0] == null) {
+      return new ArrayList<AddressEntry>();
+    }
+    return mode == SearchMode.PREFIX ? index.prefix(values[0]) : index.contains(values[0]);
   }
   
-  // The code for the below method is inspired from
-  // http://www.mkyong.com/java/how-to-create-xml-file-in-java-dom/
   /*
    * changed the below function's return type from void to boolean for making the catch block reachable in Unit tests.
    */
   /**
    * This method allows the user to save the AddressBook object to a specified location. Objects are
-   * stored in XML format.
+   * stored in XML format. Entries are streamed to the file one after the other, so saving does not
+   * build the document in memory.
    * 
    * @param path
    * @param addressBook
    */
   public boolean saveToFile(String path, AddressBook addressBook) {
+    XMLStreamWriter writer = null;
+    OutputStream outputStream = null;
     try {
-      DocumentBuilderFactory docFactory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder docBuilder = docFactory.newDocumentBuilder();
-      Document doc = docBuilder.newDocument();
-      
-      Element rootElement = doc.createElement("addressBook");
-      doc.appendChild(rootElement);
-      
-      Attr attr = doc.createAttribute("addressBookName");
-      attr.setValue(addressBook.getAddressBookName());
-      rootElement.setAttributeNode(attr);
+      outputStream = new BufferedOutputStream(Channels.newOutputStream(FileChannel.open(
+          Paths.get(path), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+          StandardOpenOption.WRITE)), WRITE_BUFFER_SIZE);
+      writer = XMLOutputFactory.newInstance().createXMLStreamWriter(outputStream, "UTF-8");
+      writer.writeStartDocument("UTF-8", "1.0");
+      writer.writeStartElement("addressBook");
+      if (addressBook.getAddressBookName() != null) {
+        writer.writeAttribute("addressBookName", addressBook.getAddressBookName());
+      }
       
-      for (AddressEntry entry : entrySet) {
-        
-        Element addressEntries = doc.createElement("addressEntry");
-        rootElement.appendChild(addressEntries);
-        
-        Element nameElement = doc.createElement("name");
-        nameElement.appendChild(doc.createTextNode(entry.getName()));
-        addressEntries.appendChild(nameElement);
-        
-        Element postalAddressElement = doc.createElement("postalAddress");
-        postalAddressElement.appendChild(doc.createTextNode(entry.getPostalAddress()));
-        addressEntries.appendChild(postalAddressElement);
-        
-        Element phoneNumberElement = doc.createElement("phoneNumber");
-        phoneNumberElement.appendChild(doc.createTextNode(entry.getPhoneNumber()));
-        addressEntries.appendChild(phoneNumberElement);
-        
-        Element emailElement = doc.createElement("emailAddress");
-        emailElement.appendChild(doc.createTextNode(entry.getEmailAddress()));
-        addressEntries.appendChild(emailElement);
-        
-        Element noteElement = doc.createElement("note");
-        noteElement.appendChild(doc.createTextNode(entry.getNote()));
-        addressEntries.appendChild(noteElement);
-        
-        TransformerFactory transformerFactory = TransformerFactory.newInstance();
-        Transformer transformer = transformerFactory.newTransformer();
-        DOMSource source = new DOMSource(doc);
-        StreamResult result = new StreamResult(new File(path));
-        transformer.transform(source, result);
+      for (AddressEntry entry : entries.keySet()) {
+        writer.writeStartElement("addressEntry");
+        writeElement(writer, "name", entry.getName());
+        writeElement(writer, "postalAddress", entry.getPostalAddress());
+        writeElement(writer, "phoneNumber", entry.getPhoneNumber());
+        writeElement(writer, "emailAddress", entry.getEmailAddress());
+        writeElement(writer, "note", entry.getNote());
+        writer.writeEndElement();
       }
-     return true; 
+      
+      writer.writeEndElement();
+      writer.writeEndDocument();
+      writer.close();
+      writer = null;
+      outputStream.close();
+      outputStream = null;
+      return true;
     } catch (Exception e) {
       e.printStackTrace();
       return false;
+    } finally {
+      closeQuietly(writer, outputStream);
+    }
+  }
+  
+  private static void writeElement(XMLStreamWriter writer, String elementName, String value)
+      throws XMLStreamException {
+    writer.writeStartElement(elementName);
+    if (value != null) {
+      writer.writeCharacters(value);
+    }
+    writer.writeEndElement();
+  }
+  
+  // only called after a failure, which has already been reported
+  private static void closeQuietly(XMLStreamWriter writer, OutputStream outputStream) {
+    try {
+      if (writer != null) {
+        writer.close();
+      }
+    } catch (XMLStreamException e) {
+      // ignored
+    }
+    try {
+      if (outputStream != null) {
+        outputStream.close();
+      }
+    } catch (IOException e) {
+      // ignored
     }
   }
   
   @Override
   public String toString() {
-    return addressBookName + entrySet.toString();
+    return addressBookName + entries.keySet().toString();
   }
   
-  // Code for the below method is inspired from
-  // http://www.mkyong.com/java/how-to-read-xml-file-in-java-dom-parser/
   /**
    * This method is used to load an AddressBook object from the specified location. It is assumed
    * that the data being read is in XML format.
@@ -227,39 +273,27 @@ public class AddressBook {
    * @param path
    * @return
    */
-
   public AddressBook loadFromFile(String path) {
-    AddressBook addressBook = null;
+    return loadFromFile(path, null, false);
+  }
+  
+  /**
+   * This method is used to load an AddressBook object from the specified location, like
+   * {@link #loadFromFile(String)}. The file is streamed rather than parsed into a document, so
+   * large files can be loaded in little more memory than their entries take.
+   * 
+   * @param path
+   * @param listener
+   *          notified of the progress of the load, or null
+   * @param parallel
+   *          if true the file is parsed on a second thread while the calling thread builds the
+   *          entries
+   * @return
+   */
+  public AddressBook loadFromFile(String path, LoadProgressListener listener, boolean parallel) {
+    AddressBook addressBook = new AddressBook();
     try {
-      addressBook = new AddressBook();
-      
-      File inputFile = new File(path);
-      DocumentBuilderFactory dbFactory = DocumentBuilderFactory.newInstance();
-      DocumentBuilder dBuilder = dbFactory.newDocumentBuilder();
-      Document doc = dBuilder.parse(inputFile);
-      doc.getDocumentElement().normalize();
-      
-      Element addressBookNameElement = doc.getDocumentElement();
-      addressBook.setAddressBookName(addressBookNameElement.getAttribute("addressBookName"));
-      
-      NodeList addressEntriesList = doc.getElementsByTagName("addressEntry");
-      
-      for (int i = 0; i < addressEntriesList.getLength(); i++) {
-        Node nNode = addressEntriesList.item(i);
-        
-        if (nNode.getNodeType() == Node.ELEMENT_NODE) {
-          Element eElement = (Element) nNode;
-          AddressEntry addrEntryFromFile = new AddressEntry.Builder(eElement
-              .getElementsByTagName("name").item(0).getTextContent()).postalAddress(eElement
-                  .getElementsByTagName("postalAddress").item(0).getTextContent()).phoneNumber(
-                      eElement.getElementsByTagName("phoneNumber").item(0).getTextContent())
-                          .emailAddress(eElement.getElementsByTagName("emailAddress").item(0)
-                              .getTextContent()).note(eElement.getElementsByTagName("note").item(0)
-                                  .getTextContent()).build();
-          addressBook.addEntry(addrEntryFromFile);
-        }
-      }
-      
+      AddressBookLoader.load(Paths.get(path), addressBook, listener, parallel);
     } catch (Exception e) {
       e.printStackTrace();
     }
@@ -277,12 +311,16 @@ public class AddressBook {
   }
   
   /**
-   * This is a getter method for the set of AddressEntry objects
+   * This is a getter method for the set of AddressEntry objects. The set is a read only view which
+   * follows later changes to the AddressBook. Unlike the set returned before the entries were
+   * indexed, it can not be modified: add, remove and the other changes throw
+   * UnsupportedOperationException, as entries have to go through addEntry, remove and setEntry to
+   * be indexed.
    * 
    * @return
    */
   public Set<AddressEntry> getEntry() {
-    return entrySet;
+    return Collections.unmodifiableSet(entries.keySet());
   }
   
   /**
@@ -295,12 +333,26 @@ public class AddressBook {
   }
   
   /**
-   * This is the setter for the set of AddressEntry objects
+   * This is the setter for the set of AddressEntry objects. The entries are copied and indexed,
+   * so later changes to the given set do not affect the AddressBook. A null set empties the
+   * AddressBook.
    * 
    * @param entry
    */
   public void setEntry(Set<AddressEntry> entry) {
-    this.entrySet = entry;
+    for (AddressEntry addressEntry : entries.keySet()) {
+      addressEntry.removeOwner(this);
+    }
+    for (FieldIndex index : indexes.values()) {
+      index.clear();
+    }
+    entries = new LinkedHashMap<AddressEntry, AddressEntry>();
+    if (entry == null) {
+      return;
+    }
+    for (AddressEntry addressEntry : entry) {
+      addEntry(addressEntry);
+    }
   }
   
 }
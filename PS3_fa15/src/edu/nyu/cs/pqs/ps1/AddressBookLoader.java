@@ -0,0 +1,290 @@
+package edu.nyu.cs.pqs.ps1;
+
+import java.io.BufferedInputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+/**
+ * This class streams a file written by {@link AddressBook#saveToFile(String, AddressBook)} into an
+ * AddressBook with a StAX pull parser. Entries are added as soon as they are read, so the memory
+ * used does not depend on the size of the file beyond the entries themselves.
+ * 
+ * @author Suruchi
+ *
+ */
+class AddressBookLoader {
+  
+  /** number of entries between two calls to the progress listener */
+  static final int PROGRESS_INTERVAL = 10000;
+  
+  private static final int READ_BUFFER_SIZE = 64 * 1024;
+  private static final int BATCH_SIZE = 1024;
+  private static final int QUEUED_BATCHES = 16;
+  
+  // the order in which the fields of an entry are kept in a String array
+  private static final String[] FIELD_ELEMENTS = { "name", "postalAddress", "phoneNumber",
+      "emailAddress", "note" };
+  
+  private final AddressBook addressBook;
+  private final LoadProgressListener listener;
+  private final long totalBytes;
+  private long entriesLoaded;
+  
+  private AddressBookLoader(AddressBook addressBook, LoadProgressListener listener,
+      long totalBytes) {
+    this.addressBook = addressBook;
+    this.listener = listener;
+    this.totalBytes = totalBytes;
+  }
+  
+  /**
+   * This method reads the file at path into addressBook.
+   * 
+   * @param path
+   * @param addressBook
+   * @param listener
+   *          notified of the progress of the load, or null
+   * @param parallel
+   *          if true the file is parsed on a second thread while the calling thread builds the
+   *          entries and adds them to the AddressBook
+   * @throws IOException
+   * @throws XMLStreamException
+   */
+  static void load(Path path, AddressBook addressBook, LoadProgressListener listener,
+      boolean parallel) throws IOException, XMLStreamException {
+    AddressBookLoader loader = new AddressBookLoader(addressBook, listener, Files.size(path));
+    CountingInputStream input = new CountingInputStream(new BufferedInputStream(
+        Files.newInputStream(path), READ_BUFFER_SIZE));
+    try {
+      if (parallel) {
+        loader.loadInParallel(input);
+      } else {
+        loader.loadSequentially(input);
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("interrupted while loading the AddressBook");
+    } finally {
+      input.close();
+    }
+    if (listener != null) {
+      listener.onProgress(loader.entriesLoaded, input.count, loader.totalBytes);
+    }
+  }
+  
+  private void loadSequentially(final CountingInputStream input) throws XMLStreamException,
+      InterruptedException {
+    parse(input, new EntryHandler() {
+      @Override
+      public void entryRead(String[] fields) {
+        addEntry(fields, input.count);
+      }
+    });
+  }
+  
+  /*
+   * The parsing thread hands the fields it reads over in batches through a bounded queue, so it
+   * can not run ahead of the calling thread by more than QUEUED_BATCHES batches. An empty batch
+   * marks the end of the file, or a failure which is then thrown by the Future.
+   */
+  private void loadInParallel(final CountingInputStream input) throws IOException,
+      XMLStreamException, InterruptedException {
+    final BlockingQueue<Batch> queue = new ArrayBlockingQueue<Batch>(QUEUED_BATCHES);
+    ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      Future<Void> parsing = executor.submit(new Callable<Void>() {
+        @Override
+        public Void call() throws Exception {
+          try {
+            final Batch[] batch = { new Batch() };
+            parse(input, new EntryHandler() {
+              @Override
+              public void entryRead(String[] fields) throws InterruptedException {
+                batch[0].entries.add(fields);
+                if (batch[0].entries.size() == BATCH_SIZE) {
+                  batch[0].bytesRead = input.count;
+                  queue.put(batch[0]);
+                  batch[0] = new Batch();
+                }
+              }
+            });
+            if (!batch[0].entries.isEmpty()) {
+              batch[0].bytesRead = input.count;
+              queue.put(batch[0]);
+            }
+          } finally {
+            queue.put(new Batch());
+          }
+          return null;
+        }
+      });
+      
+      Batch batch = queue.take();
+      while (!batch.entries.isEmpty()) {
+        for (String[] fields : batch.entries) {
+          addEntry(fields, batch.bytesRead);
+        }
+        batch = queue.take();
+      }
+      parsing.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof XMLStreamException) {
+        throw (XMLStreamException) cause;
+      } else if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      } else if (cause instanceof Error) {
+        throw (Error) cause;
+      }
+      throw new IOException(cause);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+  
+  private void addEntry(String[] fields, long bytesRead) {
+    AddressEntry.Builder builder = new AddressEntry.Builder(fields[0]);
+    if (fields[1] != null) {
+      builder.postalAddress(fields[1]);
+    }
+    if (fields[2] != null) {
+      builder.phoneNumber(fields[2]);
+    }
+    if (fields[3] != null) {
+      builder.emailAddress(fields[3]);
+    }
+    if (fields[4] != null) {
+      builder.note(fields[4]);
+    }
+    addressBook.addEntry(builder.build());
+    entriesLoaded++;
+    if (listener != null && entriesLoaded % PROGRESS_INTERVAL == 0) {
+      listener.onProgress(entriesLoaded, bytesRead, totalBytes);
+    }
+  }
+  
+  /*
+   * Sets the name of the AddressBook from the root element and passes the fields of every
+   * addressEntry element to the handler. Fields missing from an entry are left null, except for
+   * the name which is required.
+   */
+  private void parse(InputStream input, EntryHandler handler) throws XMLStreamException,
+      InterruptedException {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    XMLStreamReader reader = factory.createXMLStreamReader(input);
+    try {
+      boolean rootRead = false;
+      String[] fields = null;
+      while (reader.hasNext()) {
+        int event = reader.next();
+        if (event == XMLStreamConstants.START_ELEMENT) {
+          String element = reader.getLocalName();
+          if (!rootRead) {
+            String bookName = reader.getAttributeValue(null, "addressBookName");
+            addressBook.setAddressBookName(bookName == null ? "" : bookName);
+            rootRead = true;
+          } else if (fields == null) {
+            if ("addressEntry".equals(element)) {
+              fields = new String[FIELD_ELEMENTS.length];
+            }
+          } else {
+            int field = fieldIndex(element);
+            if (field >= 0 && fields[field] == null) {
+              fields[field] = reader.getElementText();
+            }
+          }
+        } else if (event == XMLStreamConstants.END_ELEMENT && fields != null
+            && "addressEntry".equals(reader.getLocalName())) {
+          if (fields[0] == null) {
+            throw new XMLStreamException("addressEntry without a name", reader.getLocation());
+          }
+          handler.entryRead(fields);
+          fields = null;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+  }
+  
+  private static int fieldIndex(String element) {
+    for (int i = 0; i < FIELD_ELEMENTS.length; i++) {
+      if (FIELD_ELEMENTS[i].equals(element)) {
+        return i;
+      }
+    }
+    return -1;
+  }
+  
+  /**
+   * This interface receives the fields of each entry as it is parsed.
+   */
+  private interface EntryHandler {
+    void entryRead(String[] fields) throws InterruptedException;
+  }
+  
+  /**
+   * This class holds entries parsed on the parsing thread but not yet added to the AddressBook.
+   */
+  private static class Batch {
+    private final List<String[]> entries = new ArrayList<String[]>(BATCH_SIZE);
+    private long bytesRead;
+  }
+  
+  /**
+   * This class counts the bytes read from a stream. The count is only read on the parsing thread,
+   * or after the parsing thread has finished.
+   */
+  private static class CountingInputStream extends FilterInputStream {
+    private long count;
+    
+    private CountingInputStream(InputStream input) {
+      super(input);
+    }
+    
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b >= 0) {
+        count++;
+      }
+      return b;
+    }
+    
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+      int read = super.read(buffer, offset, length);
+      if (read > 0) {
+        count += read;
+      }
+      return read;
+    }
+    
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = super.skip(n);
+      count += skipped;
+      return skipped;
+    }
+  }
+}
@@ -1,9 +1,18 @@
 package edu.nyu.cs.pqs.ps1;
 
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * This public class contains basic address entry information as described in the problem set.
+ * The AddressBooks holding an entry are told when one of its setters is called, so they can
+ * re-index it. An entry should therefore not be changed while iterating over an AddressBook. An
+ * AddressBook holds no two equal entries, so a setter which would make an entry equal to another
+ * entry of one of its AddressBooks throws IllegalArgumentException and leaves the entry unchanged.
+ * An entry only holds weak references to its AddressBooks, so it does not keep them alive.
  * 
  * @author Suruchi
  *
@@ -31,6 +40,12 @@ public class AddressEntry {
       this.name = name;
     }
     
+    // replaces the name given to the constructor, for copies of an entry
+    private Builder name(String val) {
+      name = val;
+      return this;
+    }
+    
     /**
      * This is method is used to create an instance of the AddressEntry object
      * 
@@ -92,6 +107,10 @@ public class AddressEntry {
   private String emailAddress;
   private String note;
   
+  // the AddressBooks holding this entry, which have to re-index it when a field changes. They are
+  // held weakly, so a book which is no longer used can be collected while its entries live on.
+  private List<WeakReference<AddressBook>> owners;
+  
   private AddressEntry(Builder builder) {
     this.name = builder.name;
     this.postalAddress = builder.postalAddress;
@@ -179,7 +198,9 @@ public class AddressEntry {
    * @param emailAddress
    */
   public void setEmailAddress(String emailAddress) {
+    beforeChange(copy().emailAddress(emailAddress).build());
     this.emailAddress = emailAddress;
+    afterChange();
   }
   
   /**
@@ -188,7 +209,9 @@ public class AddressEntry {
    * @param name
    */
   public void setName(String name) {
+    beforeChange(copy().name(name).build());
     this.name = name;
+    afterChange();
   }
   
   /**
@@ -197,7 +220,9 @@ public class AddressEntry {
    * @param note
    */
   public void setNote(String note) {
+    beforeChange(copy().note(note).build());
     this.note = note;
+    afterChange();
   }
   
   /**
@@ -206,7 +231,9 @@ public class AddressEntry {
    * @param phoneNumber
    */
   public void setPhoneNumber(String phoneNumber) {
+    beforeChange(copy().phoneNumber(phoneNumber).build());
     this.phoneNumber = phoneNumber;
+    afterChange();
   }
   
   /**
@@ -215,7 +242,82 @@ public class AddressEntry {
    * @param postalAddress
    */
   public void setPostalAddress(String postalAddress) {
+    beforeChange(copy().postalAddress(postalAddress).build());
     this.postalAddress = postalAddress;
+    afterChange();
+  }
+  
+  void addOwner(AddressBook addressBook) {
+    if (owners == null) {
+      owners = new ArrayList<WeakReference<AddressBook>>(1);
+    }
+    owners.add(new WeakReference<AddressBook>(addressBook));
+  }
+  
+  void removeOwner(AddressBook addressBook) {
+    if (owners == null) {
+      return;
+    }
+    // removes the given instance, and the references to books which have been collected
+    for (Iterator<WeakReference<AddressBook>> i = owners.iterator(); i.hasNext();) {
+      AddressBook owner = i.next().get();
+      if (owner == null || owner == addressBook) {
+        i.remove();
+      }
+    }
+    if (owners.isEmpty()) {
+      owners = null;
+    }
+  }
+  
+  /*
+   * The AddressBooks still holding this entry, leaving out and forgetting those which have been
+   * collected.
+   */
+  private List<AddressBook> liveOwners() {
+    List<AddressBook> liveOwners = new ArrayList<AddressBook>(owners.size());
+    for (Iterator<WeakReference<AddressBook>> i = owners.iterator(); i.hasNext();) {
+      AddressBook owner = i.next().get();
+      if (owner == null) {
+        i.remove();
+      } else {
+        liveOwners.add(owner);
+      }
+    }
+    return liveOwners;
+  }
+  
+  // a builder holding the values of this entry
+  private Builder copy() {
+    return new Builder(name).postalAddress(postalAddress).phoneNumber(phoneNumber)
+        .emailAddress(emailAddress).note(note);
+  }
+  
+  /*
+   * Checks that no owner holds another entry equal to changed, the entry as it will be after the
+   * change, before any owner is told about the change.
+   */
+  private void beforeChange(AddressEntry changed) {
+    if (owners != null) {
+      List<AddressBook> liveOwners = liveOwners();
+      for (AddressBook owner : liveOwners) {
+        if (owner.holdsOther(changed, this)) {
+          throw new IllegalArgumentException("AddressBook " + owner.getAddressBookName()
+              + " already holds an entry equal to " + changed);
+        }
+      }
+      for (AddressBook owner : liveOwners) {
+        owner.entryChanging(this);
+      }
+    }
+  }
+  
+  private void afterChange() {
+    if (owners != null) {
+      for (AddressBook owner : liveOwners()) {
+        owner.entryChanged(this);
+      }
+    }
   }
   
   @Override
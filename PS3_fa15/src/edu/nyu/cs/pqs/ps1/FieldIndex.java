@@ -0,0 +1,351 @@
+package edu.nyu.cs.pqs.ps1;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.SortedSet;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * This class indexes the entries of an AddressBook by the value of one field. Exact lookups go
+ * through a hash map, prefix and range lookups through a sorted map sharing the same postings.
+ * Substring lookups use a suffix array of the values, which is built by the first substring
+ * lookup since most fields are never searched that way. Values added or removed later are kept
+ * aside until there are enough of them to make sorting the suffixes again worthwhile.
+ *
+ * @author Suruchi
+ *
+ */
+class FieldIndex {
+
+  // values added or removed since the suffix array was sorted, beyond which it is sorted again
+  private static final int MIN_UNSORTED_VALUES = 1024;
+  private static final int UNSORTED_VALUES_RATIO = 16;
+
+  private static final int INSERTION_SORT_THRESHOLD = 16;
+
+  // the entries holding each value
+  private final Map<String, Postings> postings = new HashMap<String, Postings>();
+
+  // the same postings, sorted by value. Null values are left out.
+  private final NavigableMap<String, Postings> sortedPostings = new TreeMap<String, Postings>();
+
+  // every suffix of the values in suffixValues, as the index of the value in the upper 32 bits
+  // and the offset of the suffix in the lower 32 bits, sorted by the text of the suffix. Both are
+  // null until the first substring lookup.
+  private String[] suffixValues;
+  private long[] suffixes;
+
+  // values added since the suffix array was sorted, and the number of values of the suffix array
+  // which have been removed since
+  private final Set<String> unsortedValues = new HashSet<String>();
+  private int removedValues;
+
+  /**
+   * This method adds an entry holding value to the index.
+   *
+   * @param value
+   * @param addressEntry
+   */
+  void add(String value, AddressEntry addressEntry) {
+    Postings entries = postings.get(value);
+    if (entries == null) {
+      entries = new Postings();
+      postings.put(value, entries);
+      if (value != null) {
+        sortedPostings.put(value, entries);
+        if (suffixes != null) {
+          unsortedValues.add(value);
+        }
+      }
+    }
+    entries.add(addressEntry);
+  }
+
+  /**
+   * This method removes an entry holding value from the index.
+   *
+   * @param value
+   * @param addressEntry
+   */
+  void remove(String value, AddressEntry addressEntry) {
+    Postings entries = postings.get(value);
+    entries.remove(addressEntry);
+    if (entries.isEmpty()) {
+      postings.remove(value);
+      if (value != null) {
+        sortedPostings.remove(value);
+        if (suffixes != null && !unsortedValues.remove(value)) {
+          removedValues++;
+        }
+      }
+    }
+  }
+
+  void clear() {
+    postings.clear();
+    sortedPostings.clear();
+    suffixValues = null;
+    suffixes = null;
+    unsortedValues.clear();
+    removedValues = 0;
+  }
+
+  /**
+   * @param value
+   * @return the entries holding value, in the order they were added
+   */
+  List<AddressEntry> exact(String value) {
+    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
+    Postings entries = postings.get(value);
+    if (entries != null) {
+      entries.addTo(resultEntries);
+    }
+    return resultEntries;
+  }
+
+  /**
+   * @param prefix
+   * @return the entries whose value starts with prefix, sorted by value
+   */
+  List<AddressEntry> prefix(String prefix) {
+    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
+    for (Map.Entry<String, Postings> value : sortedPostings.tailMap(prefix, true).entrySet()) {
+      if (!value.getKey().startsWith(prefix)) {
+        break;
+      }
+      value.getValue().addTo(resultEntries);
+    }
+    return resultEntries;
+  }
+
+  /**
+   * @param from
+   *          smallest value included, or null for no lower bound
+   * @param to
+   *          largest value included, or null for no upper bound
+   * @return the entries whose value is between from and to, sorted by value
+   */
+  List<AddressEntry> range(String from, String to) {
+    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
+    if (from != null && to != null && from.compareTo(to) > 0) {
+      return resultEntries;
+    }
+    NavigableMap<String, Postings> values = sortedPostings;
+    if (from != null) {
+      values = values.tailMap(from, true);
+    }
+    if (to != null) {
+      values = values.headMap(to, true);
+    }
+    for (Postings entries : values.values()) {
+      entries.addTo(resultEntries);
+    }
+    return resultEntries;
+  }
+
+  /**
+   * @param part
+   * @return the entries whose value contains part, sorted by value
+   */
+  List<AddressEntry> contains(String part) {
+    if (part.isEmpty()) {
+      return range(null, null);
+    }
+    if (suffixes == null || unsortedValues.size() + removedValues > MIN_UNSORTED_VALUES
+        + suffixValues.length / UNSORTED_VALUES_RATIO) {
+      sortSuffixes();
+    }
+    // a value contains part if one of its suffixes starts with part. The suffixes starting with
+    // part follow each other in the suffix array.
+    SortedSet<String> values = new TreeSet<String>();
+    for (int i = firstSuffixNotBefore(part); i < suffixes.length; i++) {
+      if (compareSuffix(suffixes[i], part, true) != 0) {
+        break;
+      }
+      String value = suffixValues[(int) (suffixes[i] >>> 32)];
+      if (sortedPostings.containsKey(value)) {
+        values.add(value);
+      }
+    }
+    for (String value : unsortedValues) {
+      if (value.contains(part)) {
+        values.add(value);
+      }
+    }
+    List<AddressEntry> resultEntries = new ArrayList<AddressEntry>();
+    for (String value : values) {
+      sortedPostings.get(value).addTo(resultEntries);
+    }
+    return resultEntries;
+  }
+
+  private void sortSuffixes() {
+    suffixValues = sortedPostings.keySet().toArray(new String[sortedPostings.size()]);
+    long suffixCount = 0;
+    for (String value : suffixValues) {
+      suffixCount += value.length();
+    }
+    if (suffixCount > Integer.MAX_VALUE - 8) {
+      throw new IllegalStateException("too many characters to search for substrings: "
+          + suffixCount);
+    }
+    suffixes = new long[(int) suffixCount];
+    int suffix = 0;
+    for (int i = 0; i < suffixValues.length; i++) {
+      for (int offset = 0; offset < suffixValues[i].length(); offset++) {
+        suffixes[suffix++] = ((long) i << 32) | offset;
+      }
+    }
+    sort(0, suffixes.length, 0);
+    unsortedValues.clear();
+    removedValues = 0;
+  }
+
+  private int firstSuffixNotBefore(String part) {
+    int low = 0;
+    int high = suffixes.length;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (compareSuffix(suffixes[middle], part, false) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /*
+   * Compares the suffix with part, or only with its first part.length() characters if prefixOnly
+   * is true, in which case 0 means that the suffix starts with part.
+   */
+  private int compareSuffix(long suffix, String part, boolean prefixOnly) {
+    for (int depth = 0; depth < part.length(); depth++) {
+      int c = charAt(suffix, depth);
+      if (c != part.charAt(depth)) {
+        return c < part.charAt(depth) ? -1 : 1;
+      }
+    }
+    return prefixOnly || charAt(suffix, part.length()) < 0 ? 0 : 1;
+  }
+
+  // the character of the suffix at depth, or -1 past its end
+  private int charAt(long suffix, int depth) {
+    String value = suffixValues[(int) (suffix >>> 32)];
+    int offset = (int) suffix + depth;
+    return offset < value.length() ? value.charAt(offset) : -1;
+  }
+
+  /*
+   * Sorts suffixes[from, to), which share their first depth characters, with a three way radix
+   * quicksort (Bentley and Sedgewick), which compares every character of the suffixes only once
+   * on average.
+   */
+  private void sort(int from, int to, int depth) {
+    while (to - from > INSERTION_SORT_THRESHOLD) {
+      int pivot = charAt(suffixes[(from + to) >>> 1], depth);
+      int less = from;
+      int greater = to;
+      int i = from;
+      while (i < greater) {
+        int c = charAt(suffixes[i], depth);
+        if (c < pivot) {
+          swap(less++, i++);
+        } else if (c > pivot) {
+          swap(i, --greater);
+        } else {
+          i++;
+        }
+      }
+      sort(from, less, depth);
+      sort(greater, to, depth);
+      if (pivot < 0) {
+        return;
+      }
+      // the suffixes equal to the pivot at depth are sorted by the following characters
+      from = less;
+      to = greater;
+      depth++;
+    }
+    for (int i = from + 1; i < to; i++) {
+      for (int j = i; j > from && compareSuffixes(suffixes[j], suffixes[j - 1], depth) < 0; j--) {
+        swap(j, j - 1);
+      }
+    }
+  }
+
+  private int compareSuffixes(long first, long second, int depth) {
+    while (true) {
+      int c1 = charAt(first, depth);
+      int c2 = charAt(second, depth);
+      if (c1 != c2) {
+        return c1 < c2 ? -1 : 1;
+      }
+      if (c1 < 0) {
+        return 0;
+      }
+      depth++;
+    }
+  }
+
+  private void swap(int i, int j) {
+    long suffix = suffixes[i];
+    suffixes[i] = suffixes[j];
+    suffixes[j] = suffix;
+  }
+
+  /**
+   * This class holds the entries sharing a value, in the order they were added. Most values are
+   * held by a single entry, which is kept without a set.
+   */
+  private static class Postings {
+    private AddressEntry onlyEntry;
+    private Set<AddressEntry> entries;
+
+    void add(AddressEntry addressEntry) {
+      if (entries != null) {
+        entries.add(addressEntry);
+      } else if (onlyEntry == null) {
+        onlyEntry = addressEntry;
+      } else {
+        entries = new LinkedHashSet<AddressEntry>();
+        entries.add(onlyEntry);
+        entries.add(addressEntry);
+        onlyEntry = null;
+      }
+    }
+
+    void remove(AddressEntry addressEntry) {
+      if (entries == null) {
+        if (addressEntry.equals(onlyEntry)) {
+          onlyEntry = null;
+        }
+      } else {
+        entries.remove(addressEntry);
+        if (entries.size() == 1) {
+          onlyEntry = entries.iterator().next();
+          entries = null;
+        }
+      }
+    }
+
+    boolean isEmpty() {
+      return onlyEntry == null && entries == null;
+    }
+
+    void addTo(List<AddressEntry> resultEntries) {
+      if (entries != null) {
+        resultEntries.addAll(entries);
+      } else if (onlyEntry != null) {
+        resultEntries.add(onlyEntry);
+      }
+    }
+  }
+}
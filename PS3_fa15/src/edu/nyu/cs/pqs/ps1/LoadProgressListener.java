@@ -0,0 +1,25 @@
+package edu.nyu.cs.pqs.ps1;
+
+/**
+ * This interface can be implemented to follow the progress of
+ * {@link AddressBook#loadFromFile(String, LoadProgressListener, boolean)} on large files.
+ * 
+ * @author Suruchi
+ *
+ */
+public interface LoadProgressListener {
+  
+  /**
+   * This method is called on the loading thread every
+   * {@value AddressBookLoader#PROGRESS_INTERVAL} entries, and once more when the whole file has
+   * been read.
+   * 
+   * @param entriesLoaded
+   *          number of entries added to the AddressBook so far
+   * @param bytesRead
+   *          number of bytes of the file read so far
+   * @param totalBytes
+   *          size of the file in bytes
+   */
+  void onProgress(long entriesLoaded, long bytesRead, long totalBytes);
+}
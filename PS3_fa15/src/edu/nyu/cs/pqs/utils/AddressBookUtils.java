@@ -1,5 +1,7 @@
 package edu.nyu.cs.pqs.utils;
 
+import edu.nyu.cs.pqs.ps1.AddressEntry;
+
 /**
  * Utility class for any constants that may be required
  * @author Suruchi 
@@ -7,7 +9,63 @@ package edu.nyu.cs.pqs.utils;
  */
 public class AddressBookUtils {
   
+  /**
+   * The fields an AddressBook can be searched by. Every AddressBook keeps an index for each of
+   * them, so a new field only needs a constant here which extracts its value from an entry.
+   */
   public static enum SearchBy {
-    NAME, POSTAL_ADDRESS, PHONE_NUMBER, EMAIL, NOTE
+    NAME {
+      @Override
+      public String getValue(AddressEntry entry) {
+        return entry.getName();
+      }
+    },
+    POSTAL_ADDRESS {
+      @Override
+      public String getValue(AddressEntry entry) {
+        return entry.getPostalAddress();
+      }
+    },
+    PHONE_NUMBER {
+      @Override
+      public String getValue(AddressEntry entry) {
+        return entry.getPhoneNumber();
+      }
+    },
+    EMAIL {
+      @Override
+      public String getValue(AddressEntry entry) {
+        return entry.getEmailAddress();
+      }
+    },
+    NOTE {
+      @Override
+      public String getValue(AddressEntry entry) {
+        return entry.getNote();
+      }
+    };
+    
+    /**
+     * This method returns the value of this field in an entry.
+     * 
+     * @param entry
+     * @return
+     */
+    public abstract String getValue(AddressEntry entry);
+  }
+  
+  /**
+   * The ways the value of a field can be matched by
+   * {@link edu.nyu.cs.pqs.ps1.AddressBook#searchBy(SearchBy, SearchMode, String...)}.
+   */
+  public static enum SearchMode {
+    /** the field equals the value */
+    EXACT,
+    /** the field starts with the value */
+    PREFIX,
+    /** the field is between two values, both included */
+    RANGE,
+    /** the field contains the value */
+    CONTAINS
   }
 }
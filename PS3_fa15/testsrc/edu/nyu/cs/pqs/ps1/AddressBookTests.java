@@ -4,7 +4,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
 
@@ -12,6 +16,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import edu.nyu.cs.pqs.utils.AddressBookUtils.SearchBy;
+import edu.nyu.cs.pqs.utils.AddressBookUtils.SearchMode;
 
 public class AddressBookTests {
   AddressBook addressBook;
@@ -74,7 +79,7 @@ public class AddressBookTests {
   }
 
   /*
-   * the test fails because null can be added to the AddressBook
+   * null used to be added to the AddressBook. It is rejected now that entries are indexed.
    */
 
   @Test
@@ -180,6 +185,112 @@ public class AddressBookTests {
     assertTrue("Partial search option not available", searchResult.isEmpty());
   }
 
+  @Test
+  public void testSearchBy_indexesFollowChanges() {
+    addressBook.addEntry(testEntry4);
+    assertEquals(Arrays.asList(testEntry3, testEntry4),
+        addressBook.searchBy(SearchBy.EMAIL, "test3@testing.com"));
+
+    addressBook.remove(testEntry3);
+    assertEquals(Arrays.asList(testEntry4),
+        addressBook.searchBy(SearchBy.EMAIL, "test3@testing.com"));
+    assertTrue(addressBook.searchBy(SearchBy.NAME, "TestName3").isEmpty());
+
+    Set<AddressEntry> entries = new HashSet<AddressEntry>(Arrays.asList(testEntry1));
+    addressBook.setEntry(entries);
+    entries.add(testEntry2);
+    assertEquals(Arrays.asList(testEntry1), addressBook.searchBy(SearchBy.POSTAL_ADDRESS,
+        "Apt Test, Testing Ave, Test City, 12345"));
+    assertTrue(addressBook.searchBy(SearchBy.PHONE_NUMBER, "0123456777").isEmpty());
+  }
+
+  @Test
+  public void testSearchBy_prefix() {
+    addressBook.addEntry(testEntry4);
+    AddressEntry smith = new AddressEntry.Builder("Smith").build();
+    addressBook.addEntry(smith);
+    assertEquals(Arrays.asList(testEntry3, testEntry4),
+        addressBook.searchBy(SearchBy.PHONE_NUMBER, SearchMode.PREFIX, "012345677"));
+    assertEquals(Arrays.asList(smith),
+        addressBook.searchBy(SearchBy.NAME, SearchMode.PREFIX, "Sm"));
+    assertTrue(addressBook.searchBy(SearchBy.NAME, SearchMode.PREFIX, "sm").isEmpty());
+    assertEquals(5, addressBook.searchBy(SearchBy.NAME, SearchMode.PREFIX, "").size());
+  }
+
+  @Test
+  public void testSearchBy_range() {
+    assertEquals(Arrays.asList(testEntry3, testEntry2), addressBook.searchBy(
+        SearchBy.PHONE_NUMBER, SearchMode.RANGE, "0123456700", "0123456788"));
+    assertEquals(Arrays.asList(testEntry2, testEntry3),
+        addressBook.searchBy(SearchBy.NAME, SearchMode.RANGE, "TestName2", null));
+    assertEquals(Arrays.asList(testEntry1),
+        addressBook.searchBy(SearchBy.NAME, SearchMode.RANGE, null, "TestName1"));
+    assertTrue(addressBook.searchBy(SearchBy.NAME, SearchMode.RANGE, "TestName3", "TestName1")
+        .isEmpty());
+  }
+
+  @Test
+  public void testSearchBy_contains() {
+    assertEquals(Arrays.asList(testEntry2),
+        addressBook.searchBy(SearchBy.EMAIL, SearchMode.CONTAINS, "t2@"));
+    assertEquals(Arrays.asList(testEntry1, testEntry2, testEntry3),
+        addressBook.searchBy(SearchBy.NOTE, SearchMode.CONTAINS, "Note"));
+
+    addressBook.remove(testEntry2);
+    testEntry1.setNote("Other");
+    assertEquals(Arrays.asList(testEntry3),
+        addressBook.searchBy(SearchBy.NOTE, SearchMode.CONTAINS, "Note"));
+    assertEquals(Arrays.asList(testEntry1),
+        addressBook.searchBy(SearchBy.NOTE, SearchMode.CONTAINS, "the"));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void testSearchBy_rangeWithOneValue() {
+    addressBook.searchBy(SearchBy.NAME, SearchMode.RANGE, "TestName1");
+  }
+
+  @Test
+  public void testSetters_reindexEntry() {
+    AddressBook otherBook = AddressBook.create("TestBook2");
+    otherBook.addEntry(testEntry1);
+
+    testEntry1.setName("RenamedName1");
+    assertTrue(addressBook.searchBy(SearchBy.NAME, "TestName1").isEmpty());
+    assertEquals(Arrays.asList(testEntry1), addressBook.searchBy(SearchBy.NAME, "RenamedName1"));
+    assertEquals(Arrays.asList(testEntry1), otherBook.searchBy(SearchBy.NAME, "RenamedName1"));
+    assertTrue(addressBook.getEntry().contains(testEntry1));
+
+    assertTrue(addressBook.remove(testEntry1));
+    assertEquals(2, addressBook.getEntry().size());
+    testEntry1.setNote("RenamedNote1");
+    assertTrue(addressBook.searchBy(SearchBy.NOTE, "RenamedNote1").isEmpty());
+    assertEquals(Arrays.asList(testEntry1), otherBook.searchBy(SearchBy.NOTE, "RenamedNote1"));
+  }
+
+  @Test
+  public void testSetters_duplicateRejected() {
+    addressBook.addEntry(testEntry4);
+    try {
+      testEntry4.setName("TestName3");
+      fail("an entry was changed to equal another entry of its AddressBook");
+    } catch (IllegalArgumentException expected) {
+    }
+    assertEquals("TestName4", testEntry4.getName());
+    assertEquals(4, addressBook.getEntry().size());
+    assertEquals(Arrays.asList(testEntry3), addressBook.searchBy(SearchBy.NAME, "TestName3"));
+    assertEquals(Arrays.asList(testEntry4), addressBook.searchBy(SearchBy.NAME, "TestName4"));
+
+    // an entry may equal one of another AddressBook
+    addressBook.remove(testEntry4);
+    testEntry4.setName("TestName3");
+    assertEquals(testEntry3, testEntry4);
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testGetEntry_notModifiable() {
+    addressBook.getEntry().add(testEntry4);
+  }
+
   @Test
   public void testSaveAndLoad() {
     addressBook.saveToFile("output.xml", addressBook);
@@ -188,6 +299,36 @@ public class AddressBookTests {
     assertEquals(addressBookFromFile.getEntry(), addressBook.getEntry());
   }
 
+  @Test
+  public void testSaveAndLoad_emptyBook() {
+    AddressBook emptyBook = AddressBook.create("EmptyBook");
+    assertTrue(emptyBook.saveToFile("empty.xml", emptyBook));
+    AddressBook addressBookFromFile = emptyBook.loadFromFile("empty.xml");
+    assertEquals("EmptyBook", addressBookFromFile.getAddressBookName());
+    assertTrue(addressBookFromFile.getEntry().isEmpty());
+  }
+
+  @Test
+  public void testLoadFromFile_parallelWithProgress() {
+    for (int i = 0; i < 25000; i++) {
+      addressBook.addEntry(new AddressEntry.Builder("Name" + i).phoneNumber("555" + i)
+          .note("<note & " + i + ">").build());
+    }
+    assertTrue(addressBook.saveToFile("large.xml", addressBook));
+    final List<Long> progress = new ArrayList<Long>();
+    AddressBook addressBookFromFile = addressBook.loadFromFile("large.xml",
+        new LoadProgressListener() {
+          @Override
+          public void onProgress(long entriesLoaded, long bytesRead, long totalBytes) {
+            assertTrue(bytesRead <= totalBytes);
+            progress.add(entriesLoaded);
+          }
+        }, true);
+    assertEquals("TestBook1", addressBookFromFile.getAddressBookName());
+    assertEquals(addressBook.getEntry(), addressBookFromFile.getEntry());
+    assertEquals(Arrays.asList(10000L, 20000L, 25003L), progress);
+  }
+
   /*
    * Bad code design. The method was not returning anything for success or failure. Neither was it
    * throwing an exception on wrong file name. Changed the function to return boolean instead of
@@ -230,6 +371,15 @@ public class AddressBookTests {
     assertEquals(3, testAddressBook.getEntry().size());
 
     testAddressBook.setEntry(null);
-    assertEquals(null, testAddressBook.getEntry());
+    assertTrue(testAddressBook.getEntry().isEmpty());
+    // the entries no longer belong to testAddressBook, so only addressBook follows the change
+    testEntry1.setName("RenamedName1");
+    assertEquals(Arrays.asList(testEntry1), addressBook.searchBy(SearchBy.NAME, "RenamedName1"));
+    assertTrue(testAddressBook.searchBy(SearchBy.NAME, "RenamedName1").isEmpty());
+
+    // an emptied AddressBook can be used again
+    assertTrue(testAddressBook.addEntry(testEntry4));
+    assertEquals(Arrays.asList(testEntry4), testAddressBook.searchBy(SearchBy.NAME, "TestName4"));
+    assertTrue(testAddressBook.remove(testEntry4));
   }
 }
\ No newline at end of file